@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.sling.api.adapter.AdapterFactory;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.packageadmin.ExportedPackage;
+import org.osgi.service.packageadmin.PackageAdmin;
+import org.osgi.util.converter.Converters;
+
+/**
+ * Helpers shared by the adapter manager benchmarks to set up an
+ * {@link AdapterManagerImpl} outside of an OSGi framework.
+ * <p>
+ * The framework services are mocked with plain dynamic proxies and a minimal
+ * {@link ServiceReference} implementation instead of Mockito mocks, since
+ * Mockito records every invocation and would dominate the measured
+ * registration costs.
+ */
+final class AdapterBenchmarkSupport {
+
+    private static final AtomicLong SERVICE_IDS = new AtomicLong();
+
+    private static final BundleContext BUNDLE_CONTEXT = mock(BundleContext.class, Map.of());
+
+    private static final Bundle BUNDLE = mock(Bundle.class, Map.of("getBundleContext", BUNDLE_CONTEXT));
+
+    private AdapterBenchmarkSupport() {
+        // static helpers only
+    }
+
+    /**
+     * Creates a mock of the given interface returning the given results by
+     * method name and <code>null</code>, <code>false</code> or <code>0</code>
+     * from all other methods.
+     */
+    static <T> T mock(final Class<T> type, final Map<String, Object> results) {
+        return type.cast(Proxy.newProxyInstance(
+                AdapterBenchmarkSupport.class.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                        default:
+                            break;
+                    }
+                    final Object result = results.get(method.getName());
+                    final Class<?> returnType = method.getReturnType();
+                    if (result == null && returnType.isPrimitive() && returnType != void.class) {
+                        // the zero value of the primitive type, e.g. a Long for getBundleId
+                        return Array.get(Array.newInstance(returnType, 1), 0);
+                    }
+                    return result;
+                }));
+    }
+
+    /**
+     * Creates an adapter manager with a mocked <code>PackageAdmin</code>
+     * reporting all packages as exported.
+     */
+    static AdapterManagerImpl createAdapterManager() {
+        return createAdapterManager(Map.of());
+    }
+
+    /**
+     * Creates an adapter manager with the given configuration properties and
+     * a mocked <code>PackageAdmin</code> reporting all packages as exported.
+     */
+    @SuppressWarnings("deprecation")
+    static AdapterManagerImpl createAdapterManager(final Map<String, Object> properties) {
+        final ExportedPackage exportedPackage = mock(ExportedPackage.class, Map.of());
+        final PackageAdmin packageAdmin = mock(PackageAdmin.class, Map.of("getExportedPackage", exportedPackage));
+        return new AdapterManagerImpl(
+                mock(BundleContext.class, Map.of()),
+                new PackageExportIndex(mock(BundleContext.class, Map.of()), packageAdmin),
+                new AdapterMetrics(),
+                Converters.standardConverter().convert(properties).to(AdapterManagerImpl.Config.class));
+    }
+
+    /**
+     * Creates a service reference for an adapter factory.
+     */
+    static ServiceReference<AdapterFactory> createReference(
+            final int ranking, final String[] adaptables, final String[] adapters) {
+        final Hashtable<String, Object> props = new Hashtable<>();
+        props.put(Constants.SERVICE_ID, SERVICE_IDS.incrementAndGet());
+        props.put(Constants.SERVICE_RANKING, ranking);
+        props.put(AdapterFactory.ADAPTABLE_CLASSES, adaptables);
+        props.put(AdapterFactory.ADAPTER_CLASSES, adapters);
+        return new BenchmarkServiceReference(props);
+    }
+
+    /**
+     * Binds a new {@link BenchmarkAdapterFactory} returning the given
+     * <code>adapter</code> (which may be <code>null</code>).
+     *
+     * @return The service reference of the new factory
+     */
+    static ServiceReference<AdapterFactory> bind(
+            final AdapterManagerImpl adapterManager,
+            final int ranking,
+            final Class<?> adaptable,
+            final Class<?> adapter,
+            final Object result) {
+        final ServiceReference<AdapterFactory> ref =
+                createReference(ranking, new String[] {adaptable.getName()}, new String[] {adapter.getName()});
+        adapterManager.bindAdapterFactory(TestServiceObjects.of(new BenchmarkAdapterFactory(result)), ref);
+        return ref;
+    }
+
+    /**
+     * Adapter factory returning a fixed adapter, or <code>null</code>, for any
+     * adaptable without allocating.
+     */
+    static final class BenchmarkAdapterFactory implements AdapterFactory {
+
+        private final Object adapter;
+
+        BenchmarkAdapterFactory(final Object adapter) {
+            this.adapter = adapter;
+        }
+
+        @Override
+        public <AdapterType> AdapterType getAdapter(final Object adaptable, final Class<AdapterType> type) {
+            return adapter == null ? null : type.cast(adapter);
+        }
+    }
+
+    /**
+     * Service reference ordered by service ranking and service id like the
+     * references of the OSGi framework.
+     */
+    static final class BenchmarkServiceReference implements ServiceReference<AdapterFactory> {
+
+        private final Hashtable<String, Object> props;
+
+        private final long serviceId;
+
+        private final int ranking;
+
+        BenchmarkServiceReference(final Hashtable<String, Object> props) {
+            this.props = props;
+            this.serviceId = (Long) props.get(Constants.SERVICE_ID);
+            this.ranking = (Integer) props.get(Constants.SERVICE_RANKING);
+        }
+
+        @Override
+        public Object getProperty(final String key) {
+            return props.get(key);
+        }
+
+        @Override
+        public String[] getPropertyKeys() {
+            return props.keySet().toArray(new String[0]);
+        }
+
+        @Override
+        public Dictionary<String, Object> getProperties() {
+            return new Hashtable<>(props);
+        }
+
+        @Override
+        public Bundle getBundle() {
+            return BUNDLE;
+        }
+
+        @Override
+        public Bundle[] getUsingBundles() {
+            return null;
+        }
+
+        @Override
+        public boolean isAssignableTo(final Bundle bundle, final String className) {
+            return true;
+        }
+
+        @Override
+        public int compareTo(final Object reference) {
+            final BenchmarkServiceReference other = (BenchmarkServiceReference) reference;
+            if (serviceId == other.serviceId) {
+                return 0;
+            }
+            if (ranking != other.ranking) {
+                return ranking < other.ranking ? -1 : 1;
+            }
+            return serviceId > other.serviceId ? -1 : 1;
+        }
+
+        // implements ServiceReference.adapt of newer framework API versions
+        public <A> A adapt(final Class<A> type) {
+            return null;
+        }
+    }
+}
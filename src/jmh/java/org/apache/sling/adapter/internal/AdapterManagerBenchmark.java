@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sling.adapter.AdapterLookup;
+import org.apache.sling.adapter.internal.BenchmarkTypes.FanTarget;
+import org.apache.sling.adapter.internal.BenchmarkTypes.Miss;
+import org.apache.sling.adapter.internal.BenchmarkTypes.Root;
+import org.apache.sling.adapter.internal.BenchmarkTypes.Target;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link AdapterManagerImpl#getAdapter(Object, Class)} and the
+ * adaption through an {@link AdapterLookup} handle.
+ * <p>
+ * The adaptable class extends the class the adapter factories are registered
+ * for through <code>depth</code> levels and implements <code>interfaces</code>
+ * interfaces, each of which has a factory for another target type. The
+ * <code>factories</code> factories registered for the target type are tried in
+ * order, only the last one returns an adapter. For a <code>hit</code> the
+ * adaptable is adapted to that target type, otherwise to a type without any
+ * factory. If not <code>warm</code>, the factory cache is cleared before each
+ * lookup, which does not affect a bound lookup handle. With a
+ * <code>dispatcher</code> the factories are compiled into a dispatcher on the
+ * first warm adaption. The <code>engine</code> selects the resolution engine
+ * of the adapter manager. The number of threads is set with the JMH
+ * <code>-t</code> option.
+ * <p>
+ * By default the shape of the hierarchy is fixed, such that the run only
+ * varies the cache, hit, dispatcher and engine parameters. Further shapes are
+ * measured by passing their values with the JMH <code>-p</code> option, e.g.
+ * <code>-p depth=1,4,8 -p interfaces=0,4,8 -p factories=1,4,16</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdapterManagerBenchmark {
+
+    @Param({"4"})
+    public int depth;
+
+    @Param({"4"})
+    public int interfaces;
+
+    @Param({"4"})
+    public int factories;
+
+    @Param({"true", "false"})
+    public boolean warm;
+
+    @Param({"true", "false"})
+    public boolean hit;
+
+    @Param({"false", "true"})
+    public boolean dispatcher;
+
+    @Param({AdapterManagerImpl.ENGINE_MAP, AdapterManagerImpl.ENGINE_INDEXED})
+    public String engine;
+
+    private AdapterManagerImpl adapterManager;
+
+    private Object adaptable;
+
+    private Class<?> type;
+
+    private AdapterLookup<?> lookup;
+
+    @Setup
+    public void setUp() {
+        adapterManager = AdapterBenchmarkSupport.createAdapterManager(
+                Map.of("dispatcher.enabled", dispatcher, "dispatcher.threshold", 1, "engine", engine));
+        adaptable = BenchmarkTypes.newAdaptable(depth, interfaces);
+
+        final Target adapter = new Target();
+        for (int i = 0; i < factories; i++) {
+            AdapterBenchmarkSupport.bind(adapterManager, i, Root.class, Target.class, i == factories - 1 ? adapter : null);
+        }
+        for (int i = 1; i <= BenchmarkTypes.MAX_INTERFACES; i++) {
+            AdapterBenchmarkSupport.bind(
+                    adapterManager, 0, BenchmarkTypes.fanInterface(i), FanTarget.class, new FanTarget());
+        }
+
+        type = hit ? Target.class : Miss.class;
+        lookup = adapterManager.getAdapterLookup(adaptable.getClass(), type);
+    }
+
+    @Benchmark
+    public Object getAdapter() {
+        if (!warm) {
+            adapterManager.clearFactoryCache();
+        }
+        return adapterManager.getAdapter(adaptable, type);
+    }
+
+    @Benchmark
+    public Object adapterLookup() {
+        if (!warm) {
+            adapterManager.clearFactoryCache();
+        }
+        return lookup.adapt(adaptable);
+    }
+}
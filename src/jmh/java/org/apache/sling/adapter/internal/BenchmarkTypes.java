@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+/**
+ * Adaptable and adapter types used by the benchmarks. The adaptables are
+ * <code>Leaf&lt;depth&gt;x&lt;interfaces&gt;</code> classes extending
+ * {@link Root} through <code>depth</code> levels of classes and directly
+ * implementing <code>interfaces</code> of the {@link Fan1} to {@link Fan8}
+ * interfaces.
+ */
+final class BenchmarkTypes {
+
+    static final int MAX_INTERFACES = 8;
+
+    private BenchmarkTypes() {
+        // types only
+    }
+
+    /**
+     * Creates an adaptable of the given hierarchy depth and interface fan-out.
+     *
+     * @throws IllegalArgumentException if there is no such adaptable type
+     */
+    static Object newAdaptable(final int depth, final int interfaces) {
+        final String name = BenchmarkTypes.class.getName() + "$Leaf" + depth + "x" + interfaces;
+        try {
+            return Class.forName(name).getDeclaredConstructor().newInstance();
+        } catch (final ReflectiveOperationException e) {
+            throw new IllegalArgumentException("No adaptable with depth " + depth + " and fan-out " + interfaces, e);
+        }
+    }
+
+    /**
+     * Returns the interface with the given number (1 to {@link #MAX_INTERFACES}).
+     */
+    static Class<?> fanInterface(final int number) {
+        try {
+            return Class.forName(BenchmarkTypes.class.getName() + "$Fan" + number);
+        } catch (final ClassNotFoundException e) {
+            throw new IllegalArgumentException("No interface " + number, e);
+        }
+    }
+
+    // ---------- adapters
+
+    public static class Target {}
+
+    public static class FanTarget {}
+
+    public static class Miss {}
+
+    // ---------- adaptable hierarchy
+
+    public interface Fan1 {}
+
+    public interface Fan2 {}
+
+    public interface Fan3 {}
+
+    public interface Fan4 {}
+
+    public interface Fan5 {}
+
+    public interface Fan6 {}
+
+    public interface Fan7 {}
+
+    public interface Fan8 {}
+
+    public static class Root {}
+
+    public static class Level1 extends Root {}
+
+    public static class Level2 extends Level1 {}
+
+    public static class Level3 extends Level2 {}
+
+    public static class Level4 extends Level3 {}
+
+    public static class Level5 extends Level4 {}
+
+    public static class Level6 extends Level5 {}
+
+    public static class Level7 extends Level6 {}
+
+    public static class Leaf1x0 extends Root {}
+
+    public static class Leaf1x4 extends Root implements Fan1, Fan2, Fan3, Fan4 {}
+
+    public static class Leaf1x8 extends Root implements Fan1, Fan2, Fan3, Fan4, Fan5, Fan6, Fan7, Fan8 {}
+
+    public static class Leaf4x0 extends Level3 {}
+
+    public static class Leaf4x4 extends Level3 implements Fan1, Fan2, Fan3, Fan4 {}
+
+    public static class Leaf4x8 extends Level3 implements Fan1, Fan2, Fan3, Fan4, Fan5, Fan6, Fan7, Fan8 {}
+
+    public static class Leaf8x0 extends Level7 {}
+
+    public static class Leaf8x4 extends Level7 implements Fan1, Fan2, Fan3, Fan4 {}
+
+    public static class Leaf8x8 extends Level7 implements Fan1, Fan2, Fan3, Fan4, Fan5, Fan6, Fan7, Fan8 {}
+}
@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sling.adapter.internal.AdapterBenchmarkSupport.BenchmarkAdapterFactory;
+import org.apache.sling.adapter.internal.BenchmarkTypes.FanTarget;
+import org.apache.sling.adapter.internal.BenchmarkTypes.Target;
+import org.apache.sling.api.adapter.AdapterFactory;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Benchmarks the registration path of {@link AdapterManagerImpl}.
+ * <p>
+ * The <code>startup</code> benchmark binds <code>registrations</code>
+ * synthetic adapter factories spread over <code>adaptables</code> adaptable
+ * names into an empty adapter manager, i.e. the work done until the manager
+ * reaches its steady state.
+ * <p>
+ * The <code>churn</code> group starts with all synthetic factories bound and
+ * keeps unbinding, binding and updating them in one thread while the reader
+ * threads call <code>getAdapter</code> for adaptables depending on the changed
+ * names. Its sample time mode reports the reader latency percentiles during
+ * churn. The auxiliary counters report the number of factory cache entries
+ * computed and evicted.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegistrationChurnBenchmark {
+
+    /**
+     * Adapter manager and the service references of the synthetic factories.
+     * The empty adapter manager is the state of the <code>startup</code>
+     * benchmark.
+     */
+    @State(Scope.Benchmark)
+    public static class Registry {
+
+        @Param({"1000", "5000"})
+        public int registrations;
+
+        @Param({"10", "100"})
+        public int adaptables;
+
+        AdapterManagerImpl adapterManager;
+
+        ServiceReference<AdapterFactory>[] references;
+
+        Object[] readerAdaptables;
+
+        int next;
+
+        @Setup(Level.Iteration)
+        @SuppressWarnings("unchecked")
+        public void setUp() {
+            adapterManager = AdapterBenchmarkSupport.createAdapterManager();
+            references = new ServiceReference[registrations];
+            for (int i = 0; i < registrations; i++) {
+                references[i] = AdapterBenchmarkSupport.createReference(
+                        i, new String[] {adaptableName(i % adaptables)}, new String[] {FanTarget.class.getName()});
+            }
+            readerAdaptables = new Object[] {
+                BenchmarkTypes.newAdaptable(1, 0),
+                BenchmarkTypes.newAdaptable(4, 4),
+                BenchmarkTypes.newAdaptable(8, 8)
+            };
+            AdapterBenchmarkSupport.bind(adapterManager, 0, BenchmarkTypes.Root.class, Target.class, new Target());
+            populate();
+        }
+
+        /**
+         * Called at the end of the iteration setup to bind further adapter
+         * factories. JMH does not order the setup methods of a state class
+         * and its super class, hence this is not a setup method of its own.
+         */
+        void populate() {
+            // the startup benchmark starts with an empty adapter manager
+        }
+
+        /**
+         * Returns the adaptable name of the given index. The names of the first
+         * indexes are the types of the benchmark adaptables such that their
+         * cache entries are affected by the registration changes.
+         */
+        private static String adaptableName(final int index) {
+            switch (index) {
+                case 0:
+                    return BenchmarkTypes.Root.class.getName();
+                case 1:
+                    return BenchmarkTypes.Level3.class.getName();
+                case 2:
+                    return BenchmarkTypes.Fan1.class.getName();
+                default:
+                    return "org.apache.sling.synthetic.Adaptable" + index;
+            }
+        }
+    }
+
+    /**
+     * Adapter manager with all synthetic factories bound, shared by the
+     * threads of the <code>churn</code> group.
+     */
+    @State(Scope.Group)
+    public static class PopulatedRegistry extends Registry {
+
+        @Override
+        void populate() {
+            for (final ServiceReference<AdapterFactory> reference : references) {
+                adapterManager.bindAdapterFactory(TestServiceObjects.of(new BenchmarkAdapterFactory(null)), reference);
+            }
+        }
+    }
+
+    /**
+     * Cache statistics of the adapter manager since the start of the iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class CacheCounters {
+
+        public long cacheFills;
+
+        public long cacheEvictions;
+
+        private long fillsBase;
+
+        private long evictionsBase;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            cacheFills = 0;
+            cacheEvictions = 0;
+            fillsBase = -1;
+        }
+
+        void update(final AdapterManagerImpl adapterManager) {
+            if (fillsBase < 0) {
+                fillsBase = adapterManager.getCacheFills();
+                evictionsBase = adapterManager.getCacheEvictions();
+            }
+            cacheFills = adapterManager.getCacheFills() - fillsBase;
+            cacheEvictions = adapterManager.getCacheEvictions() - evictionsBase;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 10)
+    public AdapterManagerImpl startup(final Registry registry, final CacheCounters counters) {
+        final AdapterManagerImpl adapterManager = registry.adapterManager;
+        for (final ServiceReference<AdapterFactory> reference : registry.references) {
+            adapterManager.bindAdapterFactory(TestServiceObjects.of(new BenchmarkAdapterFactory(null)), reference);
+        }
+        counters.update(adapterManager);
+        return adapterManager;
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public void register(final PopulatedRegistry registry, final CacheCounters counters) {
+        final ServiceReference<AdapterFactory> reference =
+                registry.references[registry.next++ % registry.references.length];
+        final AdapterManagerImpl adapterManager = registry.adapterManager;
+        adapterManager.unbindAdapterFactory(reference);
+        adapterManager.bindAdapterFactory(TestServiceObjects.of(new BenchmarkAdapterFactory(null)), reference);
+        adapterManager.updatedAdapterFactory(TestServiceObjects.of(new BenchmarkAdapterFactory(null)), reference);
+        counters.update(adapterManager);
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(3)
+    public Object read(final PopulatedRegistry registry) {
+        Object result = null;
+        for (final Object adaptable : registry.readerAdaptables) {
+            result = registry.adapterManager.getAdapter(adaptable, Target.class);
+        }
+        return result;
+    }
+}
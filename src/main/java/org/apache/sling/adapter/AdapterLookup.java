@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * An <code>AdapterLookup</code> is a reusable handle adapting instances of
+ * one adaptable class to one target type as returned by
+ * {@link ExtendedAdapterManager#getAdapterLookup(Class, Class)}.
+ * <p>
+ * The handle keeps the adapter factories resolved for its adaptable class and
+ * target type, such that adapting an instance of exactly that class does not
+ * need any further lookups. The resolved factories are dropped automatically
+ * whenever adapter factories are registered or unregistered. Handles are
+ * thread safe and are meant to be kept for as long as the adaptable class and
+ * target type are in use.
+ *
+ * @param <AdapterType> The generic type of the adapter (target) type.
+ * @since 2.2.0
+ */
+@ProviderType
+public interface AdapterLookup<AdapterType> {
+
+    /**
+     * Returns the adaptable class this handle is bound to.
+     */
+    @NotNull
+    Class<?> getAdaptableType();
+
+    /**
+     * Returns the target type this handle is bound to.
+     */
+    @NotNull
+    Class<AdapterType> getAdapterType();
+
+    /**
+     * Adapts the <code>adaptable</code> to the target type of this handle.
+     * If the adaptable is not an instance of exactly the adaptable class of
+     * this handle, it is adapted like by
+     * {@link org.apache.sling.api.adapter.AdapterManager#getAdapter(Object, Class)}.
+     *
+     * @param adaptable The object to adapt.
+     * @return The adapter or <code>null</code> if the object cannot be
+     *         adapted.
+     */
+    @Nullable
+    AdapterType adapt(@NotNull Object adaptable);
+}
@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * The <code>Adapters</code> hold the adapters of a single adaptable to
+ * several target types as returned by
+ * {@link ExtendedAdapterManager#resolveAdapters(Object, Class...)}.
+ *
+ * @since 2.2.0
+ */
+@ProviderType
+public interface Adapters {
+
+    /**
+     * Returns the adapter to the given <code>type</code>.
+     *
+     * @param <AdapterType> The generic type of the adapter (target) type.
+     * @param type One of the types the adapters have been resolved for.
+     * @return The adapter or <code>null</code> if the adaptable cannot be
+     *         adapted to the type.
+     * @throws IllegalArgumentException If the adapters have not been resolved
+     *             for the type.
+     */
+    <AdapterType> @Nullable AdapterType get(@NotNull Class<AdapterType> type);
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.apache.sling.api.adapter.AdapterManager;
+import org.jetbrains.annotations.NotNull;
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * The <code>ExtendedAdapterManager</code> extends the
+ * {@link AdapterManager} with methods adapting many objects or adapting an
+ * object to many types in a single call.
+ * The adapter manager implemented in this bundle is registered as a service
+ * for both interfaces.
+ * <p>
+ * The methods of this interface return the same adapters as calling
+ * {@link AdapterManager#getAdapter(Object, Class)} for each object, but
+ * resolve the adapter factories for each class of adaptables only once.
+ * Like {@link AdapterManager#getAdapter(Object, Class)}, these methods
+ * ignore any <code>adaptTo</code> implementation of the adaptables.
+ *
+ * @since 2.2.0
+ */
+@ProviderType
+public interface ExtendedAdapterManager extends AdapterManager {
+
+    /**
+     * Adapts all <code>adaptables</code> to the given <code>type</code>. The
+     * adaptables are grouped by their runtime class and the adapter factories
+     * are resolved once per class.
+     * <p>
+     * To adapt the elements of a <code>Stream</code>, pass
+     * <code>stream::iterator</code>.
+     *
+     * @param <AdapterType> The generic type of the adapter (target) type.
+     * @param adaptables The objects to adapt. <code>null</code> elements are
+     *            not adapted.
+     * @param type The type to which the objects are to be adapted.
+     * @return The adapters in the order of the <code>adaptables</code>. An
+     *         element is <code>null</code> if the respective adaptable is
+     *         <code>null</code> or cannot be adapted.
+     */
+    <AdapterType> @NotNull List<AdapterType> getAdapters(
+            @NotNull Iterable<?> adaptables, @NotNull Class<AdapterType> type);
+
+    /**
+     * Adapts all <code>adaptables</code> to the given <code>type</code> in
+     * parallel. The adapter factories are resolved once per class of
+     * adaptables in the calling thread, the adapter factories are then invoked
+     * by tasks run by the <code>executor</code>. This is useful if the adapter
+     * factories are expensive, e.g. because they access a repository.
+     * <p>
+     * This method blocks until all adaptables have been adapted. If an adapter
+     * factory throws an exception, the exception is thrown by this method once
+     * all tasks have completed.
+     *
+     * @param <AdapterType> The generic type of the adapter (target) type.
+     * @param adaptables The objects to adapt. <code>null</code> elements are
+     *            not adapted.
+     * @param type The type to which the objects are to be adapted.
+     * @param executor The executor running the adaptions.
+     * @return The adapters in the order of the <code>adaptables</code>. An
+     *         element is <code>null</code> if the respective adaptable is
+     *         <code>null</code> or cannot be adapted.
+     */
+    <AdapterType> @NotNull List<AdapterType> getAdapters(
+            @NotNull Iterable<?> adaptables, @NotNull Class<AdapterType> type, @NotNull Executor executor);
+
+    /**
+     * Adapts the <code>adaptable</code> to all given <code>types</code>. The
+     * adapter factories of the class of the adaptable are looked up once for
+     * all types. The adapter factories are invoked for all types before this
+     * method returns.
+     *
+     * @param adaptable The object to adapt.
+     * @param types The types to which the object is to be adapted.
+     * @return The adapters to the <code>types</code>.
+     */
+    @NotNull
+    Adapters resolveAdapters(@NotNull Object adaptable, @NotNull Class<?>... types);
+
+    /**
+     * Returns a reusable handle adapting instances of the
+     * <code>adaptableType</code> to the <code>type</code>.
+     *
+     * @param <AdapterType> The generic type of the adapter (target) type.
+     * @param adaptableType The class of the objects to adapt.
+     * @param type The type to which the objects are to be adapted.
+     * @return The handle.
+     */
+    <AdapterType> @NotNull AdapterLookup<AdapterType> getAdapterLookup(
+            @NotNull Class<?> adaptableType, @NotNull Class<AdapterType> type);
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * The <code>AdaptableFactories</code> class is the entry of the adapter
+ * factory cache for a single adaptable class. It holds the resolved adapter
+ * factories by target class. How they are indexed depends on the resolution
+ * engine: {@link MappedAdaptableFactories} index them by target class name,
+ * {@link IndexedAdaptableFactories} by the integer ids of an
+ * {@link AdapterTypeIndex}.
+ * <p>
+ * Instances are never modified once the factories have been resolved. Each
+ * entry records the names of the adaptable classes - the class itself, its
+ * super classes and all implemented interfaces - whose registered adapter
+ * factories were considered to build it. If the adapter factories registered
+ * for any of these names change, the entry is dropped from the cache and a new
+ * entry is built on next access.
+ * <p>
+ * Entries share as much as possible with the entries of the super classes and
+ * interfaces they have been resolved from: the {@link TargetFactories} of a
+ * target type only contributed by a single parent entry are shared, and an
+ * entry without own adapter factories and a single contributing parent
+ * shares the complete index of that parent.
+ */
+abstract class AdaptableFactories {
+
+    static final AdapterFactoryDescriptor[] NO_FACTORIES = new AdapterFactoryDescriptor[0];
+
+    /**
+     * The names of the adaptable classes this entry has been resolved from.
+     */
+    private final Set<String> adaptableNames;
+
+    AdaptableFactories(final Set<String> adaptableNames) {
+        this.adaptableNames = adaptableNames;
+    }
+
+    /**
+     * Returns the names of the adaptable classes this entry has been resolved
+     * from. The set must not be modified.
+     */
+    final Set<String> getAdaptableNames() {
+        return adaptableNames;
+    }
+
+    /**
+     * Returns <code>true</code> if this entry has been resolved from the
+     * adapter factories of at least one of the given adaptable class names.
+     */
+    final boolean dependsOnAny(final String[] names) {
+        for (final String name : names) {
+            if (adaptableNames.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Calls the <code>action</code> with the fully qualified name of each
+     * target class and the adapter factories to try in order for it.
+     */
+    abstract void forEachTarget(BiConsumer<String, TargetFactories> action);
+
+    /**
+     * Returns <code>true</code> if this entry has no adapter factories for
+     * any target class.
+     */
+    abstract boolean isEmpty();
+
+    /**
+     * Returns an entry sharing the adapter factories of this entry, which has
+     * been resolved from the given adaptable names.
+     */
+    abstract AdaptableFactories share(Set<String> adaptableNames);
+
+    /**
+     * Returns the estimated number of bytes retained by this entry. Objects
+     * contained in the <code>seen</code> set are not counted, since they are
+     * shared with entries already estimated. Objects counted are added to the
+     * set. The adapter factory descriptors and the class names are owned by
+     * the registry and are not counted either.
+     */
+    abstract long estimateSize(Set<Object> seen);
+
+    /**
+     * Returns the estimated number of bytes of a <code>HashMap</code> or
+     * <code>HashSet</code> with the given number of entries, excluding the
+     * keys and values.
+     */
+    static long estimateMapSize(final int size) {
+        // map object plus table of the default load factor plus node per entry
+        return 48 + estimateArraySize(Math.max(16, Integer.highestOneBit(Math.max(1, size * 4 / 3)) * 2)) + 32L * size;
+    }
+
+    /**
+     * Returns the estimated number of bytes of an object array of the given
+     * length assuming compressed references.
+     */
+    static long estimateArraySize(final int length) {
+        return (16 + 4L * length + 7) & ~7L;
+    }
+
+    /**
+     * Returns the adapter factories to try in order for the given target
+     * <code>type</code>. If there is no factory for the type, an empty array
+     * is returned.
+     *
+     * @param type The target class
+     * @return The adapter factories, never <code>null</code>. The array must
+     *         not be modified.
+     */
+    final AdapterFactoryDescriptor[] getFactories(final Class<?> type) {
+        return getTargetFactories(type).getFactories();
+    }
+
+    /**
+     * Returns the adapter factories to try in order for the given target
+     * <code>type</code> together with their dispatcher state.
+     *
+     * @param type The target class
+     * @return The target factories, never <code>null</code>.
+     */
+    abstract TargetFactories getTargetFactories(Class<?> type);
+}
@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.util.function.BiFunction;
+
+/**
+ * The <code>AdaptablePairMetrics</code> hold the {@link InvocationMetrics} of
+ * the pairs of one adaptable class indexed by the identity of the target
+ * class. Looking them up neither hashes class names nor allocates any
+ * objects, and the target classes are not kept reachable.
+ */
+final class AdaptablePairMetrics {
+
+    private final String adaptable;
+
+    private final WeakClassTable<InvocationMetrics> targets = new WeakClassTable<>();
+
+    AdaptablePairMetrics(final String adaptable) {
+        this.adaptable = adaptable;
+    }
+
+    /**
+     * Returns the metrics for the <code>target</code> class. If there are none
+     * yet, they are created by calling the <code>factory</code> with the names
+     * of the adaptable and the target class.
+     */
+    InvocationMetrics get(final Class<?> target, final BiFunction<String, String, InvocationMetrics> factory) {
+        final InvocationMetrics metrics = targets.get(target);
+        return metrics != null ? metrics : targets.putIfAbsent(target, factory.apply(adaptable, target.getName()));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The <code>AdaptableShape</code> is the canonical representative of a
+ * generated adaptable class, such as a JDK proxy, a lambda or a class
+ * generated by a byte code enhancer: the first super class which is not
+ * generated and the interfaces implemented by the generated classes in the
+ * order the adapter factories are resolved in.
+ * <p>
+ * All generated classes of the same shape resolve to the same adapter
+ * factories, unless factories are registered for the names of the generated
+ * classes themselves. Such classes do not share the entry of their shape.
+ *
+ * @param superclass The first super class which is not generated
+ * @param interfaces The interfaces implemented by the generated classes
+ */
+record AdaptableShape(Class<?> superclass, List<Class<?>> interfaces) {
+
+    /**
+     * Returns the shape of the <code>clazz</code> or <code>null</code> if the
+     * class is not generated.
+     *
+     * @param clazz The adaptable class
+     * @param markers The substrings of the names of generated classes
+     */
+    static AdaptableShape of(final Class<?> clazz, final String[] markers) {
+        if (!isGenerated(clazz, markers)) {
+            return null;
+        }
+        final List<Class<?>> interfaces = new ArrayList<>();
+        Class<?> current = clazz;
+        while (current != null && isGenerated(current, markers)) {
+            for (final Class<?> iFace : current.getInterfaces()) {
+                if (!interfaces.contains(iFace)) {
+                    interfaces.add(iFace);
+                }
+            }
+            current = current.getSuperclass();
+        }
+        return new AdaptableShape(current, List.copyOf(interfaces));
+    }
+
+    /**
+     * Returns the key of this shape in the map of the shared cache entries,
+     * which does not keep the classes of the shape reachable.
+     */
+    Key key() {
+        return new Key(this);
+    }
+
+    /**
+     * Returns <code>true</code> if the <code>clazz</code> is a JDK proxy
+     * class, a synthetic or hidden class or its name contains any of the
+     * <code>markers</code>.
+     */
+    static boolean isGenerated(final Class<?> clazz, final String[] markers) {
+        if (Proxy.isProxyClass(clazz) || clazz.isSynthetic() || clazz.isHidden()) {
+            return true;
+        }
+        final String name = clazz.getName();
+        for (final String marker : markers) {
+            if (!marker.isEmpty() && name.contains(marker)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The key of an adaptable shape referencing its classes only weakly. Two
+     * keys are equal if they reference the same classes, the key of a shape
+     * one of whose classes has been collected is only equal to itself.
+     */
+    static final class Key {
+
+        /**
+         * The super class, if any, followed by the interfaces of the shape.
+         */
+        private final WeakReference<Class<?>>[] types;
+
+        private final boolean hasSuperclass;
+
+        private final int hash;
+
+        @SuppressWarnings("unchecked")
+        private Key(final AdaptableShape shape) {
+            final List<Class<?>> classes = new ArrayList<>(shape.interfaces().size() + 1);
+            if (shape.superclass() != null) {
+                classes.add(shape.superclass());
+            }
+            classes.addAll(shape.interfaces());
+            this.types = new WeakReference[classes.size()];
+            this.hasSuperclass = shape.superclass() != null;
+            int h = Boolean.hashCode(hasSuperclass);
+            for (int i = 0; i < this.types.length; i++) {
+                h = 31 * h + System.identityHashCode(classes.get(i));
+                this.types[i] = new WeakReference<>(classes.get(i));
+            }
+            this.hash = h;
+        }
+
+        /**
+         * Returns <code>true</code> if any class of the shape has been
+         * garbage collected.
+         */
+        boolean isCleared() {
+            for (final WeakReference<Class<?>> type : types) {
+                if (type.refersTo(null)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof Key other)
+                    || other.hash != hash
+                    || other.hasSuperclass != hasSuperclass
+                    || other.types.length != types.length) {
+                return false;
+            }
+            for (int i = 0; i < types.length; i++) {
+                final Class<?> type = types[i].get();
+                if (type == null || type != other.types[i].get()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
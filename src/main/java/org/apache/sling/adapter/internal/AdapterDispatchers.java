@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Objects;
+
+import org.apache.sling.api.adapter.AdapterFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>AdapterDispatchers</code> compile the adapter factories of an
+ * adaptable class and target type into an {@link AdapterDispatcher}.
+ * <p>
+ * The factories are bound into a method handle chain invoking them in order
+ * until one returns an adapter. The chain is handed as class data to a new
+ * hidden class defined from the {@link DispatcherTemplate} class file, which
+ * keeps it in a static final field. For the JIT compiler the chain and thus
+ * the factories are constants, so the <code>getAdapter</code> calls can be
+ * devirtualized and inlined. Adapter factories whose service object has not
+ * been acquired yet are not acquired by compiling the dispatcher: they are
+ * resolved through their descriptor when the dispatcher reaches them. The
+ * constant factories are only invoked as long as their descriptor still holds
+ * them, such that released factories are skipped until the dispatcher is
+ * dropped with the next published registry. The hidden classes are not
+ * strongly bound to the class loader and are unloaded once their dispatcher
+ * is dropped from the factory cache.
+ */
+final class AdapterDispatchers {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdapterDispatchers.class);
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final MethodType DISPATCH_TYPE = MethodType.methodType(Object.class, Object.class, Class.class);
+
+    private static final MethodHandle GET_ADAPTER;
+
+    private static final MethodHandle GET_ADAPTER_LAZILY;
+
+    private static final MethodHandle IS_HELD;
+
+    private static final MethodHandle NON_NULL;
+
+    private static final MethodHandle NO_ADAPTER;
+
+    private static final MethodHandle RETURN_ADAPTER;
+
+    static {
+        try {
+            GET_ADAPTER = LOOKUP.findVirtual(AdapterFactory.class, "getAdapter", DISPATCH_TYPE);
+            GET_ADAPTER_LAZILY = LOOKUP.findStatic(
+                    AdapterDispatchers.class,
+                    "getAdapterLazily",
+                    DISPATCH_TYPE.insertParameterTypes(0, AdapterFactoryDescriptor.class));
+            IS_HELD = LOOKUP.findStatic(
+                    AdapterDispatchers.class,
+                    "isHeld",
+                    MethodType.methodType(boolean.class, AdapterFactoryDescriptor.class, AdapterFactory.class));
+            NON_NULL = MethodHandles.dropArguments(
+                    LOOKUP.findStatic(Objects.class, "nonNull", MethodType.methodType(boolean.class, Object.class)),
+                    1,
+                    Object.class,
+                    Class.class);
+        } catch (final NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        NO_ADAPTER =
+                MethodHandles.dropArguments(MethodHandles.constant(Object.class, null), 0, Object.class, Class.class);
+        RETURN_ADAPTER =
+                MethodHandles.dropArguments(MethodHandles.identity(Object.class), 1, Object.class, Class.class);
+    }
+
+    /**
+     * The class file of the {@link DispatcherTemplate} or <code>null</code> if
+     * it cannot be read.
+     */
+    private static volatile byte[] template;
+
+    private AdapterDispatchers() {
+        // static methods only
+    }
+
+    /**
+     * Compiles the adapter factories into a dispatcher.
+     *
+     * @param factories The adapter factories in the order to try them
+     * @return The dispatcher or <code>null</code> if it cannot be compiled
+     */
+    static AdapterDispatcher compile(final AdapterFactoryDescriptor[] factories) {
+        try {
+            final MethodHandles.Lookup hidden =
+                    LOOKUP.defineHiddenClassWithClassData(getTemplate(), createChain(factories), true);
+            return (AdapterDispatcher) hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class))
+                    .invoke();
+        } catch (final Throwable t) {
+            LOG.warn("Unable to compile adapter dispatcher, adapter factories are invoked in a loop", t);
+            return null;
+        }
+    }
+
+    /**
+     * Creates the method handle chain invoking the adapter factories in order
+     * until one of them returns an adapter.
+     */
+    static MethodHandle createChain(final AdapterFactoryDescriptor[] factories) {
+        MethodHandle chain = NO_ADAPTER;
+        for (int i = factories.length - 1; i >= 0; i--) {
+            final AdapterFactory factory = factories[i].getAcquiredFactory();
+            final MethodHandle getAdapter;
+            if (factory != null) {
+                // (adaptable, type) -> held ? factory.getAdapter(adaptable, type) : null
+                final MethodHandle held = MethodHandles.dropArguments(
+                        MethodHandles.insertArguments(IS_HELD, 0, factories[i], factory), 0, Object.class, Class.class);
+                getAdapter = MethodHandles.guardWithTest(held, GET_ADAPTER.bindTo(factory), NO_ADAPTER);
+            } else {
+                getAdapter = GET_ADAPTER_LAZILY.bindTo(factories[i]);
+            }
+            // (adapter, adaptable, type) -> adapter != null ? adapter : chain(adaptable, type)
+            final MethodHandle select = MethodHandles.guardWithTest(
+                    NON_NULL, RETURN_ADAPTER, MethodHandles.dropArguments(chain, 0, Object.class));
+            chain = MethodHandles.foldArguments(select, getAdapter);
+        }
+        return chain;
+    }
+
+    /**
+     * Returns <code>true</code> if the <code>descriptor</code> still holds the
+     * <code>factory</code>, i.e. it has not been released.
+     */
+    private static boolean isHeld(final AdapterFactoryDescriptor descriptor, final AdapterFactory factory) {
+        return descriptor.getAcquiredFactory() == factory;
+    }
+
+    /**
+     * Has the adapter factory of the <code>descriptor</code> adapt the
+     * <code>adaptable</code>, acquiring its service object on first use.
+     * Returns <code>null</code> if the service object is not available.
+     */
+    private static Object getAdapterLazily(
+            final AdapterFactoryDescriptor descriptor, final Object adaptable, final Class<?> type) {
+        final AdapterFactory factory = descriptor.getFactory();
+        return factory != null ? factory.getAdapter(adaptable, type) : null;
+    }
+
+    private static byte[] getTemplate() throws IOException {
+        byte[] bytes = template;
+        if (bytes == null) {
+            try (InputStream in = DispatcherTemplate.class.getResourceAsStream("DispatcherTemplate.class")) {
+                if (in == null) {
+                    throw new IOException("Class file of " + DispatcherTemplate.class.getName() + " not found");
+                }
+                bytes = in.readAllBytes();
+            }
+            template = bytes;
+        }
+        return bytes;
+    }
+}
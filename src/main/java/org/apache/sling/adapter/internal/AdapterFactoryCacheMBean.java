@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+/**
+ * The <code>AdapterFactoryCacheMBean</code> exposes the state of the adapter
+ * factory cache of the {@link AdapterManagerImpl} via JMX.
+ */
+public interface AdapterFactoryCacheMBean {
+
+    /**
+     * Returns the resolution engine in use.
+     */
+    String getEngine();
+
+    /**
+     * Returns the number of adaptable classes in the cache.
+     */
+    int getCacheSize();
+
+    /**
+     * Returns the maximum number of adaptable classes in the cache or
+     * <code>0</code> if the cache is not bounded.
+     */
+    int getCacheMaxSize();
+
+    /**
+     * Returns the number of cache entries evicted to stay within the maximum
+     * cache size.
+     */
+    long getCacheCapacityEvictions();
+
+    /**
+     * Returns the number of cache entries removed since their adaptable class
+     * has been garbage collected.
+     */
+    long getCollectedCacheEntries();
+
+    /**
+     * Returns the number of cache entries shared by generated adaptable
+     * classes of the same shape.
+     */
+    int getSharedCacheSize();
+
+    /**
+     * Returns the estimated number of bytes retained by the cache entries.
+     * Objects shared by several entries are only counted once, the adapter
+     * factory descriptors and class names owned by the registry are not
+     * counted at all.
+     */
+    long getEstimatedCacheBytes();
+
+    /**
+     * Returns the number of computed cache entries.
+     */
+    long getCacheFills();
+
+    /**
+     * Returns the number of cache misses which waited for the computation of
+     * another thread instead of computing the entry themselves.
+     */
+    long getCoalescedCacheFills();
+
+    /**
+     * Returns the number of computed cache entries discarded because of a
+     * concurrent registry change.
+     */
+    long getRejectedCacheFills();
+
+    /**
+     * Returns the number of registration events which invalidated the cache.
+     */
+    long getCacheInvalidations();
+
+    /**
+     * Returns the total number of cache entries evicted by registration events.
+     */
+    long getCacheEvictions();
+}
@@ -21,30 +21,144 @@ package org.apache.sling.adapter.internal;
 import org.apache.sling.adapter.Adaption;
 import org.apache.sling.api.adapter.AdapterFactory;
 import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.ComponentServiceObjects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * The <code>AdapterFactoryDescriptor</code> is an entry in the
  * {@link AdapterFactoryDescriptorMap} conveying the list of adapter (target)
  * types and the respective {@link AdapterFactory}.
+ * <p>
+ * A descriptor created from the {@link ComponentServiceObjects} of an adapter
+ * factory service may acquire the service object lazily on first use, such
+ * that adapter factories which are never used are never activated. The
+ * service object is released once the descriptor is {@link #release()
+ * released}. The descriptors replacing each other when the properties of the
+ * service are modified share the service object.
  */
 public class AdapterFactoryDescriptor {
 
-    private final AdapterFactory factory;
+    private static final Logger log = LoggerFactory.getLogger(AdapterFactoryDescriptor.class);
+
+    private final ServiceHolder holder;
+
+    /**
+     * Set once the adapter factory has been unregistered or the descriptor
+     * has been replaced by an {@link #update(String[], String[]) updated}
+     * one. The adaption is not registered for the descriptor then.
+     */
+    private boolean released;
 
     private final String[] adapters;
 
     private final String[] adaptables;
 
+    private final FactoryMetrics metrics;
+
     private volatile ServiceRegistration<Adaption> adaption;
 
     public AdapterFactoryDescriptor(final AdapterFactory factory, final String[] adapters, final String[] adaptables) {
-        this.factory = factory;
+        this(factory, adapters, adaptables, null);
+    }
+
+    AdapterFactoryDescriptor(
+            final AdapterFactory factory,
+            final String[] adapters,
+            final String[] adaptables,
+            final FactoryMetrics metrics) {
+        this(new ServiceHolder(null, factory), adapters, adaptables, metrics);
+    }
+
+    /**
+     * Creates a descriptor of an adapter factory service.
+     *
+     * @param serviceObjects The service objects of the adapter factory
+     * @param factory The service object already acquired from the
+     *            <code>serviceObjects</code> or <code>null</code> to acquire
+     *            it on first use.
+     */
+    AdapterFactoryDescriptor(
+            final ComponentServiceObjects<AdapterFactory> serviceObjects,
+            final AdapterFactory factory,
+            final String[] adapters,
+            final String[] adaptables,
+            final FactoryMetrics metrics) {
+        this(new ServiceHolder(serviceObjects, factory), adapters, adaptables, metrics);
+    }
+
+    private AdapterFactoryDescriptor(
+            final ServiceHolder holder,
+            final String[] adapters,
+            final String[] adaptables,
+            final FactoryMetrics metrics) {
+        this.holder = holder;
         this.adapters = adapters;
         this.adaptables = adaptables;
+        this.metrics = metrics;
     }
 
+    /**
+     * Returns the adapter factory, acquiring the service object on first use
+     * if it has not been acquired yet. Returns <code>null</code> if the
+     * service object is not available (anymore).
+     */
     public AdapterFactory getFactory() {
-        return factory;
+        final AdapterFactory f = holder.factory;
+        return f != null || holder.serviceObjects == null ? f : holder.acquire();
+    }
+
+    /**
+     * Returns <code>true</code> if the adapter factory service object is
+     * currently held by this descriptor.
+     */
+    boolean isAcquired() {
+        return holder.factory != null;
+    }
+
+    /**
+     * Returns the adapter factory if it is currently held by this descriptor
+     * without acquiring it, <code>null</code> otherwise.
+     */
+    AdapterFactory getAcquiredFactory() {
+        return holder.factory;
+    }
+
+    /**
+     * Returns a descriptor of the same adapter factory service with modified
+     * adaptable and adapter classes. The new descriptor takes over the
+     * metrics and the adaption of this descriptor, which is released, and
+     * shares its service object. This descriptor thus keeps adapting, and
+     * acquires a lazy service object on first use, until the registry with
+     * the new descriptor is published and while adaptions started before are
+     * in progress. The service object is only released with the descriptor
+     * replacing this one.
+     */
+    synchronized AdapterFactoryDescriptor update(final String[] newAdapters, final String[] newAdaptables) {
+        final AdapterFactoryDescriptor updated =
+                new AdapterFactoryDescriptor(holder, newAdapters, newAdaptables, metrics);
+        updated.adaption = adaption;
+        adaption = null;
+        released = true;
+        return updated;
+    }
+
+    /**
+     * Returns <code>true</code> if the descriptor has been released because
+     * the adapter factory has been unregistered or its properties have been
+     * modified.
+     */
+    synchronized boolean isReleased() {
+        return released;
+    }
+
+    /**
+     * Releases the adapter factory service object if it has been acquired.
+     * The service object is not acquired again afterwards.
+     */
+    synchronized void release() {
+        released = true;
+        holder.release();
     }
 
     public String[] getAdapters() {
@@ -55,6 +169,14 @@ public class AdapterFactoryDescriptor {
         return adaptables;
     }
 
+    /**
+     * Returns the metrics of the adapter factory or <code>null</code> if the
+     * invocations of the factory are not counted.
+     */
+    FactoryMetrics getMetrics() {
+        return metrics;
+    }
+
     public ServiceRegistration<Adaption> getAdaption() {
         return adaption;
     }
@@ -62,4 +184,58 @@ public class AdapterFactoryDescriptor {
     public void setAdaption(final ServiceRegistration<Adaption> adaption) {
         this.adaption = adaption;
     }
+
+    /**
+     * The service object of an adapter factory service, shared by the
+     * descriptors replacing each other when the properties of the service
+     * are modified, such that it is acquired and released once.
+     */
+    private static final class ServiceHolder {
+
+        private final ComponentServiceObjects<AdapterFactory> serviceObjects;
+
+        private volatile AdapterFactory factory;
+
+        /**
+         * Set once the service object cannot be acquired or has been
+         * released. No further attempts to acquire the service object are
+         * made then.
+         */
+        private boolean unavailable;
+
+        ServiceHolder(final ComponentServiceObjects<AdapterFactory> serviceObjects, final AdapterFactory factory) {
+            this.serviceObjects = serviceObjects;
+            this.factory = factory;
+        }
+
+        synchronized AdapterFactory acquire() {
+            if (factory == null && !unavailable) {
+                try {
+                    factory = serviceObjects.getService();
+                } catch (final IllegalStateException ise) {
+                    // the service has been unregistered concurrently
+                }
+                if (factory == null) {
+                    unavailable = true;
+                    log.warn(
+                            "Unable to get adapter factory service {}, it is ignored until registered again",
+                            serviceObjects.getServiceReference());
+                }
+            }
+            return factory;
+        }
+
+        synchronized void release() {
+            unavailable = true;
+            final AdapterFactory f = factory;
+            if (f != null && serviceObjects != null) {
+                factory = null;
+                try {
+                    serviceObjects.ungetService(f);
+                } catch (final IllegalStateException | IllegalArgumentException ignore) {
+                    // the service or the component is already gone
+                }
+            }
+        }
+    }
 }
@@ -39,4 +39,15 @@ import org.osgi.framework.ServiceReference;
 public class AdapterFactoryDescriptorMap extends TreeMap<ServiceReference<AdapterFactory>, AdapterFactoryDescriptor> {
 
     private static final long serialVersionUID = 2L;
+
+    public AdapterFactoryDescriptorMap() {
+        super();
+    }
+
+    /**
+     * Creates a copy of the given map using the same ordering.
+     */
+    public AdapterFactoryDescriptorMap(final AdapterFactoryDescriptorMap map) {
+        super(map);
+    }
 }
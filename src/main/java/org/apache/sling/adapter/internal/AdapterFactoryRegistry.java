@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.sling.api.adapter.AdapterFactory;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * The <code>AdapterFactoryRegistry</code> is an immutable snapshot of the
+ * registered adapter factories: a map of {@link AdapterFactoryDescriptorMap}
+ * instances indexed by the fully qualified class names listed in the
+ * {@link AdapterFactory#ADAPTABLE_CLASSES} property of the
+ * {@link AdapterFactory} services.
+ * <p>
+ * Registration changes never modify a registry. Instead a copy with the change
+ * applied is created which has the next generation number. Only the
+ * {@link AdapterFactoryDescriptorMap} instances of the affected adaptable
+ * names are copied, all others are shared with the previous snapshot. The
+ * maps indexing them are {@link PersistentHashMap} instances sharing all but
+ * the changed paths with the previous snapshot, such that a change costs time
+ * logarithmic in the number of adaptable names and references plus the copy
+ * of the affected descriptor maps. Readers can thus use a registry without any
+ * synchronization.
+ * <p>
+ * The registry also indexes the descriptors by service reference, such that
+ * unregistering an adapter factory only touches the descriptor maps of the
+ * adaptable names it has been registered for.
+ */
+final class AdapterFactoryRegistry {
+
+    /**
+     * The initial registry without any adapter factories.
+     */
+    static final AdapterFactoryRegistry EMPTY =
+            new AdapterFactoryRegistry(0, PersistentHashMap.empty(), PersistentHashMap.empty());
+
+    private final long generation;
+
+    private final PersistentHashMap<String, AdapterFactoryDescriptorMap> descriptors;
+
+    /**
+     * The registered descriptors indexed by their service reference.
+     */
+    private final PersistentHashMap<ServiceReference<AdapterFactory>, AdapterFactoryDescriptor> references;
+
+    private AdapterFactoryRegistry(
+            final long generation,
+            final PersistentHashMap<String, AdapterFactoryDescriptorMap> descriptors,
+            final PersistentHashMap<ServiceReference<AdapterFactory>, AdapterFactoryDescriptor> references) {
+        this.generation = generation;
+        this.descriptors = descriptors;
+        this.references = references;
+    }
+
+    /**
+     * Returns the generation number of this registry. Each registration change
+     * creates a registry with a higher generation number.
+     */
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Returns the unmodifiable map of {@link AdapterFactoryDescriptorMap}
+     * instances indexed by adaptable class name. The descriptor maps must not
+     * be modified either.
+     */
+    Map<String, AdapterFactoryDescriptorMap> getDescriptors() {
+        return descriptors;
+    }
+
+    /**
+     * Returns the {@link AdapterFactoryDescriptorMap} for the given adaptable
+     * class name or <code>null</code> if no factory has ever been registered
+     * for that name. The returned map must not be modified.
+     */
+    AdapterFactoryDescriptorMap get(final String adaptable) {
+        return descriptors.get(adaptable);
+    }
+
+    /**
+     * Returns the descriptor registered for the given service
+     * <code>reference</code> or <code>null</code> if the reference is not
+     * registered.
+     */
+    AdapterFactoryDescriptor getDescriptor(final ServiceReference<AdapterFactory> reference) {
+        return references.get(reference);
+    }
+
+    /**
+     * Returns a new registry with the <code>descriptor</code> registered for
+     * the service <code>reference</code> under all its adaptable names.
+     */
+    AdapterFactoryRegistry register(
+            final ServiceReference<AdapterFactory> reference, final AdapterFactoryDescriptor descriptor) {
+        PersistentHashMap<String, AdapterFactoryDescriptorMap> newDescriptors = descriptors;
+        for (final String adaptable : descriptor.getAdaptables()) {
+            final AdapterFactoryDescriptorMap oldMap = newDescriptors.get(adaptable);
+            final AdapterFactoryDescriptorMap newMap =
+                    oldMap == null ? new AdapterFactoryDescriptorMap() : new AdapterFactoryDescriptorMap(oldMap);
+            newMap.put(reference, descriptor);
+            newDescriptors = newDescriptors.with(adaptable, newMap);
+        }
+        return new AdapterFactoryRegistry(generation + 1, newDescriptors, references.with(reference, descriptor));
+    }
+
+    /**
+     * Returns a new registry with the <code>descriptor</code> registered for
+     * the service <code>reference</code> instead of the descriptor registered
+     * for it so far. The descriptor maps of the old and new adaptable names
+     * are rebuilt to reflect a changed ranking of the reference as well. If
+     * neither the descriptor nor the order of any map changes, this registry
+     * is returned.
+     */
+    AdapterFactoryRegistry update(
+            final ServiceReference<AdapterFactory> reference, final AdapterFactoryDescriptor descriptor) {
+        final AdapterFactoryDescriptor oldDescriptor = references.get(reference);
+        if (oldDescriptor == null) {
+            return register(reference, descriptor);
+        }
+        final Set<String> names = new LinkedHashSet<>(Arrays.asList(oldDescriptor.getAdaptables()));
+        final Set<String> newNames = new HashSet<>(Arrays.asList(descriptor.getAdaptables()));
+        names.addAll(newNames);
+
+        PersistentHashMap<String, AdapterFactoryDescriptorMap> newDescriptors = descriptors;
+        for (final String adaptable : names) {
+            // rebuild instead of copying the map, which would keep the order
+            final AdapterFactoryDescriptorMap oldMap = descriptors.get(adaptable);
+            final AdapterFactoryDescriptorMap newMap = new AdapterFactoryDescriptorMap();
+            if (oldMap != null) {
+                for (final Map.Entry<ServiceReference<AdapterFactory>, AdapterFactoryDescriptor> entry :
+                        oldMap.entrySet()) {
+                    if (entry.getKey() != reference) {
+                        newMap.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            if (newNames.contains(adaptable)) {
+                newMap.put(reference, descriptor);
+            }
+            if (oldMap == null || !isSameOrder(oldMap, newMap)) {
+                newDescriptors = newDescriptors.with(adaptable, newMap);
+            }
+        }
+        if (newDescriptors == descriptors && oldDescriptor == descriptor) {
+            return this;
+        }
+        return new AdapterFactoryRegistry(generation + 1, newDescriptors, references.with(reference, descriptor));
+    }
+
+    /**
+     * Returns <code>true</code> if both maps contain the same descriptors for
+     * the same references in the same order.
+     */
+    private static boolean isSameOrder(final AdapterFactoryDescriptorMap map, final AdapterFactoryDescriptorMap other) {
+        if (map.size() != other.size()) {
+            return false;
+        }
+        final Iterator<Map.Entry<ServiceReference<AdapterFactory>, AdapterFactoryDescriptor>> entries =
+                other.entrySet().iterator();
+        for (final Map.Entry<ServiceReference<AdapterFactory>, AdapterFactoryDescriptor> entry : map.entrySet()) {
+            final Map.Entry<ServiceReference<AdapterFactory>, AdapterFactoryDescriptor> otherEntry = entries.next();
+            if (entry.getKey() != otherEntry.getKey() || entry.getValue() != otherEntry.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a new registry without any descriptor registered for the service
+     * <code>reference</code>. If the reference is not registered, this
+     * registry is returned.
+     */
+    AdapterFactoryRegistry unregister(final ServiceReference<AdapterFactory> reference) {
+        final AdapterFactoryDescriptor descriptor = references.get(reference);
+        if (descriptor == null) {
+            return this;
+        }
+        PersistentHashMap<String, AdapterFactoryDescriptorMap> newDescriptors = descriptors;
+        for (final String adaptable : descriptor.getAdaptables()) {
+            final AdapterFactoryDescriptorMap oldMap = newDescriptors.get(adaptable);
+            if (oldMap != null && oldMap.containsKey(reference)) {
+                final AdapterFactoryDescriptorMap newMap = new AdapterFactoryDescriptorMap(oldMap);
+                newMap.remove(reference);
+                newDescriptors = newDescriptors.with(adaptable, newMap);
+            }
+        }
+        return new AdapterFactoryRegistry(generation + 1, newDescriptors, references.without(reference));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import org.apache.sling.adapter.AdapterLookup;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The <code>AdapterLookupImpl</code> keeps the adapter factories resolved for
+ * its adaptable class and target type together with the generation of the
+ * registry they have been resolved from. A warm lookup only compares that
+ * generation with the current one before invoking the adapter factories.
+ */
+final class AdapterLookupImpl<AdapterType> implements AdapterLookup<AdapterType> {
+
+    /**
+     * The adapter factories resolved for the registry of the given
+     * generation. Being immutable, bindings can be shared between threads
+     * without synchronization.
+     */
+    record Binding(long generation, AdapterFactoryDescriptor[] factories) {}
+
+    private final AdapterManagerImpl manager;
+
+    private final Class<?> adaptableType;
+
+    private final Class<AdapterType> type;
+
+    /**
+     * The current binding, possibly outdated. Concurrent threads may replace
+     * it at the same time, which is harmless as bindings are immutable.
+     */
+    private Binding binding;
+
+    AdapterLookupImpl(final AdapterManagerImpl manager, final Class<?> adaptableType, final Class<AdapterType> type) {
+        this.manager = manager;
+        this.adaptableType = adaptableType;
+        this.type = type;
+    }
+
+    @Override
+    public @NotNull Class<?> getAdaptableType() {
+        return adaptableType;
+    }
+
+    @Override
+    public @NotNull Class<AdapterType> getAdapterType() {
+        return type;
+    }
+
+    @Override
+    public @Nullable AdapterType adapt(final @NotNull Object adaptable) {
+        if (adaptable.getClass() != adaptableType) {
+            return manager.getAdapter(adaptable, type);
+        }
+
+        Binding current = this.binding;
+        if (current == null || current.generation() != manager.getRegistryGeneration()) {
+            current = manager.bindLookup(adaptableType, type);
+            if (current == null) {
+                // the registry keeps changing, do not bind for now
+                return manager.getAdapter(adaptable, type);
+            }
+            this.binding = current;
+        }
+        return manager.adapt(adaptable, type, current.factories());
+    }
+
+    @Override
+    public String toString() {
+        return "AdapterLookup[" + adaptableType.getName() + " -> " + type.getName() + "]";
+    }
+}
@@ -20,30 +20,57 @@ package org.apache.sling.adapter.internal;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.sling.adapter.AdapterLookup;
+import org.apache.sling.adapter.Adapters;
 import org.apache.sling.adapter.Adaption;
+import org.apache.sling.adapter.ExtendedAdapterManager;
 import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.adapter.AdapterFactory;
 import org.apache.sling.api.adapter.AdapterManager;
 import org.apache.sling.api.adapter.SlingAdaptable;
+import org.jetbrains.annotations.NotNull;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.ComponentServiceObjects;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicy;
-import org.osgi.service.packageadmin.PackageAdmin;
-import org.osgi.util.converter.Converter;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.osgi.service.metatype.annotations.Option;
 import org.osgi.util.converter.Converters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -53,46 +80,317 @@ import static org.apache.sling.api.adapter.AdapterFactory.ADAPTER_CLASSES;
 
 /**
  * The <code>AdapterManagerImpl</code> class implements the
- * {@link AdapterManager} interface and is registered as a service for that
- * interface to be used by any clients.
+ * {@link AdapterManager} and {@link ExtendedAdapterManager} interfaces and is
+ * registered as a service for these interfaces to be used by any clients.
  *
  */
 @Component(
-        service = AdapterManager.class,
+        service = {AdapterManager.class, ExtendedAdapterManager.class, AdapterFactoryCacheMBean.class},
         immediate = true,
         property = {
             Constants.SERVICE_DESCRIPTION + "=Sling Adapter Manager",
-            Constants.SERVICE_VENDOR + "=The Apache Software Foundation"
+            Constants.SERVICE_VENDOR + "=The Apache Software Foundation",
+            "jmx.objectname=org.apache.sling.adapter:type=AdapterFactoryCache"
         })
-public class AdapterManagerImpl implements AdapterManager {
+@Designate(ocd = AdapterManagerImpl.Config.class)
+public class AdapterManagerImpl implements ExtendedAdapterManager, AdapterFactoryCacheMBean {
+
+    @ObjectClassDefinition(
+            name = "Apache Sling Adapter Manager",
+            description = "The adapter manager invokes the registered adapter factories to adapt objects.")
+    public @interface Config {
+
+        @AttributeDefinition(
+                name = "Compile Hot Adaptions",
+                description = "Whether to compile the adapter factories of frequently adapted adaptable "
+                        + "classes and target types into dispatchers the JIT compiler can inline. The "
+                        + "adapter factory invocations of compiled adaptions are not counted individually "
+                        + "and are not checked for being slow by the adapter metrics.")
+        boolean dispatcher_enabled() default false;
+
+        @AttributeDefinition(
+                name = "Hotness Threshold",
+                description = "The number of adaptions of an adaptable class to a target type after which "
+                        + "the adapter factories are compiled.")
+        int dispatcher_threshold() default DEFAULT_DISPATCHER_THRESHOLD;
+
+        @AttributeDefinition(
+                name = "Resolution Engine",
+                description = "How the resolved adapter factories are cached: \"map\" indexes them by class "
+                        + "in hash maps, \"indexed\" assigns integer ids to the adaptable classes and target "
+                        + "types and keeps the adapter factories in flat tables indexed by these ids.",
+                options = {
+                    @Option(label = "Hash maps", value = ENGINE_MAP),
+                    @Option(label = "Integer indexed tables", value = ENGINE_INDEXED)
+                })
+        String engine() default ENGINE_MAP;
+
+        @AttributeDefinition(
+                name = "Maximum Cache Size",
+                description = "The maximum number of adaptable classes whose adapter factories are cached. "
+                        + "If set, the least recently used entries are evicted beyond this size. "
+                        + "0 means the cache is not bounded. The cache never prevents the adaptable classes "
+                        + "from being garbage collected.")
+        int cache_max_size() default 0;
+
+        @AttributeDefinition(
+                name = "Share Generated Classes",
+                description = "Whether generated adaptable classes like JDK proxies, lambdas and byte code "
+                        + "enhanced classes share the cached adapter factories with all generated classes of the "
+                        + "same first regular super class and implemented interfaces. Generated classes with "
+                        + "adapter factories registered for their own names are resolved on their own.")
+        boolean generated_classes_shared() default false;
+
+        @AttributeDefinition(
+                name = "Generated Class Markers",
+                description = "Substrings of the names of generated classes. JDK proxies, synthetic and hidden "
+                        + "classes are always considered generated.")
+        String[] generated_class_markers() default {"$$", "$ByteBuddy$", "$HibernateProxy$"};
+
+        @AttributeDefinition(
+                name = "Lazy Adapter Factories",
+                description = "Whether the adapter factory services are only acquired when they are used for "
+                        + "the first time instead of when they are registered. Adapter factories never used "
+                        + "are then never activated. Applies to adapter factories registered after the change.")
+        boolean factories_lazy() default false;
+
+        @AttributeDefinition(
+                name = "Adaption Services",
+                description = "How the Adaption marker services announcing the available adaptions are "
+                        + "registered: \"factory\" registers one service per adapter factory, \"bundle\" a "
+                        + "single service per bundle providing adapter factories listing the adaptable and "
+                        + "adapter classes of all its adapter factories. Applies to adapter factories "
+                        + "registered after the change.",
+                options = {
+                    @Option(label = "One per adapter factory", value = ADAPTIONS_FACTORY),
+                    @Option(label = "Aggregated per bundle", value = ADAPTIONS_BUNDLE)
+                })
+        String adaption_services() default ADAPTIONS_FACTORY;
+
+        @AttributeDefinition(
+                name = "Registration Coalescing Window",
+                description = "The number of milliseconds without further adapter factory registration "
+                        + "changes after which the changes are applied together. While the framework is "
+                        + "starting, the changes are applied once it has started. Lookups use the adapter "
+                        + "factories registered before until then. 0 applies every change immediately.")
+        int registration_coalescing_ms() default 0;
+    }
+
+    static final int DEFAULT_DISPATCHER_THRESHOLD = 10_000;
+
+    static final String ENGINE_MAP = "map";
+
+    static final String ENGINE_INDEXED = "indexed";
+
+    static final String ADAPTIONS_FACTORY = "factory";
+
+    static final String ADAPTIONS_BUNDLE = "bundle";
+
+    /**
+     * The maximum number of coalescing windows registration changes are
+     * staged for if further changes keep arriving.
+     */
+    private static final int MAX_COALESCING_WINDOWS = 10;
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     static final String ALLOWED_IN_PRIVATE = "adapter.allowed.in.private.package";
 
     /**
-     * A map of {@link AdapterFactoryDescriptorMap} instances. The map is
-     * indexed by the fully qualified class names listed in the
-     * {@link AdapterFactory#ADAPTABLE_CLASSES} property of the
-     * {@link AdapterFactory} services.
+     * The current immutable snapshot of the registered adapter factories.
+     * Readers use it without any locking, writers replace it while holding
+     * the {@link #registryLock}.
      *
-     * @see AdapterFactoryDescriptorMap
+     * @see AdapterFactoryRegistry
+     */
+    private volatile AdapterFactoryRegistry registry = AdapterFactoryRegistry.EMPTY;
+
+    /**
+     * The lock serializing the changes to the {@link #registry}.
      */
-    private final Map<String, AdapterFactoryDescriptorMap> descriptors = new HashMap<>();
+    private final Object registryLock = new Object();
 
     /**
-     * Matrix of {@link AdapterFactoryDescriptor} instances primarily indexed by the fully
-     * qualified name of the class to be adapted and secondarily indexed by the
-     * fully qualified name of the class to adapt to (the target class).
+     * Matrix of {@link AdapterFactoryDescriptor} instances primarily indexed by the
+     * class to be adapted and secondarily indexed by the class to adapt to (the
+     * target class). Both indexes are keyed by the identity of the <code>Class</code>, so
+     * a warm lookup only requires identity based hashing and same named classes
+     * from different class loaders (e.g. after a bundle refresh) are kept apart.
      * <p>
      * This cache is built on demand by calling the
-     * {@link #getAdapterFactories(Class)} method. It is cleared
-     * whenever an adapter factory is registered on unregistered.
+     * {@link #getAdapterFactories(Class)} method. Whenever an adapter factory
+     * is registered or unregistered, only the entries depending on the
+     * adaptable classes of that factory are removed, see
+     * {@link #invalidateFactoryCache(String[])}.
+     * <p>
+     * The cache is a {@link BoundedFactoryCache}, which does not keep the
+     * adaptable classes reachable, such that the class loaders of refreshed
+     * or uninstalled bundles can be collected. It is only bounded if a maximum
+     * cache size is configured. The cache is only replaced while holding the
+     * {@link #registryLock}.
+     */
+    private volatile BoundedFactoryCache factoryCache = new BoundedFactoryCache(0);
+
+    /**
+     * The type orders of the adaptable classes, owned by this instance such
+     * that they are dropped with it.
+     */
+    private final TypeOrder.Cache typeOrders = new TypeOrder.Cache();
+
+    /**
+     * The number of registration events which invalidated the factory cache.
      */
-    private final ConcurrentMap<String, Map<String, List<AdapterFactoryDescriptor>>> factoryCache =
+    private final AtomicLong cacheInvalidations = new AtomicLong();
+
+    /**
+     * The total number of factory cache entries evicted by registration events.
+     */
+    private final AtomicLong cacheEvictions = new AtomicLong();
+
+    /**
+     * The number of factory cache entries evicted by the last registration event.
+     */
+    private volatile int lastCacheEvictions;
+
+    /**
+     * The epoch of the factory cache. It is incremented before and after each
+     * registry change, thus it is odd while the registry is being replaced and
+     * the affected cache entries are being evicted. Cache fills are only kept
+     * if the epoch was even and has not moved while the entry was computed.
+     * The epoch is checked and the entry is put while holding the
+     * {@link #registryLock}, such that no entry computed against a replaced
+     * registry ever becomes visible once the affected entries have been
+     * evicted. Otherwise such an entry could be merged into the entry of an
+     * extending class computed after the registry change.
+     */
+    private final AtomicLong cacheEpoch = new AtomicLong();
+
+    /**
+     * The number of computed cache entries which were discarded because the
+     * registry changed during their computation.
+     */
+    private final AtomicLong rejectedCacheFills = new AtomicLong();
+
+    /**
+     * The cache entries currently being computed. Threads missing the cache for
+     * a class already being computed wait for that computation instead of
+     * running their own.
+     */
+    private final ConcurrentMap<Class<?>, CompletableFuture<AdaptableFactories>> pendingCacheFills =
             new ConcurrentHashMap<>();
 
-    private final PackageAdmin packageAdmin;
+    /**
+     * The number of computed cache entries.
+     */
+    private final AtomicLong cacheFills = new AtomicLong();
+
+    /**
+     * The number of cache misses served by waiting for the computation of
+     * another thread.
+     */
+    private final AtomicLong coalescedCacheFills = new AtomicLong();
+
+    /**
+     * The maximum number of attempts to compute a cache entry not affected by
+     * a concurrent registry change before the last result is used uncached.
+     */
+    private static final int MAX_CACHE_FILL_ATTEMPTS = 3;
+
+    private final PackageExportIndex packageExports;
+
+    private final AdapterMetrics metrics;
+
+    /**
+     * The number of adaptions of an adaptable class to a target type after
+     * which the adapter factories are compiled into a dispatcher or
+     * <code>0</code> if no dispatchers are compiled.
+     */
+    private volatile int dispatcherThreshold;
+
+    /**
+     * The type index of the indexed resolution engine or <code>null</code>
+     * if the map based engine is used. The index is only replaced while
+     * holding the {@link #registryLock}.
+     */
+    private volatile AdapterTypeIndex typeIndex;
+
+    /**
+     * The substrings of the names of generated adaptable classes or
+     * <code>null</code> if generated classes do not share cache entries.
+     */
+    private volatile String[] generatedClassMarkers;
+
+    /**
+     * Whether adapter factory service objects are acquired on first use.
+     */
+    private volatile boolean lazyFactories;
+
+    /**
+     * Whether the Adaption services are aggregated per bundle.
+     */
+    private volatile boolean aggregatedAdaptions;
+
+    /**
+     * The Adaption services aggregated per bundle.
+     */
+    private final AggregatedAdaptions adaptions = new AggregatedAdaptions();
+
+    private final BundleContext bundleContext;
+
+    private final FrameworkListener frameworkListener = this::frameworkEvent;
+
+    /**
+     * The window in milliseconds registration changes are coalesced for or
+     * <code>0</code> if they are published immediately.
+     */
+    private volatile int coalescingMillis;
+
+    /**
+     * Whether the framework is still starting. Coalesced registration changes
+     * are published once it has started.
+     */
+    private volatile boolean frameworkStarting;
+
+    /**
+     * The registry with the coalesced registration changes applied or
+     * <code>null</code> if no change is pending. Guarded by the
+     * {@link #registryLock} like all pending state.
+     */
+    private AdapterFactoryRegistry pendingRegistry;
+
+    /**
+     * The adaptable names whose adapter factories have been changed by the
+     * pending registration changes.
+     */
+    private final Set<String> pendingAdaptables = new LinkedHashSet<>();
+
+    /**
+     * The adapter factories registered by the pending registration changes
+     * whose adaptions are registered once the changes are published.
+     */
+    private final Map<ServiceReference<AdapterFactory>, AdapterFactoryDescriptor> pendingAdaptions =
+            new LinkedHashMap<>();
+
+    /**
+     * The time in nanoseconds at which the first pending flush was scheduled.
+     */
+    private long pendingSince;
+
+    private ScheduledFuture<?> pendingFlush;
+
+    private ScheduledExecutorService coalescingExecutor;
+
+    /**
+     * The cache entries shared by the generated adaptable classes of the same
+     * shape. Entries are evicted like the entries of the {@link #factoryCache}
+     * and expunged once a class of their shape has been garbage collected.
+     */
+    private final ConcurrentMap<AdaptableShape.Key, AdaptableFactories> sharedFactories = new ConcurrentHashMap<>();
+
+    /**
+     * Canonicalizes the adaptable and adapter names of the registrations.
+     */
+    private final NameInterner interner = new NameInterner();
 
     // ---------- AdapterManager interface -------------------------------------
 
@@ -106,65 +404,432 @@ public class AdapterManagerImpl implements AdapterManager {
     public <AdapterType> AdapterType getAdapter(final Object adaptable, final Class<AdapterType> type) {
 
         // get the adapter factories for the type of adaptable object
-        final Map<String, List<AdapterFactoryDescriptor>> factories = getAdapterFactories(adaptable.getClass());
+        final AdaptableFactories factories = getAdapterFactories(adaptable.getClass());
+
+        // get the factories for the target type
+        final TargetFactories targetFactories = factories.getTargetFactories(type);
+
+        // use the compiled dispatcher of hot adaptions, unless debug logging
+        // of the individual adapter factory invocations is requested
+        final int threshold = this.dispatcherThreshold;
+        if (threshold > 0 && !log.isDebugEnabled()) {
+            final AdapterDispatcher dispatcher = targetFactories.getDispatcher(threshold);
+            if (dispatcher != null) {
+                return dispatch(dispatcher, adaptable, type);
+            }
+        }
+
+        return adapt(adaptable, type, targetFactories.getFactories());
+    }
+
+    // ---------- ExtendedAdapterManager interface -----------------------------
+
+    /**
+     * Returns the adapters of the <code>adaptables</code> resolving the
+     * adapter factories once per class of adaptables.
+     *
+     * @see org.apache.sling.adapter.ExtendedAdapterManager#getAdapters(java.lang.Iterable, java.lang.Class)
+     */
+    @Override
+    public <AdapterType> @NotNull List<AdapterType> getAdapters(
+            final @NotNull Iterable<?> adaptables, final @NotNull Class<AdapterType> type) {
+        final Map<Class<?>, AdapterFactoryDescriptor[]> groups = new HashMap<>();
+        final List<AdapterType> adapters = new ArrayList<>();
+        for (final Object adaptable : adaptables) {
+            if (adaptable == null) {
+                adapters.add(null);
+            } else {
+                adapters.add(adapt(adaptable, type, getAdapterFactories(groups, adaptable.getClass(), type)));
+            }
+        }
+        return adapters;
+    }
 
-        // get the factory for the target type
-        final List<AdapterFactoryDescriptor> descList = factories.get(type.getName());
+    /**
+     * Returns the adapters of the <code>adaptables</code> resolving the
+     * adapter factories once per class of adaptables and invoking them by
+     * tasks run by the <code>executor</code>.
+     *
+     * @see org.apache.sling.adapter.ExtendedAdapterManager#getAdapters(java.lang.Iterable, java.lang.Class, java.util.concurrent.Executor)
+     */
+    @Override
+    public <AdapterType> @NotNull List<AdapterType> getAdapters(
+            final @NotNull Iterable<?> adaptables,
+            final @NotNull Class<AdapterType> type,
+            final @NotNull Executor executor) {
+        final Map<Class<?>, AdapterFactoryDescriptor[]> groups = new HashMap<>();
+        final List<CompletableFuture<AdapterType>> futures = new ArrayList<>();
+        for (final Object adaptable : adaptables) {
+            if (adaptable == null) {
+                futures.add(CompletableFuture.completedFuture(null));
+            } else {
+                final AdapterFactoryDescriptor[] factories = getAdapterFactories(groups, adaptable.getClass(), type);
+                if (factories.length == 0) {
+                    // nothing to invoke, no need to hand over to the executor
+                    futures.add(CompletableFuture.completedFuture(adapt(adaptable, type, factories)));
+                } else {
+                    futures.add(CompletableFuture.supplyAsync(() -> adapt(adaptable, type, factories), executor));
+                }
+            }
+        }
 
-        if (descList != null && descList.size() > 0) {
-            for (AdapterFactoryDescriptor desc : descList) {
+        // wait for all tasks before reporting the first failure
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .handle((result, failure) -> null)
+                .join();
+        final List<AdapterType> adapters = new ArrayList<>(futures.size());
+        for (final CompletableFuture<AdapterType> future : futures) {
+            adapters.add(join(future));
+        }
+        return adapters;
+    }
+
+    /**
+     * Returns the adapters of the <code>adaptable</code> to all
+     * <code>types</code> looking up the adapter factories of the class of the
+     * adaptable only once.
+     *
+     * @see org.apache.sling.adapter.ExtendedAdapterManager#resolveAdapters(java.lang.Object, java.lang.Class[])
+     */
+    @Override
+    public @NotNull Adapters resolveAdapters(final @NotNull Object adaptable, final @NotNull Class<?>... types) {
+        final AdaptableFactories factories = getAdapterFactories(adaptable.getClass());
+        final Class<?>[] resolvedTypes = types.clone();
+        final Object[] adapters = new Object[resolvedTypes.length];
+        for (int i = 0; i < resolvedTypes.length; i++) {
+            adapters[i] = adapt(adaptable, resolvedTypes[i], factories.getFactories(resolvedTypes[i]));
+        }
+        return new AdaptersImpl(resolvedTypes, adapters);
+    }
+
+    /**
+     * Returns a handle adapting instances of the <code>adaptableType</code>
+     * to the <code>type</code> without looking up the factory cache.
+     *
+     * @see org.apache.sling.adapter.ExtendedAdapterManager#getAdapterLookup(java.lang.Class, java.lang.Class)
+     */
+    @Override
+    public <AdapterType> @NotNull AdapterLookup<AdapterType> getAdapterLookup(
+            final @NotNull Class<?> adaptableType, final @NotNull Class<AdapterType> type) {
+        return new AdapterLookupImpl<>(this, adaptableType, type);
+    }
+
+    /**
+     * Resolves the adapter factories for an {@link AdapterLookupImpl} together
+     * with the generation of the registry they have been resolved from. The
+     * factories are only bound if no registry change is in progress and none
+     * happened while resolving them, since otherwise the factory cache may not
+     * yet reflect the registry of that generation.
+     *
+     * @return The binding or <code>null</code> if the registry kept changing.
+     */
+    AdapterLookupImpl.Binding bindLookup(final Class<?> adaptableType, final Class<?> type) {
+        for (int attempt = 0; attempt < MAX_CACHE_FILL_ATTEMPTS; attempt++) {
+            final long epoch = this.cacheEpoch.get();
+            if ((epoch & 1) == 0) {
+                final long generation = this.registry.getGeneration();
+                final AdapterFactoryDescriptor[] factories =
+                        getAdapterFactories(adaptableType).getFactories(type);
+                if (this.cacheEpoch.get() == epoch) {
+                    return new AdapterLookupImpl.Binding(generation, factories);
+                }
+            }
+            Thread.onSpinWait();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the adapter factories adapting instances of the
+     * <code>adaptable</code> class to the <code>type</code> and remembers
+     * them in the <code>groups</code> for further adaptables of the same
+     * class.
+     */
+    private AdapterFactoryDescriptor[] getAdapterFactories(
+            final Map<Class<?>, AdapterFactoryDescriptor[]> groups, final Class<?> adaptable, final Class<?> type) {
+        AdapterFactoryDescriptor[] factories = groups.get(adaptable);
+        if (factories == null) {
+            factories = getAdapterFactories(adaptable).getFactories(type);
+            groups.put(adaptable, factories);
+        }
+        return factories;
+    }
+
+    /**
+     * Has the adapter factories in <code>descList</code> adapt the
+     * <code>adaptable</code> to the <code>type</code> until one of them
+     * returns an adapter.
+     */
+    <AdapterType> AdapterType adapt(
+            final Object adaptable, final Class<AdapterType> type, final AdapterFactoryDescriptor[] descList) {
+        // count the adaption and measure the latency of a sample of adaptions
+        final AdapterMetrics metrics = this.metrics;
+        final boolean measure = metrics.isEnabled();
+        final boolean timed = measure && metrics.sample();
+        final InvocationMetrics pairMetrics = measure ? metrics.getPairMetrics(adaptable.getClass(), type) : null;
+        final long start = timed ? System.nanoTime() : 0L;
+
+        // check the log level once and avoid the varargs arrays of the
+        // log methods when debug logging is disabled: a warm lookup must
+        // not allocate anything apart from the adapter itself
+        final boolean debug = log.isDebugEnabled();
+        try {
+            for (int i = 0; i < descList.length; i++) {
+                final AdapterFactoryDescriptor desc = descList[i];
                 final AdapterFactory factory = desc.getFactory();
 
                 // have the factory adapt the adaptable if the factory exists
                 if (factory != null) {
-                    log.debug("Trying adapter factory {} to map {} to {}", new Object[] {factory, adaptable, type});
+                    if (debug) {
+                        log.debug("Trying adapter factory {} to map {} to {}", factory, adaptable, type);
+                    }
 
-                    AdapterType adaptedObject = factory.getAdapter(adaptable, type);
+                    AdapterType adaptedObject = invokeFactory(desc, factory, adaptable, type, measure, timed);
                     if (adaptedObject != null) {
-                        log.debug("Using adapter factory {} to map {} to {}", new Object[] {factory, adaptable, type});
+                        if (debug) {
+                            log.debug("Using adapter factory {} to map {} to {}", factory, adaptable, type);
+                        }
+                        if (measure) {
+                            pairMetrics.recordSuccess(elapsed(start, timed));
+                        }
                         return adaptedObject;
                     }
                 }
             }
+        } catch (final RuntimeException | Error e) {
+            if (measure) {
+                pairMetrics.recordException(elapsed(start, timed));
+            }
+            throw e;
         }
 
         // no factory has been found, so we cannot adapt
-        log.debug("No adapter factory found to map {} to {}", adaptable, type);
+        if (debug) {
+            log.debug("No adapter factory found to map {} to {}", adaptable, type);
+        }
+        if (measure) {
+            pairMetrics.recordNull(elapsed(start, timed));
+        }
 
         return null;
     }
 
+    /**
+     * Has the compiled <code>dispatcher</code> adapt the <code>adaptable</code>
+     * to the <code>type</code>. Only the adaption as a whole is counted, the
+     * individual adapter factory invocations are neither counted nor checked
+     * for being slow.
+     */
+    @SuppressWarnings("unchecked")
+    private <AdapterType> AdapterType dispatch(
+            final AdapterDispatcher dispatcher, final Object adaptable, final Class<AdapterType> type) {
+        final AdapterMetrics metrics = this.metrics;
+        if (!metrics.isEnabled()) {
+            return (AdapterType) dispatcher.dispatch(adaptable, type);
+        }
+
+        final boolean timed = metrics.sample();
+        final long start = timed ? System.nanoTime() : 0L;
+        Object adaptedObject = null;
+        boolean failed = true;
+        try {
+            adaptedObject = dispatcher.dispatch(adaptable, type);
+            failed = false;
+        } finally {
+            final InvocationMetrics pairMetrics = metrics.getPairMetrics(adaptable.getClass(), type);
+            if (failed) {
+                pairMetrics.recordException(elapsed(start, timed));
+            } else if (adaptedObject != null) {
+                pairMetrics.recordSuccess(elapsed(start, timed));
+            } else {
+                pairMetrics.recordNull(elapsed(start, timed));
+            }
+        }
+        return (AdapterType) adaptedObject;
+    }
+
+    /**
+     * Has the <code>factory</code> adapt the <code>adaptable</code>, records
+     * the outcome in the metrics of the factory if <code>measure</code> is
+     * <code>true</code> and reports the invocation if it exceeds the slow
+     * invocation threshold.
+     */
+    private <AdapterType> AdapterType invokeFactory(
+            final AdapterFactoryDescriptor desc,
+            final AdapterFactory factory,
+            final Object adaptable,
+            final Class<AdapterType> type,
+            final boolean measure,
+            final boolean timed) {
+        final FactoryMetrics factoryMetrics = desc.getMetrics();
+        final long slowThreshold = this.metrics.getSlowThresholdNanos();
+        if (factoryMetrics == null || (!measure && slowThreshold == 0)) {
+            return factory.getAdapter(adaptable, type);
+        }
+
+        final boolean clocked = timed || slowThreshold > 0;
+        final long start = clocked ? System.nanoTime() : 0L;
+        final InvocationWatchdog.Slot watched =
+                slowThreshold > 0 ? this.metrics.watchInvocation(factoryMetrics, start) : null;
+        AdapterType adaptedObject = null;
+        boolean failed = true;
+        try {
+            adaptedObject = factory.getAdapter(adaptable, type);
+            failed = false;
+        } finally {
+            final long nanos = clocked ? System.nanoTime() - start : -1L;
+            if (watched != null) {
+                watched.end();
+            }
+            if (measure) {
+                final long latency = timed ? nanos : -1L;
+                if (failed) {
+                    factoryMetrics.recordException(latency);
+                } else if (adaptedObject != null) {
+                    factoryMetrics.recordSuccess(latency);
+                } else {
+                    factoryMetrics.recordNull(latency);
+                }
+            }
+            if (slowThreshold > 0 && nanos > slowThreshold) {
+                this.metrics.reportSlowInvocation(factoryMetrics, adaptable.getClass(), type, nanos, watched);
+            }
+        }
+        return adaptedObject;
+    }
+
+    /**
+     * Returns the nanoseconds elapsed since <code>start</code> if the
+     * adaption is <code>timed</code> and <code>-1</code> otherwise.
+     */
+    private static long elapsed(final long start, final boolean timed) {
+        return timed ? System.nanoTime() - start : -1L;
+    }
+
     // ----------- SCR integration ---------------------------------------------
 
     /**
      * Activate the manager.
-     * @param pckAdmin Required package admin
+     * @param ctx The bundle context
+     * @param packageExports Required package export index
+     * @param metrics Required adaption metrics
+     * @param config The configuration
      */
     @Activate
-    public AdapterManagerImpl(final @Reference PackageAdmin pckAdmin) {
-        this.packageAdmin = pckAdmin;
+    public AdapterManagerImpl(
+            final BundleContext ctx,
+            final @Reference PackageExportIndex packageExports,
+            final @Reference AdapterMetrics metrics,
+            final Config config) {
+        this.bundleContext = ctx;
+        this.packageExports = packageExports;
+        this.metrics = metrics;
+
+        // assume the framework is starting and register the listener before
+        // checking the state to not miss the event. The listener may already
+        // have been called, hence the flag is only ever cleared here
+        this.frameworkStarting = true;
+        ctx.addFrameworkListener(this.frameworkListener);
+        final Bundle framework = ctx.getBundle(Constants.SYSTEM_BUNDLE_ID);
+        final boolean started;
+        synchronized (this.registryLock) {
+            started = framework == null || framework.getState() != Bundle.STARTING;
+            if (started) {
+                this.frameworkStarting = false;
+            }
+        }
+        if (started) {
+            ctx.removeFrameworkListener(this.frameworkListener);
+            flushRegistrations();
+        }
+        modified(config);
 
         // "enable" this manager by setting the instance
         SlingAdaptable.setAdapterManager(this);
     }
 
+    /**
+     * Apply a modified configuration.
+     */
+    @Modified
+    protected void modified(final Config config) {
+        this.dispatcherThreshold = config.dispatcher_enabled() ? Math.max(1, config.dispatcher_threshold()) : 0;
+        final String[] markers = config.generated_classes_shared()
+                ? (config.generated_class_markers() != null ? config.generated_class_markers() : new String[0])
+                : null;
+        this.lazyFactories = config.factories_lazy();
+        this.aggregatedAdaptions = ADAPTIONS_BUNDLE.equals(config.adaption_services());
+        if (!this.aggregatedAdaptions && !ADAPTIONS_FACTORY.equals(config.adaption_services())) {
+            log.warn("Unknown adaption services mode {}, using {}", config.adaption_services(), ADAPTIONS_FACTORY);
+        }
+
+        final boolean indexed = ENGINE_INDEXED.equals(config.engine());
+        if (!indexed && !ENGINE_MAP.equals(config.engine())) {
+            log.warn("Unknown resolution engine {}, using {}", config.engine(), ENGINE_MAP);
+        }
+        final int maxSize = Math.max(0, config.cache_max_size());
+        synchronized (this.registryLock) {
+            if (indexed != (this.typeIndex != null)
+                    || maxSize != getCacheMaxSize()
+                    || !Arrays.equals(markers, this.generatedClassMarkers)) {
+                // switch the engine like a registry change such that entries
+                // computed concurrently for the previous cache are discarded,
+                // as are the entries resolved with the previous sharing
+                this.cacheEpoch.incrementAndGet();
+                try {
+                    this.generatedClassMarkers = markers;
+                    this.typeIndex = indexed ? new AdapterTypeIndex() : null;
+                    this.factoryCache = new BoundedFactoryCache(maxSize);
+                    this.sharedFactories.clear();
+                } finally {
+                    this.cacheEpoch.incrementAndGet();
+                }
+            }
+        }
+
+        this.coalescingMillis = Math.max(0, config.registration_coalescing_ms());
+        if (this.coalescingMillis == 0) {
+            flushRegistrations();
+        }
+    }
+
     /**
      * Deactivate
      */
     @Deactivate
     protected void deactivate() {
         SlingAdaptable.unsetAdapterManager(this);
+
+        // apply the pending and all further registration changes immediately
+        this.coalescingMillis = 0;
+        flushRegistrations();
+        synchronized (this.registryLock) {
+            if (this.coalescingExecutor != null) {
+                this.coalescingExecutor.shutdownNow();
+                this.coalescingExecutor = null;
+            }
+        }
+        if (this.frameworkStarting) {
+            try {
+                this.bundleContext.removeFrameworkListener(this.frameworkListener);
+            } catch (final IllegalStateException ignore) {
+                // the bundle is stopping
+            }
+        }
     }
 
     /**
-     * Bind a new adapter factory.
+     * Bind a new adapter factory. The service object is acquired through the
+     * <code>factory</code> service objects, either right away or on first use
+     * if the adapter factories are configured to be lazy.
      */
     @Reference(
             service = AdapterFactory.class,
             updated = "updatedAdapterFactory",
             cardinality = ReferenceCardinality.MULTIPLE,
             policy = ReferencePolicy.DYNAMIC)
-    protected void bindAdapterFactory(final AdapterFactory factory, final ServiceReference<AdapterFactory> reference) {
+    protected void bindAdapterFactory(
+            final ComponentServiceObjects<AdapterFactory> factory, final ServiceReference<AdapterFactory> reference) {
         registerAdapterFactory(factory, reference);
     }
 
@@ -176,12 +841,13 @@ public class AdapterManagerImpl implements AdapterManager {
     }
 
     /**
-     * Modify a adapter factory.
+     * Modify a adapter factory. The registered descriptor is replaced in a
+     * single registry change, such that lookups never miss the adapter
+     * factory while its properties are updated.
      */
     protected void updatedAdapterFactory(
-            final AdapterFactory factory, final ServiceReference<AdapterFactory> reference) {
-        unregisterAdapterFactory(reference);
-        registerAdapterFactory(factory, reference);
+            final ComponentServiceObjects<AdapterFactory> factory, final ServiceReference<AdapterFactory> reference) {
+        updateAdapterFactory(factory, reference);
     }
 
     // ---------- unit testing stuff only --------------------------------------
@@ -193,7 +859,15 @@ public class AdapterManagerImpl implements AdapterManager {
      * MODIFIED WITHOUT NOTICE.</em></strong>
      */
     Map<String, AdapterFactoryDescriptorMap> getFactories() {
-        return descriptors;
+        return registry.getDescriptors();
+    }
+
+    /**
+     * Returns the generation number of the current registry snapshot. Adapter
+     * lookup handles compare it with the generation they are bound to.
+     */
+    long getRegistryGeneration() {
+        return registry.getGeneration();
     }
 
     /**
@@ -202,32 +876,273 @@ public class AdapterManagerImpl implements AdapterManager {
      * <strong><em>THIS METHOD IS FOR UNIT TESTING ONLY. IT MAY BE REMOVED OR
      * MODIFIED WITHOUT NOTICE.</em></strong>
      */
-    Map<String, Map<String, List<AdapterFactoryDescriptor>>> getFactoryCache() {
+    Map<Class<?>, AdaptableFactories> getFactoryCache() {
         return factoryCache;
     }
 
     /**
-     * Unregisters the {@link AdapterFactory} referred to by the service
-     * <code>reference</code> from the registry.
+     * Removes all entries from the adapter factory cache.
+     * <p>
+     * <strong><em>THIS METHOD IS FOR UNIT TESTING ONLY. IT MAY BE REMOVED OR
+     * MODIFIED WITHOUT NOTICE.</em></strong>
+     */
+    void clearFactoryCache() {
+        this.factoryCache.clear();
+        this.sharedFactories.clear();
+    }
+
+    /**
+     * Returns the type index of the indexed resolution engine or
+     * <code>null</code> if the map based engine is used.
+     */
+    AdapterTypeIndex getTypeIndex() {
+        return typeIndex;
+    }
+
+    /**
+     * Returns the number of factory cache entries evicted by the last registration event.
+     */
+    int getLastCacheEvictions() {
+        return lastCacheEvictions;
+    }
+
+    // ---------- AdapterFactoryCacheMBean interface ---------------------------
+
+    @Override
+    public String getEngine() {
+        return typeIndex != null ? ENGINE_INDEXED : ENGINE_MAP;
+    }
+
+    @Override
+    public int getCacheSize() {
+        return factoryCache.size();
+    }
+
+    @Override
+    public long getEstimatedCacheBytes() {
+        final Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        long size = AdaptableFactories.estimateMapSize(factoryCache.size());
+        for (final AdaptableFactories entry : factoryCache.values()) {
+            size += entry.estimateSize(seen);
+        }
+        for (final AdaptableFactories entry : sharedFactories.values()) {
+            size += entry.estimateSize(seen);
+        }
+        final AdapterTypeIndex index = this.typeIndex;
+        if (index != null) {
+            size += index.estimateSize();
+        }
+        return size;
+    }
+
+    @Override
+    public int getCacheMaxSize() {
+        return factoryCache.getMaxSize();
+    }
+
+    @Override
+    public long getCacheCapacityEvictions() {
+        return factoryCache.getCapacityEvictions();
+    }
+
+    @Override
+    public long getCollectedCacheEntries() {
+        return factoryCache.getCollectedEntries();
+    }
+
+    @Override
+    public int getSharedCacheSize() {
+        return sharedFactories.size();
+    }
+
+    @Override
+    public long getCacheFills() {
+        return cacheFills.get();
+    }
+
+    @Override
+    public long getCoalescedCacheFills() {
+        return coalescedCacheFills.get();
+    }
+
+    @Override
+    public long getRejectedCacheFills() {
+        return rejectedCacheFills.get();
+    }
+
+    @Override
+    public long getCacheInvalidations() {
+        return cacheInvalidations.get();
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return cacheEvictions.get();
+    }
+
+    /**
+     * Registers the {@link AdapterFactory} referred to by the service
+     * <code>reference</code> with the registry.
      */
     private void registerAdapterFactory(
-            final AdapterFactory factory, final ServiceReference<AdapterFactory> reference) {
-        final Converter converter = Converters.standardConverter();
-        final String[] adaptables =
-                converter.convert(reference.getProperty(ADAPTABLE_CLASSES)).to(String[].class);
-        final String[] adapters =
-                converter.convert(reference.getProperty(ADAPTER_CLASSES)).to(String[].class);
-        final boolean allowedInPrivatePackage = converter
-                .convert(reference.getProperty(ALLOWED_IN_PRIVATE))
-                .defaultValue(false)
-                .to(Boolean.class);
+            final ComponentServiceObjects<AdapterFactory> factory, final ServiceReference<AdapterFactory> reference) {
+        final String[] adaptables = getClassNames(reference, ADAPTABLE_CLASSES);
+        final String[] adapters = getClassNames(reference, ADAPTER_CLASSES);
+        if (!checkRegistration(reference, adaptables, adapters)) {
+            return;
+        }
 
-        if (adaptables == null || adaptables.length == 0 || adapters == null || adapters.length == 0) {
+        // acquire the service object right away unless it is acquired on first use
+        final AdapterFactory service = this.lazyFactories ? null : factory.getService();
+        if (service == null && !this.lazyFactories) {
+            log.warn(
+                    "Unable to get adapter factory service {}, it is ignored",
+                    reference.getProperty(Constants.SERVICE_ID));
+            return;
+        }
+        final AdapterFactoryDescriptor factoryDesc = new AdapterFactoryDescriptor(
+                factory,
+                service,
+                this.interner.intern(adapters),
+                this.interner.intern(adaptables),
+                this.metrics.registerFactory(reference, service));
+
+        synchronized (this.registryLock) {
+            if (this.coalescingMillis > 0) {
+                // the adaption is registered once the change is published
+                stageRegistry(getWorkingRegistry().register(reference, factoryDesc), adaptables);
+                this.pendingAdaptions.put(reference, factoryDesc);
+                return;
+            }
+            publishRegistry(this.registry.register(reference, factoryDesc), adaptables);
+        }
+
+        registerAdaption(reference, factoryDesc);
+    }
+
+    /**
+     * Applies the modified properties of the {@link AdapterFactory} referred
+     * to by the service <code>reference</code>. The descriptor of the adapter
+     * factory is swapped for a descriptor with the new adaptable and adapter
+     * classes sharing its service object and taking over its metrics and
+     * adaption, and the registry is published once with both changes
+     * applied. The old descriptor keeps adapting until then. If only the
+     * ranking has changed, the descriptor is kept and only its order is
+     * updated. If nothing relevant has changed, nothing is published.
+     */
+    private void updateAdapterFactory(
+            final ComponentServiceObjects<AdapterFactory> factory, final ServiceReference<AdapterFactory> reference) {
+        final String[] adaptables = getClassNames(reference, ADAPTABLE_CLASSES);
+        final String[] adapters = getClassNames(reference, ADAPTER_CLASSES);
+        if (!checkRegistration(reference, adaptables, adapters)) {
+            unregisterAdapterFactory(reference);
             return;
         }
 
+        final AdapterFactoryDescriptor oldDesc;
+        final AdapterFactoryDescriptor newDesc;
+        boolean pending = false;
+        synchronized (this.registryLock) {
+            final AdapterFactoryRegistry current = getWorkingRegistry();
+            oldDesc = current.getDescriptor(reference);
+            if (oldDesc == null) {
+                newDesc = null;
+            } else {
+                newDesc = Arrays.equals(oldDesc.getAdaptables(), adaptables)
+                                && Arrays.equals(oldDesc.getAdapters(), adapters)
+                        ? oldDesc
+                        : oldDesc.update(this.interner.intern(adapters), this.interner.intern(adaptables));
+                final AdapterFactoryRegistry newRegistry = current.update(reference, newDesc);
+                if (newRegistry != current) {
+                    final Set<String> changed = new LinkedHashSet<>(Arrays.asList(oldDesc.getAdaptables()));
+                    changed.addAll(Arrays.asList(adaptables));
+                    if (this.coalescingMillis > 0) {
+                        stageRegistry(newRegistry, changed.toArray(new String[0]));
+                        pending = this.pendingAdaptions.replace(reference, newDesc) != null;
+                    } else {
+                        publishRegistry(newRegistry, changed.toArray(new String[0]));
+                    }
+                }
+            }
+        }
+
+        if (oldDesc == null) {
+            registerAdapterFactory(factory, reference);
+        } else if (newDesc != oldDesc && !pending && !updateAdaption(reference, oldDesc, newDesc)) {
+            // the adaption of the old descriptor has not been registered yet
+            registerAdaption(reference, newDesc);
+        }
+    }
+
+    /**
+     * Updates the adaptable and adapter classes of the {@link Adaption}
+     * service taken over by the <code>newDesc</code>. The new properties are
+     * computed while holding the monitor of the descriptor, the framework is
+     * called after releasing it.
+     *
+     * @return <code>false</code> if there is no adaption to update
+     */
+    private boolean updateAdaption(
+            final ServiceReference<AdapterFactory> reference,
+            final AdapterFactoryDescriptor oldDesc,
+            final AdapterFactoryDescriptor newDesc) {
+        final ServiceRegistration<Adaption> reg;
+        final Runnable publication;
+        synchronized (newDesc) {
+            if (newDesc.isReleased()) {
+                return true;
+            }
+            reg = newDesc.getAdaption();
+            publication = reg != null
+                    ? null
+                    : this.adaptions.update(
+                            reference,
+                            oldDesc.getAdaptables(),
+                            oldDesc.getAdapters(),
+                            newDesc.getAdaptables(),
+                            newDesc.getAdapters());
+        }
+        if (reg == null) {
+            if (publication == null) {
+                return false;
+            }
+            publication.run();
+            return true;
+        }
+        final Dictionary<String, Object> props = new Hashtable<>();
+        props.put(SlingConstants.PROPERTY_ADAPTABLE_CLASSES, newDesc.getAdaptables());
+        props.put(SlingConstants.PROPERTY_ADAPTER_CLASSES, newDesc.getAdapters());
+        try {
+            reg.setProperties(props);
+        } catch (final IllegalStateException ignore) {
+            // ignore IAE on shutdown or if unregistered concurrently
+        }
+        return true;
+    }
+
+    private static String[] getClassNames(final ServiceReference<AdapterFactory> reference, final String property) {
+        return Converters.standardConverter()
+                .convert(reference.getProperty(property))
+                .to(String[].class);
+    }
+
+    /**
+     * Returns <code>true</code> if the adapter factory lists adaptable and
+     * adapter classes. Classes in packages not exported are logged unless
+     * the adapter factory is allowed to use private packages.
+     */
+    private boolean checkRegistration(
+            final ServiceReference<AdapterFactory> reference, final String[] adaptables, final String[] adapters) {
+        if (adaptables == null || adaptables.length == 0 || adapters == null || adapters.length == 0) {
+            return false;
+        }
+        final boolean allowedInPrivatePackage = Converters.standardConverter()
+                .convert(reference.getProperty(ALLOWED_IN_PRIVATE))
+                .defaultValue(false)
+                .to(Boolean.class);
+
         for (String clazz : adaptables) {
-            if (!allowedInPrivatePackage && !checkPackage(packageAdmin, clazz)) {
+            if (!allowedInPrivatePackage && !packageExports.isExported(clazz)) {
                 log.warn(
                         "Adaptable class {} in factory service {} is not in an exported package.",
                         clazz,
@@ -236,36 +1151,61 @@ public class AdapterManagerImpl implements AdapterManager {
         }
 
         for (String clazz : adapters) {
-            if (!allowedInPrivatePackage && !checkPackage(packageAdmin, clazz)) {
+            if (!allowedInPrivatePackage && !packageExports.isExported(clazz)) {
                 log.warn(
                         "Adapter class {} in factory service {} is not in an exported package.",
                         clazz,
                         reference.getProperty(Constants.SERVICE_ID));
             }
         }
+        return true;
+    }
 
-        final AdapterFactoryDescriptor factoryDesc = new AdapterFactoryDescriptor(factory, adapters, adaptables);
-
-        for (final String adaptable : adaptables) {
-            AdapterFactoryDescriptorMap adfMap = null;
-            synchronized (this.descriptors) {
-                adfMap = descriptors.computeIfAbsent(adaptable, key -> new AdapterFactoryDescriptorMap());
-            }
-            synchronized (adfMap) {
-                adfMap.put(reference, factoryDesc);
+    /**
+     * Registers the {@link Adaption} service announcing the registered adapter
+     * factory unless it has been unregistered in the meantime.
+     * <p>
+     * The framework is called without holding the monitor of the descriptor.
+     * If the descriptor is released or another adaption has been registered
+     * for it concurrently, the new adaption is withdrawn again.
+     */
+    private void registerAdaption(
+            final ServiceReference<AdapterFactory> reference, final AdapterFactoryDescriptor factoryDesc) {
+        final String[] adaptables = factoryDesc.getAdaptables();
+        final String[] adapters = factoryDesc.getAdapters();
+        final Bundle bundle = reference.getBundle();
+        final Runnable publication;
+        synchronized (factoryDesc) {
+            if (factoryDesc.isReleased() || factoryDesc.getAdaption() != null || bundle == null) {
+                return;
             }
+            publication = this.aggregatedAdaptions ? this.adaptions.add(reference, adaptables, adapters) : null;
+        }
+        if (publication != null) {
+            publication.run();
+            return;
         }
-
-        // clear the factory cache to force rebuild on next access
-        this.factoryCache.clear();
-
-        // register adaption
         final Dictionary<String, Object> props = new Hashtable<>();
         props.put(SlingConstants.PROPERTY_ADAPTABLE_CLASSES, adaptables);
         props.put(SlingConstants.PROPERTY_ADAPTER_CLASSES, adapters);
 
-        factoryDesc.setAdaption(
-                reference.getBundle().getBundleContext().registerService(Adaption.class, AdaptionImpl.INSTANCE, props));
+        final ServiceRegistration<Adaption> reg =
+                bundle.getBundleContext().registerService(Adaption.class, AdaptionImpl.INSTANCE, props);
+        final boolean registered;
+        synchronized (factoryDesc) {
+            registered = !factoryDesc.isReleased() && factoryDesc.getAdaption() == null;
+            if (registered) {
+                factoryDesc.setAdaption(reg);
+            }
+        }
+        if (!registered) {
+            try {
+                reg.unregister();
+            } catch (final IllegalStateException ignore) {
+                // ignore IAE on shutdown
+            }
+            return;
+        }
         if (log.isDebugEnabled()) {
             log.debug("Registered service {} with {} : {} and {} : {}", new Object[] {
                 Adaption.class.getName(),
@@ -282,49 +1222,31 @@ public class AdapterManagerImpl implements AdapterManager {
         return lastDot <= 0 ? "" : clazz.substring(0, lastDot);
     }
 
-    /**
-     * Check that the package containing the class is exported or is a java.*
-     * class.
-     *
-     * @param packageAdmin the PackageAdmin service
-     * @param clazz the class name
-     * @return true if the package is exported
-     */
-    static boolean checkPackage(PackageAdmin packageAdmin, String clazz) {
-        final String packageName = getPackageName(clazz);
-        if (packageName.startsWith("java.")) {
-            return true;
-        }
-        return packageAdmin.getExportedPackage(packageName) != null;
-    }
-
     /**
      * Unregisters the {@link AdapterFactory} referred to by the service
      * <code>reference</code> from the registry.
      */
     private void unregisterAdapterFactory(final ServiceReference<AdapterFactory> reference) {
-        final List<AdapterFactoryDescriptorMap> list = new ArrayList<>();
-        synchronized (this.descriptors) {
-            for (final AdapterFactoryDescriptorMap map : this.descriptors.values()) {
-                list.add(map);
-            }
-        }
-        AdapterFactoryDescriptor removedDescriptor = null;
-        for (final AdapterFactoryDescriptorMap map : list) {
-            synchronized (map) {
-                final AdapterFactoryDescriptor factoryDesc = map.remove(reference);
-                if (factoryDesc != null) {
-                    removedDescriptor = factoryDesc;
+        final AdapterFactoryDescriptor removedDescriptor;
+        synchronized (this.registryLock) {
+            final AdapterFactoryRegistry current = getWorkingRegistry();
+            removedDescriptor = current.getDescriptor(reference);
+            if (removedDescriptor != null) {
+                // only evict cache entries if some adapter factories have actually
+                // been removed
+                if (this.coalescingMillis > 0) {
+                    stageRegistry(current.unregister(reference), removedDescriptor.getAdaptables());
+                    this.pendingAdaptions.remove(reference);
+                } else {
+                    publishRegistry(current.unregister(reference), removedDescriptor.getAdaptables());
                 }
             }
         }
 
         // unregister adaption
         if (removedDescriptor != null) {
-            // only remove cache if some adapter factories have actually been
-            // removed
-            this.factoryCache.clear();
-
+            removedDescriptor.release();
+            this.metrics.unregisterFactory(removedDescriptor.getMetrics());
             final ServiceRegistration<Adaption> reg = removedDescriptor.getAdaption();
             if (reg != null) {
                 removedDescriptor.setAdaption(null);
@@ -333,6 +1255,10 @@ public class AdapterManagerImpl implements AdapterManager {
                 } catch (final IllegalStateException ignore) {
                     // ignore IAE on shutdown
                 }
+            } else {
+                this.adaptions
+                        .remove(reference, removedDescriptor.getAdaptables(), removedDescriptor.getAdapters())
+                        .run();
             }
             if (log.isDebugEnabled()) {
                 log.debug("Unregistered service {} with {} : {} and {} : {}", new Object[] {
@@ -347,54 +1273,312 @@ public class AdapterManagerImpl implements AdapterManager {
     }
 
     /**
-     * Returns the map of adapter factories index by adapter (target) class name
-     * for the given adaptable <code>clazz</code>. If no adapter exists for
-     * the <code>clazz</code> and empty map is returned.
+     * Returns the registry registration changes are applied to: the staged
+     * registry if changes are being coalesced, the published one otherwise.
+     * This method must be called while holding the {@link #registryLock}.
+     */
+    private AdapterFactoryRegistry getWorkingRegistry() {
+        return this.pendingRegistry != null ? this.pendingRegistry : this.registry;
+    }
+
+    /**
+     * Stages the new registry snapshot to be published with the other
+     * changes of the coalescing window. Lookups keep using the published
+     * registry. The flush is postponed until no change has been staged for
+     * the configured window, but not longer than
+     * {@link #MAX_COALESCING_WINDOWS} windows, or until the framework has
+     * started. This method must be called while holding the
+     * {@link #registryLock}.
+     */
+    private void stageRegistry(final AdapterFactoryRegistry newRegistry, final String[] adaptables) {
+        this.pendingRegistry = newRegistry;
+        Collections.addAll(this.pendingAdaptables, adaptables);
+        if (this.frameworkStarting) {
+            return;
+        }
+
+        final long window = TimeUnit.MILLISECONDS.toNanos(this.coalescingMillis);
+        final long now = System.nanoTime();
+        if (this.pendingFlush == null) {
+            this.pendingSince = now;
+        } else if (now - this.pendingSince >= MAX_COALESCING_WINDOWS * window) {
+            // keep the scheduled flush of a never ending burst of changes
+            return;
+        } else {
+            this.pendingFlush.cancel(false);
+        }
+        if (this.coalescingExecutor == null) {
+            this.coalescingExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "Apache Sling Adapter Manager Registrations");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.pendingFlush = this.coalescingExecutor.schedule(
+                this::flushRegistrations, this.coalescingMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publishes the staged registration changes as a single registry
+     * snapshot and registers the adaptions of the adapter factories
+     * registered in the meantime.
+     */
+    void flushRegistrations() {
+        final List<Map.Entry<ServiceReference<AdapterFactory>, AdapterFactoryDescriptor>> newAdaptions;
+        synchronized (this.registryLock) {
+            if (this.pendingFlush != null) {
+                this.pendingFlush.cancel(false);
+                this.pendingFlush = null;
+            }
+            if (this.pendingRegistry == null) {
+                return;
+            }
+            publishRegistry(this.pendingRegistry, this.pendingAdaptables.toArray(new String[0]));
+            if (log.isDebugEnabled()) {
+                log.debug("Published coalesced registration changes for {} adaptables", this.pendingAdaptables.size());
+            }
+            this.pendingRegistry = null;
+            this.pendingAdaptables.clear();
+            newAdaptions = new ArrayList<>(this.pendingAdaptions.entrySet());
+            this.pendingAdaptions.clear();
+        }
+
+        for (final Map.Entry<ServiceReference<AdapterFactory>, AdapterFactoryDescriptor> entry : newAdaptions) {
+            registerAdaption(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Flushes the registration changes staged while the framework has been
+     * starting once it has started.
+     */
+    private void frameworkEvent(final FrameworkEvent event) {
+        if (event.getType() == FrameworkEvent.STARTED) {
+            this.frameworkStarting = false;
+            try {
+                this.bundleContext.removeFrameworkListener(this.frameworkListener);
+            } catch (final IllegalStateException ignore) {
+                // the bundle is stopping
+            }
+            flushRegistrations();
+        }
+    }
+
+    /**
+     * Publishes the new registry snapshot and evicts the cache entries
+     * affected by the change. The cache epoch is odd while doing so, such that
+     * concurrently computed cache entries are discarded. This method must be
+     * called while holding the {@link #registryLock}.
+     *
+     * @param newRegistry The registry to publish
+     * @param adaptables The fully qualified names of the adaptable classes
+     *            whose adapter factories have changed.
+     */
+    private void publishRegistry(final AdapterFactoryRegistry newRegistry, final String[] adaptables) {
+        this.cacheEpoch.incrementAndGet();
+        try {
+            this.registry = newRegistry;
+            invalidateFactoryCache(adaptables);
+        } finally {
+            this.cacheEpoch.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes all entries from the factory cache whose resolution depends on
+     * at least one of the given adaptable class names, i.e. the entries of
+     * these classes and of all classes extending or implementing them.
+     *
+     * @param adaptables The fully qualified names of the adaptable classes
+     *            whose adapter factories have changed.
+     */
+    private void invalidateFactoryCache(final String[] adaptables) {
+        int evicted = 0;
+        final Iterator<Map.Entry<Class<?>, AdaptableFactories>> entries =
+                this.factoryCache.entrySet().iterator();
+        while (entries.hasNext()) {
+            final Map.Entry<Class<?>, AdaptableFactories> entry = entries.next();
+            if (entry.getValue().dependsOnAny(adaptables)
+                    || (this.generatedClassMarkers != null && isNamedBy(entry.getKey(), adaptables))) {
+                entries.remove();
+                evicted++;
+            }
+        }
+        this.sharedFactories.values().removeIf(entry -> entry.dependsOnAny(adaptables));
+        this.cacheInvalidations.incrementAndGet();
+        this.cacheEvictions.addAndGet(evicted);
+        this.lastCacheEvictions = evicted;
+        if (log.isDebugEnabled()) {
+            log.debug(
+                    "Evicted {} adapter factory cache entries for adaptables {}", evicted, Arrays.toString(adaptables));
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the name of the <code>clazz</code> or of
+     * any of its super classes is one of the <code>names</code>. The entries
+     * shared by generated classes do not record the names of the generated
+     * classes, so these have to be checked in addition to
+     * {@link AdaptableFactories#dependsOnAny(String[])}.
+     */
+    private static boolean isNamedBy(final Class<?> clazz, final String[] names) {
+        for (Class<?> current = clazz; current != null; current = current.getSuperclass()) {
+            final String name = current.getName();
+            for (final String candidate : names) {
+                if (candidate.equals(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the adapter factories for the given adaptable <code>clazz</code>
+     * indexed by adapter (target) class. If no adapter exists for the
+     * <code>clazz</code> an entry without any factories is returned.
      *
      * @param clazz The adaptable <code>Class</code> for which to return the
-     *            adapter factory map by target class name.
-     * @return The map of adapter factories by target class name. The map may be
+     *            adapter factories.
+     * @return The adapter factories by target class. The entry may be
      *         empty if there is no adapter factory for the adaptable
      *         <code>clazz</code>.
      */
-    private Map<String, List<AdapterFactoryDescriptor>> getAdapterFactories(final Class<?> clazz) {
-        final String className = clazz.getName();
-        Map<String, List<AdapterFactoryDescriptor>> entry = this.factoryCache.get(className);
+    private AdaptableFactories getAdapterFactories(final Class<?> clazz) {
+        AdaptableFactories entry = this.factoryCache.get(clazz);
         if (entry == null) {
-            // create entry
-            entry = createAdapterFactoryMap(clazz);
-            this.factoryCache.put(className, entry);
+            entry = awaitAdapterFactories(clazz);
         }
 
         return entry;
     }
 
     /**
-     * Creates a new target adapter factory map for the given <code>clazz</code>.
+     * Handles a cache miss for the given adaptable <code>clazz</code>. Only
+     * one thread at a time computes the entry for a class, all other threads
+     * missing the cache for the same class wait for its result.
+     *
+     * @param clazz The adaptable <code>Class</code> for which to return the
+     *            adapter factories.
+     * @return The adapter factories by target class.
+     */
+    private AdaptableFactories awaitAdapterFactories(final Class<?> clazz) {
+        final CompletableFuture<AdaptableFactories> fill = new CompletableFuture<>();
+        final CompletableFuture<AdaptableFactories> pending = this.pendingCacheFills.putIfAbsent(clazz, fill);
+        if (pending != null) {
+            this.coalescedCacheFills.incrementAndGet();
+            return join(pending);
+        }
+
+        try {
+            // another thread may have completed the entry since the cache miss
+            AdaptableFactories entry = this.factoryCache.get(clazz);
+            if (entry == null) {
+                entry = fillAdapterFactories(clazz);
+            }
+            fill.complete(entry);
+            return entry;
+        } catch (final RuntimeException | Error e) {
+            fill.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.pendingCacheFills.remove(clazz, fill);
+        }
+    }
+
+    /**
+     * Waits for the <code>future</code> and returns its result. If the future
+     * completed exceptionally with a runtime exception or error, the
+     * exception is rethrown as is.
+     */
+    private static <T> T join(final CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (final CompletionException ce) {
+            if (ce.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            if (ce.getCause() instanceof Error e) {
+                throw e;
+            }
+            throw ce;
+        }
+    }
+
+    /**
+     * Computes the cache entry for the given adaptable <code>clazz</code> and
+     * puts it into the cache unless the registry changed in the meantime. In
+     * this case the entry is discarded and computed again against the new
+     * registry.
+     *
+     * @param clazz The adaptable <code>Class</code> for which to compute the
+     *            adapter factories.
+     * @return The computed adapter factories
+     */
+    private AdaptableFactories fillAdapterFactories(final Class<?> clazz) {
+        AdaptableFactories entry = null;
+        for (int attempt = 0; attempt < MAX_CACHE_FILL_ATTEMPTS; attempt++) {
+            final long epoch = this.cacheEpoch.get();
+            final ConcurrentMap<Class<?>, AdaptableFactories> cache = this.factoryCache;
+            final AdapterTypeIndex index = this.typeIndex;
+            entry = createAdapterFactories(clazz, index);
+            this.cacheFills.incrementAndGet();
+            if ((epoch & 1) == 0) {
+                synchronized (this.registryLock) {
+                    // otherwise the registry changed while computing, the entry may be stale
+                    if (this.cacheEpoch.get() == epoch) {
+                        cache.put(clazz, entry);
+                        return entry;
+                    }
+                }
+            }
+            this.rejectedCacheFills.incrementAndGet();
+        }
+
+        // registry keeps changing, use the last result without caching it
+        return entry;
+    }
+
+    /**
+     * Creates the adapter factories for the given <code>clazz</code>.
      * First all factories defined to support the adaptable class by
      * registration are taken. Next all factories for the implemented interfaces
-     * and finally all base class factories are copied.
+     * and finally all base class factories are appended, each factory only at
+     * its first position according to the {@link TypeOrder} of the class. The
+     * names of all these classes are recorded as the adaptable names the entry
+     * depends on.
+     * <p>
+     * The factories of the interfaces and the base class are shared rather
+     * than copied where possible: target types only supported by one of them
+     * share its {@link TargetFactories} and if the <code>clazz</code> has no
+     * factories of its own and only one of them has any, the new entry shares
+     * all its factories.
      *
      * @param clazz The adaptable <code>Class</code> for which to build the
      *            adapter factory map by target class name.
-     * @return The map of adapter factories by target class name. The map may be
+     * @param index The type index of the indexed resolution engine or
+     *            <code>null</code> to create an entry of the map based engine.
+     * @return The adapter factories by target class. The entry may be
      *         empty if there is no adapter factory for the adaptable
      *         <code>clazz</code>.
      */
-    private Map<String, List<AdapterFactoryDescriptor>> createAdapterFactoryMap(final Class<?> clazz) {
+    AdaptableFactories createAdapterFactories(final Class<?> clazz, final AdapterTypeIndex index) {
+        // generated classes share the entry of their shape
+        final String[] markers = this.generatedClassMarkers;
+        if (markers != null && !hasGeneratedRegistrations(clazz, markers)) {
+            final AdaptableShape shape = AdaptableShape.of(clazz, markers);
+            if (shape != null) {
+                return getSharedFactories(shape, index);
+            }
+        }
+
         final Map<String, List<AdapterFactoryDescriptor>> afm = new HashMap<>();
+        final TypeOrder order = this.typeOrders.get(clazz);
 
         // AdapterFactories for this class
-        AdapterFactoryDescriptorMap afdMap = null;
-        synchronized (this.descriptors) {
-            afdMap = this.descriptors.get(clazz.getName());
-        }
+        final AdapterFactoryDescriptorMap afdMap = this.registry.get(clazz.getName());
         if (afdMap != null) {
-            final List<AdapterFactoryDescriptor> afdSet;
-            synchronized (afdMap) {
-                afdSet = new ArrayList<>(afdMap.values());
-            }
-            for (final AdapterFactoryDescriptor afd : afdSet) {
+            for (final AdapterFactoryDescriptor afd : afdMap.values()) {
                 final String[] adapters = afd.getAdapters();
                 for (final String adapter : adapters) {
                     // to handle service ranking, we add to the end of the list or create a new list
@@ -408,47 +1592,114 @@ public class AdapterManagerImpl implements AdapterManager {
             }
         }
 
-        // AdapterFactories for the interfaces
-        final Class<?>[] interfaces = clazz.getInterfaces();
-        for (final Class<?> iFace : interfaces) {
-            copyAdapterFactories(afm, iFace);
+        // AdapterFactories for the interfaces and the super class
+        final List<AdaptableFactories> parents = new ArrayList<>();
+        for (final Class<?> parent : order.getParents()) {
+            addParentFactories(parents, parent);
         }
 
-        // AdapterFactories for the super class
-        final Class<?> superClazz = clazz.getSuperclass();
-        if (superClazz != null) {
-            copyAdapterFactories(afm, superClazz);
-        }
+        return mergeAdapterFactories(afm, parents, order.getNameSet(), index);
+    }
 
-        return afm;
+    /**
+     * Returns <code>true</code> if adapter factories are registered for the
+     * name of the generated <code>clazz</code> or of any of its generated
+     * super classes, such that the class cannot share the entry of its shape.
+     */
+    private boolean hasGeneratedRegistrations(final Class<?> clazz, final String[] markers) {
+        for (Class<?> current = clazz;
+                current != null && AdaptableShape.isGenerated(current, markers);
+                current = current.getSuperclass()) {
+            final AdapterFactoryDescriptorMap registered = this.registry.get(current.getName());
+            if (registered != null && !registered.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * Copies all adapter factories for the given <code>clazz</code> from the
-     * <code>cache</code> to the <code>dest</code> map except for those
-     * factories whose target class already exists in the <code>dest</code>
-     * map.
-     *
-     * @param dest The map of target class name to adapter factory into which
-     *            additional factories are copied. Existing factories are not
-     *            replaced.
-     * @param clazz The adaptable class whose adapter factories are considered
-     *            for adding into <code>dest</code>.
+     * Returns the cache entry shared by all generated adaptable classes of
+     * the given <code>shape</code>, creating it if needed. The entry is only
+     * kept if the registry did not change while creating it, which is checked
+     * like for the entries of the factory cache.
      */
-    private void copyAdapterFactories(final Map<String, List<AdapterFactoryDescriptor>> dest, final Class<?> clazz) {
+    private AdaptableFactories getSharedFactories(final AdaptableShape shape, final AdapterTypeIndex index) {
+        final AdaptableShape.Key key = shape.key();
+        final AdaptableFactories existing = this.sharedFactories.get(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        final long epoch = this.cacheEpoch.get();
+        final Set<String> adaptableNames = new HashSet<>();
+        final List<AdaptableFactories> parents = new ArrayList<>();
+        for (final Class<?> iFace : shape.interfaces()) {
+            adaptableNames.addAll(this.typeOrders.get(iFace).getNameSet());
+            addParentFactories(parents, iFace);
+        }
+        if (shape.superclass() != null) {
+            adaptableNames.addAll(this.typeOrders.get(shape.superclass()).getNameSet());
+            addParentFactories(parents, shape.superclass());
+        }
+        final AdaptableFactories entry = mergeAdapterFactories(Collections.emptyMap(), parents, adaptableNames, index);
+        if ((epoch & 1) == 0) {
+            synchronized (this.registryLock) {
+                // otherwise the registry changed while computing, the entry may be stale
+                if (this.cacheEpoch.get() == epoch) {
+                    this.sharedFactories.keySet().removeIf(AdaptableShape.Key::isCleared);
+                    final AdaptableFactories concurrent = this.sharedFactories.putIfAbsent(key, entry);
+                    return concurrent != null ? concurrent : entry;
+                }
+            }
+        }
+        return entry;
+    }
 
-        // get the adapter factories for the adaptable clazz
-        final Map<String, List<AdapterFactoryDescriptor>> scMap = getAdapterFactories(clazz);
+    /**
+     * Creates the cache entry of the adapter factories <code>afm</code>
+     * registered for an adaptable class followed by the factories of its
+     * <code>parents</code>. Factories already contained are not appended
+     * again, such that every factory is tried at most once per adaption.
+     */
+    private AdaptableFactories mergeAdapterFactories(
+            final Map<String, List<AdapterFactoryDescriptor>> afm,
+            final List<AdaptableFactories> parents,
+            final Set<String> adaptableNames,
+            final AdapterTypeIndex index) {
+        // share everything with the only parent contributing factories
+        if (afm.isEmpty() && parents.size() == 1) {
+            return parents.get(0).share(adaptableNames);
+        }
 
-        // for each target class copy the entry to dest and put it in the list or create the list
-        for (Map.Entry<String, List<AdapterFactoryDescriptor>> entry : scMap.entrySet()) {
+        final Map<String, TargetFactories> factories = new HashMap<>();
+        for (final Map.Entry<String, List<AdapterFactoryDescriptor>> entry : afm.entrySet()) {
+            factories.put(
+                    entry.getKey(), new TargetFactories(entry.getValue().toArray(AdaptableFactories.NO_FACTORIES)));
+        }
+        for (final AdaptableFactories parent : parents) {
+            parent.forEachTarget(
+                    (target, targetFactories) -> factories.merge(target, targetFactories, TargetFactories::concat));
+        }
 
-            final List<AdapterFactoryDescriptor> factoryDescriptors =
-                    dest.computeIfAbsent(entry.getKey(), id -> new ArrayList<>());
+        return index != null
+                ? index.createEntry(factories, adaptableNames)
+                : new MappedAdaptableFactories(factories, adaptableNames);
+    }
 
-            for (AdapterFactoryDescriptor descriptor : entry.getValue()) {
-                factoryDescriptors.add(descriptor);
-            }
+    /**
+     * Adds the cache entry of the given adaptable <code>clazz</code> to the
+     * <code>parents</code> unless it is empty.
+     *
+     * @param parents The entries whose adapter factories are appended to the
+     *            factories of the adaptable class being resolved.
+     * @param clazz The super class or interface of the adaptable class being
+     *            resolved.
+     */
+    private void addParentFactories(final List<AdaptableFactories> parents, final Class<?> clazz) {
+        final AdaptableFactories entry = getAdapterFactories(clazz);
+        if (!entry.isEmpty()) {
+            parents.add(entry);
         }
     }
 }
@@ -0,0 +1,656 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import org.apache.sling.api.adapter.AdapterFactory;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>AdapterMetrics</code> collect the invocation counts and latencies
+ * of the adapter factories used by the {@link AdapterManagerImpl}, both per
+ * adapter factory service and per adaptable and target class pair.
+ * <p>
+ * All counters are striped such that concurrent adaptions do not contend on
+ * them and recording does not allocate any objects. The latency is only
+ * measured for a configurable sample of the adaptions, so the metrics can
+ * stay enabled in production. The number of adaptable and target class pairs
+ * tracked individually is bounded, all further pairs are counted together.
+ * <p>
+ * Independent of the sampling, every adapter factory invocation is timed if a
+ * slow invocation threshold is configured. Slow invocations are logged and
+ * the most recent ones are kept for the web console. An
+ * {@link InvocationWatchdog} samples the stacks of slow invocations while
+ * they are running.
+ * <p>
+ * The metrics are exposed as an MBean and in the Prometheus text format by
+ * the {@link AdapterWebConsolePlugin}.
+ */
+@Component(
+        service = {AdapterMetrics.class, AdapterMetricsMBean.class},
+        property = {
+            Constants.SERVICE_DESCRIPTION + "=Apache Sling Adapter Metrics",
+            Constants.SERVICE_VENDOR + "=The Apache Software Foundation",
+            "jmx.objectname=org.apache.sling.adapter:type=AdapterMetrics"
+        })
+@Designate(ocd = AdapterMetrics.Config.class)
+public class AdapterMetrics implements AdapterMetricsMBean {
+
+    @ObjectClassDefinition(
+            name = "Apache Sling Adapter Metrics",
+            description = "Collects invocation counts and latencies of the adapter factories.")
+    public @interface Config {
+
+        @AttributeDefinition(name = "Enabled", description = "Whether adaptions are counted at all.")
+        boolean enabled() default true;
+
+        @AttributeDefinition(
+                name = "Latency Sample Rate",
+                description = "The latency of one in this many adaptions is measured. "
+                        + "1 measures every adaption, 0 disables latency measurement.")
+        int latency_sample_rate() default DEFAULT_LATENCY_SAMPLE_RATE;
+
+        @AttributeDefinition(
+                name = "Maximum Class Pairs",
+                description = "The maximum number of adaptable and target class pairs counted individually. "
+                        + "All further pairs are counted together.")
+        int max_pairs() default DEFAULT_MAX_PAIRS;
+
+        @AttributeDefinition(
+                name = "Slow Invocation Threshold",
+                description = "Adapter factory invocations taking longer than this number of milliseconds "
+                        + "are reported as slow. 0, the default, disables the detection of slow invocations, "
+                        + "which otherwise clocks every adapter factory invocation.")
+        long slow_threshold_ms() default DEFAULT_SLOW_THRESHOLD_MS;
+
+        @AttributeDefinition(
+                name = "Slow Invocation Stack Interval",
+                description = "Minimum number of seconds between two captured stacks of slow "
+                        + "invocations of the same adapter factory. Slow invocations are only logged "
+                        + "at warn level if their stack is captured.")
+        long slow_stack_interval_s() default DEFAULT_SLOW_STACK_INTERVAL_S;
+
+        @AttributeDefinition(
+                name = "Recent Slow Invocations",
+                description = "The number of recent slow invocations listed in the web console.")
+        int slow_recent_size() default DEFAULT_SLOW_RECENT_SIZE;
+    }
+
+    static final int DEFAULT_LATENCY_SAMPLE_RATE = 64;
+
+    static final int DEFAULT_MAX_PAIRS = 1000;
+
+    static final long DEFAULT_SLOW_THRESHOLD_MS = 0;
+
+    static final long DEFAULT_SLOW_STACK_INTERVAL_S = 60;
+
+    static final int DEFAULT_SLOW_RECENT_SIZE = 20;
+
+    /**
+     * The class name reported for the adaptable and target of the pairs not
+     * counted individually.
+     */
+    static final String OTHER_PAIRS = "*";
+
+    private static final String[] FACTORY_ITEMS = {
+        "serviceId",
+        "bundle",
+        "factory",
+        "slow",
+        "successes",
+        "nulls",
+        "exceptions",
+        "sampled",
+        "meanNanos",
+        "p50Nanos",
+        "p99Nanos"
+    };
+
+    private static final String[] ADAPTION_ITEMS = {
+        "adaptable", "target", "successes", "nulls", "exceptions", "sampled", "meanNanos", "p50Nanos", "p99Nanos"
+    };
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private volatile boolean enabled = true;
+
+    private volatile int latencySampleRate = DEFAULT_LATENCY_SAMPLE_RATE;
+
+    private volatile int maxPairs = DEFAULT_MAX_PAIRS;
+
+    private volatile long slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_THRESHOLD_MS);
+
+    /**
+     * Samples the stacks of slow invocations, <code>null</code> if slow
+     * invocations are not detected.
+     */
+    private volatile InvocationWatchdog watchdog;
+
+    private volatile SlowInvocations slowInvocations = new SlowInvocations(DEFAULT_SLOW_RECENT_SIZE);
+
+    private final Set<FactoryMetrics> factories = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The metrics per adaptable and target class pair indexed by the names of
+     * the adaptable and the target class for reporting. Names instead of
+     * classes are used to not hold on to the class loaders of the adapted
+     * classes.
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, InvocationMetrics>> pairs = new ConcurrentHashMap<>();
+
+    /**
+     * The metrics of the pairs indexed by the identity of the adaptable and
+     * the target class, such that counting an adaption does not hash any
+     * class names. Replaced on reset.
+     */
+    private volatile PairsByAdaptable pairsByAdaptable = new PairsByAdaptable();
+
+    /**
+     * Creates the pair metrics, kept in a field to not allocate a method
+     * reference on each lookup.
+     */
+    private final BiFunction<String, String, InvocationMetrics> pairFactory = this::createPairMetrics;
+
+    private final AtomicInteger pairCount = new AtomicInteger();
+
+    private final InvocationMetrics otherPairs = new InvocationMetrics();
+
+    @Activate
+    @Modified
+    protected void configure(final Config config) {
+        this.enabled = config.enabled();
+        this.latencySampleRate = Math.max(0, config.latency_sample_rate());
+        this.maxPairs = Math.max(0, config.max_pairs());
+        final long thresholdNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.slow_threshold_ms()));
+        synchronized (this) {
+            stopWatchdog();
+            if (thresholdNanos > 0) {
+                this.watchdog = new InvocationWatchdog(
+                        thresholdNanos, TimeUnit.SECONDS.toMillis(Math.max(0, config.slow_stack_interval_s())));
+            }
+        }
+        this.slowThresholdNanos = thresholdNanos;
+        this.slowInvocations = new SlowInvocations(config.slow_recent_size());
+    }
+
+    @Deactivate
+    protected synchronized void stopWatchdog() {
+        final InvocationWatchdog current = this.watchdog;
+        if (current != null) {
+            this.watchdog = null;
+            current.stop();
+        }
+    }
+
+    // ---------- recording ----------------------------------------------------
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns <code>true</code> if the latency of the current adaption should
+     * be measured according to the configured sample rate.
+     */
+    boolean sample() {
+        final int rate = this.latencySampleRate;
+        return rate == 1 || (rate > 1 && ThreadLocalRandom.current().nextInt(rate) == 0);
+    }
+
+    /**
+     * Returns the duration in nanoseconds above which adapter factory
+     * invocations are reported as slow or <code>0</code> if slow invocations
+     * are not detected.
+     */
+    long getSlowThresholdNanos() {
+        return slowThresholdNanos;
+    }
+
+    /**
+     * Has the watchdog observe an invocation of the <code>factory</code> by
+     * the current thread started at <code>start</code>.
+     *
+     * @return The slot to end the invocation with or <code>null</code> if slow
+     *         invocations are not detected or the invocation is nested in an
+     *         observed one.
+     */
+    InvocationWatchdog.Slot watchInvocation(final FactoryMetrics factory, final long start) {
+        final InvocationWatchdog current = this.watchdog;
+        return current == null ? null : current.start(factory, start);
+    }
+
+    /**
+     * Reports an adapter factory invocation exceeding the slow invocation
+     * threshold. The stack sampled by the watchdog while the invocation was
+     * running is logged along with it. It is sampled at most once per
+     * configured interval and adapter factory.
+     */
+    void reportSlowInvocation(
+            final FactoryMetrics factory,
+            final Class<?> adaptable,
+            final Class<?> target,
+            final long nanos,
+            final InvocationWatchdog.Slot watched) {
+        factory.recordSlowInvocation();
+        final long now = System.currentTimeMillis();
+        final StackTraceElement[] trace = watched == null ? null : watched.takeStack();
+        final Exception stack;
+        if (trace != null) {
+            stack = new Exception("Stack of slow adapter factory invocation");
+            stack.setStackTrace(trace);
+        } else {
+            stack = null;
+        }
+        slowInvocations.add(new SlowInvocations.SlowInvocation(
+                now,
+                nanos,
+                factory.getServiceId(),
+                factory.getBundle(),
+                factory.getFactory(),
+                adaptable.getName(),
+                target.getName(),
+                stack == null ? null : toString(stack)));
+
+        final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        if (stack != null) {
+            log.warn(
+                    "Adapter factory {} (service {}, bundle {}) took {}ms to adapt {} to {}, stack:",
+                    factory.getFactory(),
+                    factory.getServiceId(),
+                    factory.getBundle(),
+                    millis,
+                    adaptable.getName(),
+                    target.getName(),
+                    stack);
+        } else if (log.isDebugEnabled()) {
+            log.debug(
+                    "Adapter factory {} (service {}, bundle {}) took {}ms to adapt {} to {}",
+                    factory.getFactory(),
+                    factory.getServiceId(),
+                    factory.getBundle(),
+                    millis,
+                    adaptable.getName(),
+                    target.getName());
+        }
+    }
+
+    private static String toString(final Throwable stack) {
+        final StringWriter writer = new StringWriter();
+        stack.printStackTrace(new PrintWriter(writer));
+        return writer.toString();
+    }
+
+    /**
+     * Returns the recent slow adapter factory invocations, the most recent
+     * first.
+     */
+    List<SlowInvocations.SlowInvocation> getSlowInvocations() {
+        return slowInvocations.getRecent();
+    }
+
+    /**
+     * Creates the metrics for a newly registered adapter factory. The
+     * <code>factory</code> is <code>null</code> if the service object is
+     * acquired on first use.
+     */
+    FactoryMetrics registerFactory(final ServiceReference<AdapterFactory> reference, final AdapterFactory factory) {
+        final FactoryMetrics metrics = new FactoryMetrics(reference, factory);
+        factories.add(metrics);
+        return metrics;
+    }
+
+    /**
+     * Drops the metrics of an unregistered adapter factory.
+     */
+    void unregisterFactory(final FactoryMetrics metrics) {
+        if (metrics != null) {
+            factories.remove(metrics);
+        }
+    }
+
+    /**
+     * Returns the metrics for adapting instances of the <code>adaptable</code>
+     * class to the <code>target</code> class. Once the configured maximum
+     * number of pairs is reached, the shared metrics of all further pairs are
+     * returned.
+     */
+    InvocationMetrics getPairMetrics(final Class<?> adaptable, final Class<?> target) {
+        return pairsByAdaptable.get(adaptable).get(target, pairFactory);
+    }
+
+    private InvocationMetrics createPairMetrics(final String adaptable, final String target) {
+        if (pairCount.get() >= maxPairs) {
+            return otherPairs;
+        }
+        final ConcurrentMap<String, InvocationMetrics> targets =
+                pairs.computeIfAbsent(adaptable, key -> new ConcurrentHashMap<>());
+        final InvocationMetrics metrics = new InvocationMetrics();
+        final InvocationMetrics existing = targets.putIfAbsent(target, metrics);
+        if (existing != null) {
+            return existing;
+        }
+        pairCount.incrementAndGet();
+        return metrics;
+    }
+
+    // ---------- AdapterMetricsMBean ------------------------------------------
+
+    @Override
+    public int getLatencySampleRate() {
+        return latencySampleRate;
+    }
+
+    @Override
+    public long getSuccessCount() {
+        long count = 0;
+        for (final Pair pair : getPairs()) {
+            count += pair.metrics().getSuccessCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getNullCount() {
+        long count = 0;
+        for (final Pair pair : getPairs()) {
+            count += pair.metrics().getNullCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getExceptionCount() {
+        long count = 0;
+        for (final Pair pair : getPairs()) {
+            count += pair.metrics().getExceptionCount();
+        }
+        return count;
+    }
+
+    @Override
+    public TabularData getFactoryStatistics() throws OpenDataException {
+        final CompositeType rowType = new CompositeType(
+                "FactoryStatistics", "Adapter factory invocations", FACTORY_ITEMS, FACTORY_ITEMS, new OpenType<?>[] {
+                    SimpleType.LONG,
+                    SimpleType.STRING,
+                    SimpleType.STRING,
+                    SimpleType.LONG,
+                    SimpleType.LONG,
+                    SimpleType.LONG,
+                    SimpleType.LONG,
+                    SimpleType.LONG,
+                    SimpleType.LONG,
+                    SimpleType.LONG,
+                    SimpleType.LONG
+                });
+        final TabularDataSupport data = new TabularDataSupport(new TabularType(
+                "FactoryStatistics", "Adapter factory invocations", rowType, new String[] {"serviceId"}));
+        for (final FactoryMetrics metrics : getFactories()) {
+            final Object[] values = new Object[FACTORY_ITEMS.length];
+            values[0] = metrics.getServiceId();
+            values[1] = metrics.getBundle();
+            values[2] = metrics.getFactory();
+            values[3] = metrics.getSlowInvocationCount();
+            fillStatistics(values, 4, metrics);
+            final CompositeDataSupport row = new CompositeDataSupport(rowType, FACTORY_ITEMS, values);
+            if (!data.containsKey(data.calculateIndex(row))) {
+                data.put(row);
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public TabularData getAdaptionStatistics() throws OpenDataException {
+        final CompositeType rowType = new CompositeType(
+                "AdaptionStatistics",
+                "Adaptions by adaptable and target class",
+                ADAPTION_ITEMS,
+                ADAPTION_ITEMS,
+                new OpenType<?>[] {
+                    SimpleType.STRING,
+                    SimpleType.STRING,
+                    SimpleType.LONG,
+                    SimpleType.LONG,
+                    SimpleType.LONG,
+                    SimpleType.LONG,
+                    SimpleType.LONG,
+                    SimpleType.LONG,
+                    SimpleType.LONG
+                });
+        final TabularDataSupport data = new TabularDataSupport(
+                new TabularType("AdaptionStatistics", "Adaptions by adaptable and target class", rowType, new String[] {
+                    "adaptable", "target"
+                }));
+        for (final Pair pair : getPairs()) {
+            final Object[] values = new Object[ADAPTION_ITEMS.length];
+            values[0] = pair.adaptable();
+            values[1] = pair.target();
+            fillStatistics(values, 2, pair.metrics());
+            data.put(new CompositeDataSupport(rowType, ADAPTION_ITEMS, values));
+        }
+        return data;
+    }
+
+    private static void fillStatistics(final Object[] values, final int offset, final InvocationMetrics metrics) {
+        final long[] counts = metrics.getLatency().getCounts();
+        long sampled = 0;
+        for (final long count : counts) {
+            sampled += count;
+        }
+        values[offset] = metrics.getSuccessCount();
+        values[offset + 1] = metrics.getNullCount();
+        values[offset + 2] = metrics.getExceptionCount();
+        values[offset + 3] = sampled;
+        values[offset + 4] = sampled == 0 ? -1L : metrics.getLatency().getSum() / sampled;
+        values[offset + 5] = LatencyHistogram.getQuantile(counts, 0.5);
+        values[offset + 6] = LatencyHistogram.getQuantile(counts, 0.99);
+    }
+
+    @Override
+    public void reset() {
+        for (final FactoryMetrics metrics : factories) {
+            metrics.reset();
+        }
+        pairsByAdaptable = new PairsByAdaptable();
+        pairs.clear();
+        pairCount.set(0);
+        otherPairs.reset();
+    }
+
+    // ---------- Prometheus text format ---------------------------------------
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format.
+     */
+    void writePrometheus(final PrintWriter writer) {
+        final List<FactoryMetrics> factoryMetrics = getFactories();
+        final List<String> factoryLabels = new ArrayList<>(factoryMetrics.size());
+        for (final FactoryMetrics metrics : factoryMetrics) {
+            factoryLabels.add("service_id=\"" + metrics.getServiceId() + "\",bundle=\""
+                    + escapeLabel(String.valueOf(metrics.getBundle())) + "\",factory=\""
+                    + escapeLabel(metrics.getFactory()) + "\"");
+        }
+        final List<Pair> pairs = getPairs();
+        final List<String> pairLabels = new ArrayList<>(pairs.size());
+        final List<InvocationMetrics> pairMetrics = new ArrayList<>(pairs.size());
+        for (final Pair pair : pairs) {
+            pairLabels.add("adaptable=\"" + escapeLabel(pair.adaptable()) + "\",target=\"" + escapeLabel(pair.target())
+                    + "\"");
+            pairMetrics.add(pair.metrics());
+        }
+
+        writeCounters(
+                writer,
+                "sling_adapter_factory_invocations_total",
+                "Adapter factory invocations by outcome.",
+                factoryLabels,
+                factoryMetrics);
+        writeHistograms(
+                writer,
+                "sling_adapter_factory_latency_seconds",
+                "Sampled adapter factory invocation latency.",
+                factoryLabels,
+                factoryMetrics);
+        writer.printf("# HELP sling_adapter_factory_slow_invocations_total Slow adapter factory invocations.%n");
+        writer.printf("# TYPE sling_adapter_factory_slow_invocations_total counter%n");
+        for (int i = 0; i < factoryMetrics.size(); i++) {
+            writer.printf(
+                    "sling_adapter_factory_slow_invocations_total{%s} %d%n",
+                    factoryLabels.get(i), factoryMetrics.get(i).getSlowInvocationCount());
+        }
+        writeCounters(
+                writer,
+                "sling_adapter_adaptions_total",
+                "Adaptions by adaptable class, target class and outcome.",
+                pairLabels,
+                pairMetrics);
+        writeHistograms(
+                writer,
+                "sling_adapter_adaption_latency_seconds",
+                "Sampled adaption latency by adaptable and target class.",
+                pairLabels,
+                pairMetrics);
+        writer.flush();
+    }
+
+    private static void writeCounters(
+            final PrintWriter writer,
+            final String name,
+            final String help,
+            final List<String> labels,
+            final List<? extends InvocationMetrics> metrics) {
+        writer.printf("# HELP %s %s%n", name, help);
+        writer.printf("# TYPE %s counter%n", name);
+        for (int i = 0; i < metrics.size(); i++) {
+            final InvocationMetrics m = metrics.get(i);
+            writer.printf("%s{%s,outcome=\"success\"} %d%n", name, labels.get(i), m.getSuccessCount());
+            writer.printf("%s{%s,outcome=\"null\"} %d%n", name, labels.get(i), m.getNullCount());
+            writer.printf("%s{%s,outcome=\"exception\"} %d%n", name, labels.get(i), m.getExceptionCount());
+        }
+    }
+
+    private static void writeHistograms(
+            final PrintWriter writer,
+            final String name,
+            final String help,
+            final List<String> labels,
+            final List<? extends InvocationMetrics> metrics) {
+        writer.printf("# HELP %s %s%n", name, help);
+        writer.printf("# TYPE %s histogram%n", name);
+        for (int i = 0; i < metrics.size(); i++) {
+            final LatencyHistogram latency = metrics.get(i).getLatency();
+            final long[] counts = latency.getCounts();
+            long cumulative = 0;
+            for (int b = 0; b < LatencyHistogram.BOUNDS.length; b++) {
+                cumulative += counts[b];
+                writer.printf(
+                        "%s_bucket{%s,le=\"%s\"} %d%n",
+                        name, labels.get(i), LatencyHistogram.BOUNDS_IN_SECONDS[b], cumulative);
+            }
+            cumulative += counts[LatencyHistogram.BOUNDS.length];
+            writer.printf("%s_bucket{%s,le=\"+Inf\"} %d%n", name, labels.get(i), cumulative);
+            writer.printf("%s_sum{%s} %s%n", name, labels.get(i), latency.getSum() / 1e9);
+            writer.printf("%s_count{%s} %d%n", name, labels.get(i), cumulative);
+        }
+    }
+
+    static String escapeLabel(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // ---------- snapshots ----------------------------------------------------
+
+    /**
+     * Returns the metrics of the registered adapter factories ordered by
+     * service id.
+     */
+    List<FactoryMetrics> getFactories() {
+        final List<FactoryMetrics> result = new ArrayList<>(factories);
+        result.sort(Comparator.comparingLong(FactoryMetrics::getServiceId));
+        return result;
+    }
+
+    /**
+     * Returns the metrics of all adaptable and target class pairs. The pairs
+     * not counted individually are reported as {@link #OTHER_PAIRS}.
+     */
+    List<Pair> getPairs() {
+        final List<Pair> result = new ArrayList<>();
+        for (final Map.Entry<String, ConcurrentMap<String, InvocationMetrics>> adaptable : pairs.entrySet()) {
+            for (final Map.Entry<String, InvocationMetrics> target :
+                    adaptable.getValue().entrySet()) {
+                result.add(new Pair(adaptable.getKey(), target.getKey(), target.getValue()));
+            }
+        }
+        result.add(new Pair(OTHER_PAIRS, OTHER_PAIRS, otherPairs));
+        return result;
+    }
+
+    /**
+     * The metrics of an adaptable and target class pair.
+     */
+    record Pair(String adaptable, String target, InvocationMetrics metrics) {}
+
+    /**
+     * Associates the pair metrics with the adaptable classes. The values are
+     * kept by the adaptable classes and must thus neither refer to the adapter
+     * metrics nor to this class value.
+     */
+    private static final class PairsByAdaptable extends ClassValue<AdaptablePairMetrics> {
+
+        @Override
+        protected AdaptablePairMetrics computeValue(final Class<?> type) {
+            return new AdaptablePairMetrics(type.getName());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.TabularData;
+
+/**
+ * The <code>AdapterMetricsMBean</code> exposes the adaption metrics collected
+ * by the {@link AdapterMetrics} via JMX.
+ */
+public interface AdapterMetricsMBean {
+
+    /**
+     * Returns whether adaptions are counted.
+     */
+    boolean isEnabled();
+
+    /**
+     * Returns the latency sample rate: the latency of one in this many
+     * adaptions is measured. <code>0</code> means no latency is measured.
+     */
+    int getLatencySampleRate();
+
+    /**
+     * Returns the number of adaptions returning an adapter.
+     */
+    long getSuccessCount();
+
+    /**
+     * Returns the number of adaptions returning <code>null</code>.
+     */
+    long getNullCount();
+
+    /**
+     * Returns the number of adaptions throwing an exception.
+     */
+    long getExceptionCount();
+
+    /**
+     * Returns the invocation counts and sampled latencies of each registered
+     * adapter factory.
+     */
+    TabularData getFactoryStatistics() throws OpenDataException;
+
+    /**
+     * Returns the adaption counts and sampled latencies of each adaptable and
+     * target class pair.
+     */
+    TabularData getAdaptionStatistics() throws OpenDataException;
+
+    /**
+     * Resets all counters.
+     */
+    void reset();
+}
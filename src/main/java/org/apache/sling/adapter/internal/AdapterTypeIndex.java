@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The <code>AdapterTypeIndex</code> is the core of the indexed resolution
+ * engine. It assigns small integer ids to the target class names of the
+ * registered adapter factories. The factory cache entries are
+ * {@link IndexedAdaptableFactories} holding their adapter factories in small
+ * open addressing tables keyed by target id, sized to the targets actually
+ * present in the entry.
+ * <p>
+ * The entries themselves are kept in the factory cache of the adapter
+ * manager, which is indexed by a <code>ClassValue</code> of the adaptable
+ * class and does not keep the classes reachable. Hence no ids are assigned to
+ * adaptable classes.
+ * <p>
+ * Target ids are never reused. They are assigned per fully qualified class
+ * name once a cache entry holds adapter factories for it, such that the name
+ * table grows with the number of distinct target names ever registered.
+ * Target classes no adapter factory is registered for share the
+ * {@link #NONE} id, so adapting to arbitrary classes does not grow the
+ * index. The id of a class is cached in a <code>ClassValue</code>, hence a
+ * warm lookup neither hashes nor compares any class names. As classes cached
+ * with the {@link #NONE} id may get an id later, the <code>ClassValue</code>
+ * is replaced whenever an id is assigned.
+ */
+final class AdapterTypeIndex {
+
+    /**
+     * The id of the target classes no id has been assigned to.
+     */
+    static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final ConcurrentMap<String, Integer> targetIdsByName = new ConcurrentHashMap<>();
+
+    /**
+     * The ids of the target classes, replaced whenever an id is assigned.
+     */
+    private volatile TargetIds targetIds = new TargetIds(targetIdsByName);
+
+    /**
+     * The target class names indexed by target id. Only written while holding
+     * the monitor of this index.
+     */
+    private volatile String[] targetNames = new String[INITIAL_CAPACITY];
+
+    /**
+     * Returns the id of the target class <code>type</code> or {@link #NONE}
+     * if no id has been assigned to its name.
+     */
+    int getTargetId(final Class<?> type) {
+        return targetIds.get(type);
+    }
+
+    /**
+     * Returns the id of the fully qualified target class <code>name</code>,
+     * assigning the next free id to a name not seen before.
+     */
+    private int getTargetId(final String name) {
+        final Integer id = targetIdsByName.get(name);
+        return id != null ? id : assignTargetId(name);
+    }
+
+    private synchronized int assignTargetId(final String name) {
+        final Integer existing = targetIdsByName.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        final int id = targetIdsByName.size();
+        String[] names = targetNames;
+        if (id == names.length) {
+            names = Arrays.copyOf(names, names.length * 2);
+        }
+        names[id] = name;
+        targetNames = names;
+        targetIdsByName.put(name, id);
+        // drop the ids of the classes which got the NONE id for this name
+        targetIds = new TargetIds(targetIdsByName);
+        return id;
+    }
+
+    /**
+     * Returns the fully qualified target class name of the target
+     * <code>id</code>.
+     */
+    String getTargetName(final int id) {
+        return targetNames[id];
+    }
+
+    /**
+     * Returns the number of target class names ids have been assigned to.
+     */
+    int getTargetCount() {
+        return targetIdsByName.size();
+    }
+
+    /**
+     * Returns the estimated number of bytes retained by the ids of this
+     * index, excluding the cache entries and the class names.
+     */
+    long estimateSize() {
+        return AdaptableFactories.estimateMapSize(getTargetCount())
+                + AdaptableFactories.estimateArraySize(targetNames.length)
+                + 16L * getTargetCount();
+    }
+
+    /**
+     * Creates the factory cache entry for the resolved adapter factories by
+     * fully qualified target class name.
+     */
+    IndexedAdaptableFactories createEntry(
+            final Map<String, TargetFactories> factoriesByName, final Set<String> adaptableNames) {
+        final int[] ids = new int[factoriesByName.size()];
+        final TargetFactories[] factories = new TargetFactories[ids.length];
+        int i = 0;
+        for (final Map.Entry<String, TargetFactories> entry : factoriesByName.entrySet()) {
+            ids[i] = getTargetId(entry.getKey());
+            factories[i] = entry.getValue();
+            i++;
+        }
+        return new IndexedAdaptableFactories(this, ids, factories, adaptableNames);
+    }
+
+    /**
+     * Caches the target ids of the classes. The values are kept by the target
+     * classes and must thus neither refer to the index nor to this class
+     * value.
+     */
+    private static final class TargetIds extends ClassValue<Integer> {
+
+        private static final Integer NONE_ID = NONE;
+
+        private final Map<String, Integer> idsByName;
+
+        TargetIds(final Map<String, Integer> idsByName) {
+            this.idsByName = idsByName;
+        }
+
+        @Override
+        protected Integer computeValue(final Class<?> type) {
+            final Integer id = idsByName.get(type.getName());
+            return id != null ? id : NONE_ID;
+        }
+    }
+}
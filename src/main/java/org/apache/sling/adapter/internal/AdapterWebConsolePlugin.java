@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -95,9 +96,9 @@ public class AdapterWebConsolePlugin extends HttpServlet
 
     private final transient Logger logger = LoggerFactory.getLogger(AdapterWebConsolePlugin.class);
 
-    @SuppressWarnings("deprecation")
-    @Reference
-    private transient org.osgi.service.packageadmin.PackageAdmin packageAdmin;
+    private final transient PackageExportIndex packageExports;
+
+    private final transient AdapterMetrics metrics;
 
     private final transient AtomicReference<List<AdaptableDescription>> allAdaptables =
             new AtomicReference<>(Collections.emptyList());
@@ -109,8 +110,14 @@ public class AdapterWebConsolePlugin extends HttpServlet
     private final transient BundleContext bundleContext;
 
     @Activate
-    public AdapterWebConsolePlugin(final BundleContext ctx) throws InvalidSyntaxException {
+    public AdapterWebConsolePlugin(
+            final BundleContext ctx,
+            final @Reference PackageExportIndex packageExports,
+            final @Reference AdapterMetrics metrics)
+            throws InvalidSyntaxException {
         this.bundleContext = ctx;
+        this.packageExports = packageExports;
+        this.metrics = metrics;
         this.adapterServiceReferences = new HashMap<>();
         this.adapterBundles = new HashMap<>();
         for (final Bundle bundle : this.bundleContext.getBundles()) {
@@ -275,6 +282,8 @@ public class AdapterWebConsolePlugin extends HttpServlet
             throws ServletException, IOException {
         if (req.getPathInfo().endsWith("/data.json")) {
             getJson(resp);
+        } else if (req.getPathInfo().endsWith("/metrics.txt")) {
+            getMetrics(resp);
         } else {
             getHtml(resp);
         }
@@ -329,6 +338,12 @@ public class AdapterWebConsolePlugin extends HttpServlet
         }
     }
 
+    private void getMetrics(final HttpServletResponse resp) throws IOException {
+        resp.setContentType("text/plain; version=0.0.4");
+        resp.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        metrics.writePrometheus(resp.getWriter());
+    }
+
     private void getHtml(final HttpServletResponse resp) throws IOException {
         final PrintWriter writer = resp.getWriter();
         writer.println("<p class=\"statline ui-state-highlight\">${Introduction}</p>");
@@ -341,7 +356,7 @@ public class AdapterWebConsolePlugin extends HttpServlet
         String rowClass = "odd";
         for (final AdaptableDescription desc : allAdaptables.get()) {
             writer.printf("<tr class=\"%s ui-state-default\"><td>", rowClass);
-            boolean packageExported = AdapterManagerImpl.checkPackage(packageAdmin, desc.adaptable);
+            boolean packageExported = packageExports.isExported(desc.adaptable);
             if (!packageExported) {
                 writer.print("<span class='error'>");
             }
@@ -352,7 +367,7 @@ public class AdapterWebConsolePlugin extends HttpServlet
             writer.print("</td>");
             writer.print("<td>");
             for (final String adapter : desc.adapters) {
-                packageExported = AdapterManagerImpl.checkPackage(packageAdmin, adapter);
+                packageExported = packageExports.isExported(adapter);
                 if (!packageExported) {
                     writer.print("<span class='error'>");
                 }
@@ -385,6 +400,46 @@ public class AdapterWebConsolePlugin extends HttpServlet
             }
         }
         writer.println("</table>");
+
+        writeSlowInvocations(writer);
+    }
+
+    private void writeSlowInvocations(final PrintWriter writer) {
+        writer.println("<p class=\"statline ui-state-highlight\">${Recent Slow Adapter Factory Invocations}</p>");
+        writer.println("<p>${slowIntro}</p>");
+        writer.println("<table class=\"adapters nicetable\">");
+        writer.println(
+                "<thead><tr><th class=\"header\">${Time}</th><th class=\"header\">${Duration}</th><th class=\"header\">${Adapter Factory}</th><th class=\"header\">${Adaptable Class}</th><th class=\"header\">${Adapter Class}</th><th class=\"header\">${Providing Bundle}</th></tr></thead>");
+        String rowClass = "odd";
+        for (final SlowInvocations.SlowInvocation invocation : metrics.getSlowInvocations()) {
+            writer.printf("<tr class=\"%s ui-state-default\">", rowClass);
+            writer.printf("<td>%s</td>", Instant.ofEpochMilli(invocation.timestamp()));
+            writer.printf("<td>%.1f ms</td>", invocation.nanos() / 1e6);
+            writer.printf("<td>%s (%s)", escapeHtml(invocation.factory()), invocation.serviceId());
+            if (invocation.stack() != null) {
+                writer.printf(
+                        "<details><summary>${Stack}</summary><pre>%s</pre></details>", escapeHtml(invocation.stack()));
+            }
+            writer.print("</td>");
+            writer.printf("<td>%s</td>", escapeHtml(invocation.adaptable()));
+            writer.printf("<td>%s</td>", escapeHtml(invocation.target()));
+            writer.printf("<td>%s</td>", escapeHtml(String.valueOf(invocation.bundle())));
+            writer.println("</tr>");
+
+            if (rowClass.equals("odd")) {
+                rowClass = "even";
+            } else {
+                rowClass = "odd";
+            }
+        }
+        writer.println("</table>");
+    }
+
+    private static String escapeHtml(final String value) {
+        return value.replace("&", "&amp;")
+                .replace("<", "&lt;")
+                .replace(">", "&gt;")
+                .replace("\"", "&quot;");
     }
 
     public void printConfiguration(final PrintWriter pw) {
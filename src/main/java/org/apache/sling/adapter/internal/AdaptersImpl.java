@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import org.apache.sling.adapter.Adapters;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The <code>AdaptersImpl</code> hold the adapters to a few target types in
+ * two parallel arrays. As only a handful of types is expected, the types are
+ * searched linearly by identity.
+ */
+final class AdaptersImpl implements Adapters {
+
+    private final Class<?>[] types;
+
+    private final Object[] adapters;
+
+    AdaptersImpl(final Class<?>[] types, final Object[] adapters) {
+        this.types = types;
+        this.adapters = adapters;
+    }
+
+    @Override
+    public <AdapterType> @Nullable AdapterType get(final @NotNull Class<AdapterType> type) {
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == type) {
+                return type.cast(adapters[i]);
+            }
+        }
+        throw new IllegalArgumentException("Adapters have not been resolved for " + type.getName());
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("Adapters[");
+        for (int i = 0; i < types.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(types[i].getName()).append('=').append(adapters[i]);
+        }
+        return builder.append(']').toString();
+    }
+}
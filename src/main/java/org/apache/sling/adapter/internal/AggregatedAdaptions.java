@@ -0,0 +1,321 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.sling.adapter.Adaption;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.adapter.AdapterFactory;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>AggregatedAdaptions</code> register a single {@link Adaption}
+ * service per bundle providing adapter factories instead of one service per
+ * adapter factory. The <code>adaptables</code> and <code>adapters</code>
+ * properties of the service list the adaptable and adapter classes of all
+ * adapter factories of the bundle.
+ * <p>
+ * The properties are only updated if a class name is added to or removed
+ * from these lists. Registering further adapter factories for classes
+ * already listed does not cause any service event.
+ * <p>
+ * The methods changing the class names only record the change and return
+ * the publication of the change to the framework, which the caller must run
+ * once it does not hold any lock anymore. Thus service listeners called by
+ * the framework never run while the monitor of this object or a lock of the
+ * caller is held. The changes of a bundle are published in order by a single
+ * thread at a time: a thread changing the adaptions of a bundle while
+ * another thread is publishing them leaves the publication of its change to
+ * that thread.
+ */
+class AggregatedAdaptions {
+
+    private static final Runnable NOTHING = () -> {};
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The adaptions of the bundles indexed by the bundle providing the
+     * adapter factories.
+     */
+    private final Map<Bundle, BundleAdaptions> bundles = new HashMap<>();
+
+    /**
+     * The adaptions the adapter factories have been added to, indexed by
+     * their service reference. The bundle of a service reference is not
+     * known anymore once the service has been unregistered.
+     */
+    private final Map<ServiceReference<AdapterFactory>, BundleAdaptions> references = new HashMap<>();
+
+    /**
+     * Adds the adaptable and adapter classes of the adapter factory service
+     * <code>reference</code> to the aggregated adaption of its bundle.
+     *
+     * @return The publication of the change to be run without holding any lock
+     */
+    synchronized Runnable add(
+            final ServiceReference<AdapterFactory> reference, final String[] adaptables, final String[] adapters) {
+        final Bundle bundle = reference.getBundle();
+        if (bundle == null || references.containsKey(reference)) {
+            return NOTHING;
+        }
+        final BundleAdaptions adaptions = bundles.computeIfAbsent(bundle, BundleAdaptions::new);
+        references.put(reference, adaptions);
+        final boolean changed = adaptions.add(adaptables, adapters);
+        return publication(adaptions.changed(changed || adaptions.registration == null));
+    }
+
+    /**
+     * Removes the adaptable and adapter classes of the adapter factory
+     * service <code>reference</code> from the aggregated adaption of its
+     * bundle. The adaption is unregistered with the last adapter factory.
+     *
+     * @return The publication of the change to be run without holding any lock
+     */
+    synchronized Runnable remove(
+            final ServiceReference<AdapterFactory> reference, final String[] adaptables, final String[] adapters) {
+        final BundleAdaptions adaptions = references.remove(reference);
+        if (adaptions == null) {
+            return NOTHING;
+        }
+        final boolean changed = adaptions.remove(adaptables, adapters);
+        if (adaptions.adaptables.isEmpty()) {
+            bundles.remove(adaptions.bundle);
+        }
+        return publication(adaptions.changed(changed || adaptions.adaptables.isEmpty()));
+    }
+
+    /**
+     * Replaces the old adaptable and adapter classes of the adapter factory
+     * service <code>reference</code> with the new ones in the aggregated
+     * adaption of its bundle. The properties of the adaption are updated at
+     * most once.
+     *
+     * @return The publication of the change to be run without holding any
+     *         lock or <code>null</code> if the adapter factory has not been
+     *         added
+     */
+    synchronized Runnable update(
+            final ServiceReference<AdapterFactory> reference,
+            final String[] oldAdaptables,
+            final String[] oldAdapters,
+            final String[] newAdaptables,
+            final String[] newAdapters) {
+        final BundleAdaptions adaptions = references.get(reference);
+        if (adaptions == null) {
+            return null;
+        }
+        final boolean added = adaptions.add(newAdaptables, newAdapters);
+        final boolean removed = adaptions.remove(oldAdaptables, oldAdapters);
+        return publication(adaptions.changed(added || removed));
+    }
+
+    private Runnable publication(final BundleAdaptions adaptions) {
+        return adaptions != null ? () -> publish(adaptions) : NOTHING;
+    }
+
+    /**
+     * Publishes the changes of the <code>adaptions</code> to the framework
+     * until there are no more changes. The framework is only called without
+     * holding the monitor of this object.
+     */
+    private void publish(final BundleAdaptions adaptions) {
+        boolean done = false;
+        try {
+            while (true) {
+                final int version;
+                final Dictionary<String, Object> properties;
+                final ServiceRegistration<Adaption> current;
+                synchronized (this) {
+                    if (adaptions.publishedVersion == adaptions.version) {
+                        adaptions.publishing = false;
+                        done = true;
+                        return;
+                    }
+                    version = adaptions.version;
+                    properties = adaptions.adaptables.isEmpty() ? null : adaptions.getProperties();
+                    current = adaptions.registration;
+                }
+                final ServiceRegistration<Adaption> registration = adaptions.apply(current, properties);
+                synchronized (this) {
+                    adaptions.registration = registration;
+                    adaptions.publishedVersion = version;
+                }
+            }
+        } finally {
+            if (!done) {
+                synchronized (this) {
+                    adaptions.publishing = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of registered aggregated adaption services.
+     */
+    synchronized int size() {
+        return bundles.size();
+    }
+
+    /**
+     * The aggregated adaption of a single bundle. The class names are
+     * reference counted by the number of adapter factories listing them.
+     */
+    private final class BundleAdaptions {
+
+        private final Bundle bundle;
+
+        private final Map<String, Integer> adaptables = new LinkedHashMap<>();
+
+        private final Map<String, Integer> adapters = new LinkedHashMap<>();
+
+        /**
+         * The registered adaption service. Only set by the publishing thread.
+         */
+        private ServiceRegistration<Adaption> registration;
+
+        /**
+         * The version of the class names, incremented on every change to be
+         * published.
+         */
+        private int version;
+
+        /**
+         * The version of the class names last published to the framework.
+         */
+        private int publishedVersion = -1;
+
+        /**
+         * Whether a thread is publishing the changes of this bundle.
+         */
+        private boolean publishing;
+
+        BundleAdaptions(final Bundle bundle) {
+            this.bundle = bundle;
+        }
+
+        /**
+         * Records a change of the class names to be published if
+         * <code>changed</code> is <code>true</code>. This method must be
+         * called while holding the monitor of the aggregated adaptions.
+         *
+         * @return This adaptions if the calling thread has to publish the
+         *         changes, <code>null</code> if there is nothing to publish
+         *         or another thread is publishing them
+         */
+        BundleAdaptions changed(final boolean changed) {
+            if (changed) {
+                version++;
+            }
+            if (publishing || publishedVersion == version) {
+                return null;
+            }
+            publishing = true;
+            return this;
+        }
+
+        boolean add(final String[] adaptableNames, final String[] adapterNames) {
+            return increment(adaptables, adaptableNames) | increment(adapters, adapterNames);
+        }
+
+        boolean remove(final String[] adaptableNames, final String[] adapterNames) {
+            return decrement(adaptables, adaptableNames) | decrement(adapters, adapterNames);
+        }
+
+        /**
+         * Brings the adaption service of the bundle in line with the given
+         * <code>properties</code>: registers, updates or, if the properties
+         * are <code>null</code>, unregisters it. This method must be called
+         * without holding the monitor of the aggregated adaptions.
+         *
+         * @return The registration of the adaption service, if any
+         */
+        ServiceRegistration<Adaption> apply(
+                final ServiceRegistration<Adaption> current, final Dictionary<String, Object> properties) {
+            if (properties == null) {
+                if (current != null) {
+                    try {
+                        current.unregister();
+                    } catch (final IllegalStateException ignore) {
+                        // ignore IAE on shutdown
+                    }
+                }
+                return null;
+            }
+            if (current != null) {
+                try {
+                    current.setProperties(properties);
+                    return current;
+                } catch (final IllegalStateException ise) {
+                    // unregistered by the framework when the bundle stopped
+                }
+            }
+            final BundleContext ctx = bundle.getBundleContext();
+            if (ctx == null) {
+                log.debug("Bundle {} is not active, not registering its adaptions", bundle);
+                return null;
+            }
+            return ctx.registerService(Adaption.class, AdaptionImpl.INSTANCE, properties);
+        }
+
+        private Dictionary<String, Object> getProperties() {
+            final Dictionary<String, Object> props = new Hashtable<>();
+            props.put(
+                    SlingConstants.PROPERTY_ADAPTABLE_CLASSES,
+                    adaptables.keySet().toArray(new String[0]));
+            props.put(SlingConstants.PROPERTY_ADAPTER_CLASSES, adapters.keySet().toArray(new String[0]));
+            return props;
+        }
+    }
+
+    /**
+     * Increments the counts of the <code>names</code> and returns
+     * <code>true</code> if any of them has not been contained before.
+     */
+    private static boolean increment(final Map<String, Integer> counts, final String[] names) {
+        boolean added = false;
+        for (final String name : names) {
+            added |= counts.merge(name, 1, Integer::sum) == 1;
+        }
+        return added;
+    }
+
+    /**
+     * Decrements the counts of the <code>names</code> and returns
+     * <code>true</code> if any of them is not contained anymore.
+     */
+    private static boolean decrement(final Map<String, Integer> counts, final String[] names) {
+        boolean removed = false;
+        for (final String name : names) {
+            removed |= counts.computeIfPresent(name, (key, count) -> count == 1 ? null : count - 1) == null;
+        }
+        return removed;
+    }
+}
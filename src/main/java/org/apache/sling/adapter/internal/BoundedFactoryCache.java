@@ -0,0 +1,340 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The <code>BoundedFactoryCache</code> is the adapter factory cache. Unlike a
+ * plain <code>ConcurrentHashMap</code> it
+ * <ul>
+ * <li>holds at most the configured number of entries, if a maximum size other
+ * than <code>0</code> is configured, evicting the entries not used since the
+ * last sweep with the CLOCK (second chance) policy, and</li>
+ * <li>does not keep the adaptable classes reachable: the entries are attached
+ * to the classes through a <code>ClassValue</code> and reference them only
+ * weakly, such that generated classes and the class loaders of uninstalled
+ * bundles can be garbage collected. The entries of collected classes are
+ * expunged on the next modification of the cache.</li>
+ * </ul>
+ * Lookups do not lock and do not allocate once a class has been seen,
+ * modifications synchronize on the cache.
+ */
+final class BoundedFactoryCache extends AbstractMap<Class<?>, AdaptableFactories>
+        implements ConcurrentMap<Class<?>, AdaptableFactories> {
+
+    /**
+     * The cache entry of an adaptable class, attached to the class by the
+     * {@link BoundedFactoryCache#slots} class value.
+     */
+    private static final class Slot extends WeakReference<Class<?>> {
+
+        volatile AdaptableFactories entry;
+
+        /**
+         * Whether the entry has been used since the clock hand passed it.
+         */
+        volatile boolean referenced;
+
+        /**
+         * Whether the slot is in the clock queue. Guarded by the cache.
+         */
+        boolean queued;
+
+        Slot(final Class<?> type, final ReferenceQueue<Class<?>> queue) {
+            super(type, queue);
+        }
+    }
+
+    private final int maxSize;
+
+    private final ReferenceQueue<Class<?>> collectedClasses = new ReferenceQueue<>();
+
+    private final ClassValue<Slot> slots = new ClassValue<Slot>() {
+        @Override
+        protected Slot computeValue(final Class<?> type) {
+            return new Slot(type, collectedClasses);
+        }
+    };
+
+    /**
+     * The slots holding an entry in the order the clock hand passes them.
+     * Guarded by the cache. May also contain slots whose entry has been
+     * removed since, these are dropped when the hand passes them.
+     */
+    private final ArrayDeque<Slot> clock = new ArrayDeque<>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicLong capacityEvictions = new AtomicLong();
+
+    private final AtomicLong collectedEntries = new AtomicLong();
+
+    BoundedFactoryCache(final int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the maximum number of entries or <code>0</code> if the number
+     * of entries is not bounded.
+     */
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of entries evicted to stay within the maximum size.
+     */
+    long getCapacityEvictions() {
+        return capacityEvictions.get();
+    }
+
+    /**
+     * Returns the number of entries expunged since their adaptable class has
+     * been garbage collected.
+     */
+    long getCollectedEntries() {
+        return collectedEntries.get();
+    }
+
+    @Override
+    public AdaptableFactories get(final Object key) {
+        if (!(key instanceof Class)) {
+            return null;
+        }
+        final Slot slot = slots.get((Class<?>) key);
+        final AdaptableFactories entry = slot.entry;
+        if (entry != null && maxSize > 0 && !slot.referenced) {
+            slot.referenced = true;
+        }
+        return entry;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return key instanceof Class && slots.get((Class<?>) key).entry != null;
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public synchronized AdaptableFactories put(final Class<?> key, final AdaptableFactories value) {
+        expungeCollectedEntries();
+        final Slot slot = slots.get(key);
+        final AdaptableFactories previous = slot.entry;
+        slot.entry = value;
+        slot.referenced = false;
+        if (previous == null) {
+            size.incrementAndGet();
+            if (!slot.queued) {
+                slot.queued = true;
+                clock.addLast(slot);
+            }
+            evictExcessEntries();
+        }
+        return previous;
+    }
+
+    @Override
+    public synchronized AdaptableFactories putIfAbsent(final Class<?> key, final AdaptableFactories value) {
+        final AdaptableFactories existing = slots.get(key).entry;
+        return existing != null ? existing : put(key, value);
+    }
+
+    @Override
+    public synchronized AdaptableFactories remove(final Object key) {
+        if (!(key instanceof Class)) {
+            return null;
+        }
+        final Slot slot = slots.get((Class<?>) key);
+        final AdaptableFactories previous = slot.entry;
+        if (previous != null) {
+            clearSlot(slot);
+        }
+        return previous;
+    }
+
+    @Override
+    public synchronized boolean remove(final Object key, final Object value) {
+        if (!(key instanceof Class) || value == null) {
+            return false;
+        }
+        final Slot slot = slots.get((Class<?>) key);
+        if (slot.entry != value) {
+            return false;
+        }
+        clearSlot(slot);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean replace(
+            final Class<?> key, final AdaptableFactories oldValue, final AdaptableFactories newValue) {
+        final Slot slot = slots.get(key);
+        if (oldValue == null || newValue == null || slot.entry != oldValue) {
+            return false;
+        }
+        slot.entry = newValue;
+        return true;
+    }
+
+    @Override
+    public synchronized AdaptableFactories replace(final Class<?> key, final AdaptableFactories value) {
+        final Slot slot = slots.get(key);
+        final AdaptableFactories previous = slot.entry;
+        if (previous != null && value != null) {
+            slot.entry = value;
+        }
+        return previous;
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (final Slot slot : clock) {
+            slot.entry = null;
+            slot.queued = false;
+        }
+        clock.clear();
+        size.set(0);
+        expungeCollectedEntries();
+    }
+
+    /**
+     * Returns a snapshot of the entries of the adaptable classes not yet
+     * garbage collected. Removing an entry through the iterator removes it
+     * from the cache unless it has been replaced in the meantime.
+     */
+    @Override
+    public Set<Map.Entry<Class<?>, AdaptableFactories>> entrySet() {
+        final List<Map.Entry<Class<?>, AdaptableFactories>> entries = new ArrayList<>();
+        synchronized (this) {
+            for (final Slot slot : clock) {
+                final Class<?> type = slot.get();
+                final AdaptableFactories entry = slot.entry;
+                if (type != null && entry != null) {
+                    entries.add(new SimpleImmutableEntry<>(type, entry));
+                }
+            }
+        }
+        return new AbstractSet<Map.Entry<Class<?>, AdaptableFactories>>() {
+            @Override
+            public Iterator<Map.Entry<Class<?>, AdaptableFactories>> iterator() {
+                final Iterator<Map.Entry<Class<?>, AdaptableFactories>> delegate = entries.iterator();
+                return new Iterator<Map.Entry<Class<?>, AdaptableFactories>>() {
+
+                    private Map.Entry<Class<?>, AdaptableFactories> current;
+
+                    @Override
+                    public boolean hasNext() {
+                        return delegate.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<Class<?>, AdaptableFactories> next() {
+                        current = delegate.next();
+                        return current;
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (current == null) {
+                            throw new IllegalStateException();
+                        }
+                        BoundedFactoryCache.this.remove(current.getKey(), current.getValue());
+                        delegate.remove();
+                        current = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return entries.size();
+            }
+        };
+    }
+
+    /**
+     * Removes the entry of the <code>slot</code>. The slot is dropped from
+     * the clock queue when the hand passes it. Must be called while holding
+     * the monitor of the cache.
+     */
+    private void clearSlot(final Slot slot) {
+        slot.entry = null;
+        size.decrementAndGet();
+    }
+
+    /**
+     * Removes the entries of garbage collected adaptable classes. Must be
+     * called while holding the monitor of the cache.
+     */
+    private void expungeCollectedEntries() {
+        Slot slot;
+        while ((slot = (Slot) collectedClasses.poll()) != null) {
+            if (slot.entry != null) {
+                clearSlot(slot);
+                collectedEntries.incrementAndGet();
+            }
+            if (slot.queued) {
+                slot.queued = false;
+                clock.remove(slot);
+            }
+        }
+    }
+
+    /**
+     * Moves the clock hand until the cache holds at most the maximum number
+     * of entries: slots without an entry are dropped, referenced entries get
+     * a second chance and the first unreferenced entry is evicted. Must be
+     * called while holding the monitor of the cache.
+     */
+    private void evictExcessEntries() {
+        while (maxSize > 0 && size.get() > maxSize) {
+            final Slot slot = clock.pollFirst();
+            if (slot == null) {
+                return;
+            }
+            if (slot.entry == null) {
+                slot.queued = false;
+            } else if (slot.referenced) {
+                slot.referenced = false;
+                clock.addLast(slot);
+            } else {
+                slot.queued = false;
+                clearSlot(slot);
+                capacityEvictions.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.sling.api.adapter.AdapterFactory;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.component.ComponentConstants;
+
+/**
+ * The <code>FactoryMetrics</code> are the {@link InvocationMetrics} of a
+ * single registered {@link AdapterFactory} service.
+ */
+final class FactoryMetrics extends InvocationMetrics {
+
+    private final long serviceId;
+
+    private final String bundle;
+
+    private final String factory;
+
+    private final LongAdder slowInvocations = new LongAdder();
+
+    /**
+     * The time in milliseconds since the epoch of the last call stack
+     * captured for a slow invocation.
+     */
+    private final AtomicLong lastStackCapture = new AtomicLong(Long.MIN_VALUE);
+
+    FactoryMetrics(final ServiceReference<AdapterFactory> reference, final AdapterFactory factory) {
+        final Object id = reference.getProperty(Constants.SERVICE_ID);
+        this.serviceId = id instanceof Long ? (Long) id : -1L;
+        final Bundle provider = reference.getBundle();
+        this.bundle = provider == null ? null : provider.getSymbolicName() + " (" + provider.getBundleId() + ")";
+        this.factory = factory != null ? factory.getClass().getName() : getComponentName(reference);
+    }
+
+    /**
+     * Returns the name of the component providing a lazily acquired adapter
+     * factory, which by convention is the name of its implementation class.
+     */
+    private static String getComponentName(final ServiceReference<AdapterFactory> reference) {
+        final Object name = reference.getProperty(ComponentConstants.COMPONENT_NAME);
+        return name instanceof String ? (String) name : AdapterFactory.class.getName();
+    }
+
+    /**
+     * Returns the service id of the adapter factory or <code>-1</code> if it
+     * is not known.
+     */
+    long getServiceId() {
+        return serviceId;
+    }
+
+    /**
+     * Returns the symbolic name and id of the bundle providing the adapter
+     * factory or <code>null</code> if it is not known.
+     */
+    String getBundle() {
+        return bundle;
+    }
+
+    /**
+     * Returns the class name of the adapter factory or the component name if
+     * the adapter factory is acquired lazily.
+     */
+    String getFactory() {
+        return factory;
+    }
+
+    /**
+     * Records an invocation exceeding the slow invocation threshold.
+     */
+    void recordSlowInvocation() {
+        slowInvocations.increment();
+    }
+
+    long getSlowInvocationCount() {
+        return slowInvocations.sum();
+    }
+
+    /**
+     * Returns <code>true</code> if the call stack of a slow invocation at
+     * time <code>now</code> should be captured, which is the case if no call
+     * stack has been captured for the last <code>interval</code>
+     * milliseconds.
+     */
+    boolean tryCaptureStack(final long now, final long interval) {
+        final long last = lastStackCapture.get();
+        return (last == Long.MIN_VALUE || now - last >= interval) && lastStackCapture.compareAndSet(last, now);
+    }
+
+    @Override
+    void reset() {
+        super.reset();
+        slowInvocations.reset();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * The <code>IndexedAdaptableFactories</code> are the factory cache entries of
+ * the indexed resolution engine. They hold the resolved adapter factories in a
+ * small open addressing table keyed by the target ids of an
+ * {@link AdapterTypeIndex}. The table is sized to the target types actually
+ * present in the entry, target types without any adapter factory map to
+ * {@link TargetFactories#NONE}. The arrays of the table must not be modified,
+ * they may be shared with other entries.
+ */
+final class IndexedAdaptableFactories extends AdaptableFactories {
+
+    private final AdapterTypeIndex index;
+
+    /**
+     * The target ids plus one by slot, <code>0</code> marking a free slot.
+     * The length is a power of two at least twice the number of targets,
+     * such that every probe sequence ends at a free slot. This array must not
+     * be modified.
+     */
+    private final int[] keys;
+
+    /**
+     * The resolved adapter factories by slot. This array must not be
+     * modified.
+     */
+    private final TargetFactories[] values;
+
+    private final int size;
+
+    /**
+     * Creates the entry of the resolved adapter <code>factories</code> of the
+     * target <code>ids</code> at the same positions.
+     */
+    IndexedAdaptableFactories(
+            final AdapterTypeIndex index,
+            final int[] ids,
+            final TargetFactories[] factories,
+            final Set<String> adaptableNames) {
+        super(adaptableNames);
+        int capacity = 1;
+        while (capacity < ids.length * 2) {
+            capacity <<= 1;
+        }
+        this.index = index;
+        this.keys = new int[capacity];
+        this.values = new TargetFactories[capacity];
+        this.size = ids.length;
+        for (int i = 0; i < ids.length; i++) {
+            final int key = ids[i] + 1;
+            int slot = key & (capacity - 1);
+            while (this.keys[slot] != 0) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            this.keys[slot] = key;
+            this.values[slot] = factories[i];
+        }
+    }
+
+    private IndexedAdaptableFactories(final IndexedAdaptableFactories other, final Set<String> adaptableNames) {
+        super(adaptableNames);
+        this.index = other.index;
+        this.keys = other.keys;
+        this.values = other.values;
+        this.size = other.size;
+    }
+
+    @Override
+    void forEachTarget(final BiConsumer<String, TargetFactories> action) {
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0) {
+                action.accept(index.getTargetName(keys[slot] - 1), values[slot]);
+            }
+        }
+    }
+
+    @Override
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    AdaptableFactories share(final Set<String> adaptableNames) {
+        return new IndexedAdaptableFactories(this, adaptableNames);
+    }
+
+    @Override
+    long estimateSize(final Set<Object> seen) {
+        long size = 32 + estimateMapSize(getAdaptableNames().size());
+        if (seen.add(keys)) {
+            size += estimateArraySize(keys.length) + estimateArraySize(values.length);
+            for (final TargetFactories factories : values) {
+                if (factories != null) {
+                    size += factories.estimateSize(seen);
+                }
+            }
+        }
+        return size;
+    }
+
+    @Override
+    TargetFactories getTargetFactories(final Class<?> type) {
+        final int id = index.getTargetId(type);
+        if (id == AdapterTypeIndex.NONE) {
+            return TargetFactories.NONE;
+        }
+        final int key = id + 1;
+        final int mask = keys.length - 1;
+        for (int slot = key & mask; ; slot = (slot + 1) & mask) {
+            final int k = keys[slot];
+            if (k == key) {
+                return values[slot];
+            }
+            if (k == 0) {
+                return TargetFactories.NONE;
+            }
+        }
+    }
+}
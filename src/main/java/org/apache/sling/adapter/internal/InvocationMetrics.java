@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The <code>InvocationMetrics</code> count the outcomes of adaptions and keep
+ * a histogram of the sampled adaption latencies. Recording does not allocate
+ * any objects.
+ */
+class InvocationMetrics {
+
+    private final LongAdder successes = new LongAdder();
+
+    private final LongAdder nulls = new LongAdder();
+
+    private final LongAdder exceptions = new LongAdder();
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * Records an adaption returning an adapter.
+     *
+     * @param nanos The latency in nanoseconds or a negative value if the
+     *            adaption has not been sampled.
+     */
+    void recordSuccess(final long nanos) {
+        successes.increment();
+        recordLatency(nanos);
+    }
+
+    /**
+     * Records an adaption returning <code>null</code>.
+     *
+     * @param nanos The latency in nanoseconds or a negative value if the
+     *            adaption has not been sampled.
+     */
+    void recordNull(final long nanos) {
+        nulls.increment();
+        recordLatency(nanos);
+    }
+
+    /**
+     * Records an adaption throwing an exception.
+     *
+     * @param nanos The latency in nanoseconds or a negative value if the
+     *            adaption has not been sampled.
+     */
+    void recordException(final long nanos) {
+        exceptions.increment();
+        recordLatency(nanos);
+    }
+
+    private void recordLatency(final long nanos) {
+        if (nanos >= 0) {
+            latency.record(nanos);
+        }
+    }
+
+    long getSuccessCount() {
+        return successes.sum();
+    }
+
+    long getNullCount() {
+        return nulls.sum();
+    }
+
+    long getExceptionCount() {
+        return exceptions.sum();
+    }
+
+    LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    void reset() {
+        successes.reset();
+        nulls.reset();
+        exceptions.reset();
+        latency.reset();
+    }
+}
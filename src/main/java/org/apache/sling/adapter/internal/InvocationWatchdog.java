@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The <code>InvocationWatchdog</code> samples the stacks of threads whose
+ * adapter factory invocation exceeds the slow invocation threshold while the
+ * invocation is still running, such that the stack shows where the adapter
+ * factory spends its time.
+ * <p>
+ * Each thread registers its outermost adapter factory invocation in a
+ * {@link Slot} of its own, which is reused for all its invocations. A
+ * background thread scans the slots periodically and captures the stack of
+ * a thread at most once per invocation and at most once per configured
+ * interval and adapter factory.
+ */
+final class InvocationWatchdog {
+
+    private final long thresholdNanos;
+
+    private final long stackIntervalMillis;
+
+    private final Set<Slot> slots = ConcurrentHashMap.newKeySet();
+
+    private final ThreadLocal<Slot> slot = ThreadLocal.withInitial(this::createSlot);
+
+    private final ScheduledExecutorService executor;
+
+    InvocationWatchdog(final long thresholdNanos, final long stackIntervalMillis) {
+        this.thresholdNanos = thresholdNanos;
+        this.stackIntervalMillis = stackIntervalMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "Apache Sling Adapter Metrics Watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // scan twice per threshold, such that invocations exceeding it noticeably are caught
+        final long period = Math.max(TimeUnit.MILLISECONDS.toNanos(1), thresholdNanos / 2);
+        this.executor.scheduleWithFixedDelay(this::scan, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Registers an invocation of the <code>factory</code> by the current
+     * thread started at <code>start</code>.
+     *
+     * @return The slot to end the invocation with or <code>null</code> if the
+     *         current thread already runs a watched invocation.
+     */
+    Slot start(final FactoryMetrics factory, final long start) {
+        final Slot current = this.slot.get();
+        return current.start(factory, start) ? current : null;
+    }
+
+    /**
+     * Stops scanning the slots.
+     */
+    void stop() {
+        this.executor.shutdownNow();
+        this.slots.clear();
+    }
+
+    private Slot createSlot() {
+        final Slot created = new Slot(Thread.currentThread());
+        this.slots.add(created);
+        return created;
+    }
+
+    private void scan() {
+        final long now = System.nanoTime();
+        for (final Slot current : this.slots) {
+            if (!current.thread.isAlive()) {
+                this.slots.remove(current);
+            } else {
+                current.sample(now, this.thresholdNanos, this.stackIntervalMillis);
+            }
+        }
+    }
+
+    /**
+     * The adapter factory invocation running in a thread. The fields
+     * describing the invocation are only written by that thread and
+     * published by setting {@link #running}.
+     */
+    static final class Slot {
+
+        private final Thread thread;
+
+        private volatile boolean running;
+
+        private volatile long invocation;
+
+        private volatile long started;
+
+        private volatile FactoryMetrics factory;
+
+        /**
+         * The last invocation considered by the watchdog, only accessed by
+         * the watchdog thread.
+         */
+        private long sampledInvocation;
+
+        /**
+         * The invocation the {@link #stack} has been sampled for.
+         */
+        private long stackInvocation;
+
+        private StackTraceElement[] stack;
+
+        private Slot(final Thread thread) {
+            this.thread = thread;
+        }
+
+        private boolean start(final FactoryMetrics factory, final long start) {
+            if (this.running) {
+                return false;
+            }
+            this.factory = factory;
+            this.started = start;
+            this.invocation = this.invocation + 1;
+            this.running = true;
+            return true;
+        }
+
+        /**
+         * Ends the invocation. The stack sampled while it was running is
+         * returned by {@link #takeStack()} until the next invocation starts.
+         */
+        void end() {
+            this.running = false;
+            this.factory = null;
+        }
+
+        /**
+         * Returns the stack sampled while the last invocation was running or
+         * <code>null</code> if none has been sampled.
+         */
+        synchronized StackTraceElement[] takeStack() {
+            final StackTraceElement[] result = this.stackInvocation == this.invocation ? this.stack : null;
+            this.stack = null;
+            return result;
+        }
+
+        private void sample(final long now, final long thresholdNanos, final long stackIntervalMillis) {
+            if (!this.running) {
+                return;
+            }
+            final long current = this.invocation;
+            final long start = this.started;
+            final FactoryMetrics metrics = this.factory;
+            // the invocation might have ended or another one started while reading
+            if (!this.running || this.invocation != current || metrics == null) {
+                return;
+            }
+            if (this.sampledInvocation == current || now - start <= thresholdNanos) {
+                return;
+            }
+            this.sampledInvocation = current;
+            if (!metrics.tryCaptureStack(System.currentTimeMillis(), stackIntervalMillis)) {
+                return;
+            }
+            final StackTraceElement[] trace = this.thread.getStackTrace();
+            synchronized (this) {
+                // discard the stack if the invocation ended while sampling it
+                if (this.running && this.invocation == current) {
+                    this.stackInvocation = current;
+                    this.stack = trace;
+                }
+            }
+        }
+    }
+}
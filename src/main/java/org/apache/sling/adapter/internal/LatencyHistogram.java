@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The <code>LatencyHistogram</code> counts latencies in a fixed set of
+ * buckets. Recording a latency does not allocate any objects and uses striped
+ * counters, such that concurrent threads do not contend on a single counter.
+ */
+final class LatencyHistogram {
+
+    /**
+     * The inclusive upper bounds of the buckets in nanoseconds. The last
+     * bucket counts all latencies above the last bound.
+     */
+    static final long[] BOUNDS = {
+        1_000L,
+        5_000L,
+        10_000L,
+        50_000L,
+        100_000L,
+        500_000L,
+        1_000_000L,
+        5_000_000L,
+        10_000_000L,
+        50_000_000L,
+        100_000_000L,
+        500_000_000L,
+        1_000_000_000L,
+        5_000_000_000L
+    };
+
+    /**
+     * The bucket bounds in seconds as used by the Prometheus text format.
+     */
+    static final String[] BOUNDS_IN_SECONDS = new String[BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUNDS_IN_SECONDS[i] =
+                    BigDecimal.valueOf(BOUNDS[i], 9).stripTrailingZeros().toPlainString();
+        }
+    }
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+
+    private final LongAdder sum = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a latency of the given number of nanoseconds.
+     */
+    void record(final long nanos) {
+        int bucket = 0;
+        while (bucket < BOUNDS.length && nanos > BOUNDS[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        sum.add(nanos);
+    }
+
+    /**
+     * Returns the current counts of all buckets. The last entry is the count
+     * of latencies above the last bound.
+     */
+    long[] getCounts() {
+        final long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the sum of all recorded latencies in nanoseconds.
+     */
+    long getSum() {
+        return sum.sum();
+    }
+
+    void reset() {
+        for (final LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        sum.reset();
+    }
+
+    /**
+     * Returns the upper bound in nanoseconds of the bucket containing the
+     * given quantile of the bucket <code>counts</code>, <code>-1</code> if no
+     * latency has been recorded or {@link Long#MAX_VALUE} if the quantile is
+     * above the last bound.
+     */
+    static long getQuantile(final long[] counts, final double quantile) {
+        long total = 0;
+        for (final long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return -1;
+        }
+        final long rank = (long) Math.ceil(total * quantile);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return BOUNDS[i];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * The <code>MappedAdaptableFactories</code> are the factory cache entries of
+ * the default resolution engine. They hold the resolved adapter factories
+ * indexed by the fully qualified name of the target class and lazily build a
+ * second index keyed by the identity of the target <code>Class</code>, such
+ * that a warm lookup does not need to hash any class names. The second index
+ * does not keep the target classes reachable.
+ */
+final class MappedAdaptableFactories extends AdaptableFactories {
+
+    /**
+     * The resolved adapter factories indexed by the fully qualified name
+     * of the target class. This map must not be modified, it may be shared
+     * with other entries.
+     */
+    private final Map<String, TargetFactories> factoriesByName;
+
+    /**
+     * The resolved adapter factories indexed by the target class. This table
+     * is filled on demand from {@link #factoriesByName}.
+     */
+    private final WeakClassTable<TargetFactories> factoriesByType = new WeakClassTable<>();
+
+    MappedAdaptableFactories(final Map<String, TargetFactories> factoriesByName, final Set<String> adaptableNames) {
+        super(adaptableNames);
+        this.factoriesByName = factoriesByName;
+    }
+
+    @Override
+    void forEachTarget(final BiConsumer<String, TargetFactories> action) {
+        factoriesByName.forEach(action);
+    }
+
+    @Override
+    boolean isEmpty() {
+        return factoriesByName.isEmpty();
+    }
+
+    @Override
+    AdaptableFactories share(final Set<String> adaptableNames) {
+        return new MappedAdaptableFactories(factoriesByName, adaptableNames);
+    }
+
+    @Override
+    long estimateSize(final Set<Object> seen) {
+        long size = 32 + estimateMapSize(getAdaptableNames().size()) + estimateMapSize(factoriesByType.size());
+        if (seen.add(factoriesByName)) {
+            size += estimateMapSize(factoriesByName.size());
+            for (final TargetFactories factories : factoriesByName.values()) {
+                size += factories.estimateSize(seen);
+            }
+        }
+        return size;
+    }
+
+    @Override
+    TargetFactories getTargetFactories(final Class<?> type) {
+        final TargetFactories factories = factoriesByType.get(type);
+        if (factories != null) {
+            return factories;
+        }
+        return factoriesByType.putIfAbsent(type, factoriesByName.getOrDefault(type.getName(), TargetFactories.NONE));
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The <code>NameInterner</code> canonicalizes the class names and the arrays
+ * of class names of the adapter factory registrations, such that equal names
+ * and equal arrays registered by many adapter factories are only kept once.
+ * <p>
+ * Interned names and arrays are never released. Their number is bounded by the
+ * distinct adaptable and adapter class name lists ever registered, which is
+ * small compared to the number of factory cache entries referring to them.
+ */
+final class NameInterner {
+
+    private final ConcurrentMap<String, String> names = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<List<String>, String[]> arrays = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the canonical instance of the <code>name</code>.
+     */
+    String intern(final String name) {
+        final String existing = names.putIfAbsent(name, name);
+        return existing != null ? existing : name;
+    }
+
+    /**
+     * Returns the canonical array equal to the <code>values</code>, whose
+     * elements are canonical instances as well. The returned array must not
+     * be modified.
+     */
+    String[] intern(final String[] values) {
+        final String[] interned = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            interned[i] = intern(values[i]);
+        }
+        final String[] existing = arrays.putIfAbsent(Arrays.asList(interned), interned);
+        return existing != null ? existing : interned;
+    }
+
+    /**
+     * Returns the number of canonical arrays.
+     */
+    int getArrayCount() {
+        return arrays.size();
+    }
+}
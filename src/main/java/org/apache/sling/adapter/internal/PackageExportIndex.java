@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.packageadmin.PackageAdmin;
+
+/**
+ * The <code>PackageExportIndex</code> knows whether the packages of adaptable
+ * and adapter classes are exported. The export status of each package is
+ * looked up from the {@link PackageAdmin} the first time it is asked for and
+ * remembered until bundles are resolved, unresolved or uninstalled or the
+ * packages are refreshed, which are the only events changing the set of
+ * exported packages.
+ */
+@Component(service = PackageExportIndex.class)
+public class PackageExportIndex implements BundleListener, FrameworkListener {
+
+    @SuppressWarnings("deprecation")
+    private final PackageAdmin packageAdmin;
+
+    private final BundleContext bundleContext;
+
+    /**
+     * The export status by package name. The map is replaced whenever the
+     * exported packages may have changed, such that a status looked up
+     * concurrently is recorded in the discarded map only.
+     */
+    private volatile ConcurrentMap<String, Boolean> exports = new ConcurrentHashMap<>();
+
+    @Activate
+    public PackageExportIndex(final BundleContext ctx, final @Reference PackageAdmin pckAdmin) {
+        this.bundleContext = ctx;
+        this.packageAdmin = pckAdmin;
+        this.bundleContext.addBundleListener(this);
+        this.bundleContext.addFrameworkListener(this);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        this.bundleContext.removeFrameworkListener(this);
+        this.bundleContext.removeBundleListener(this);
+        this.exports = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void bundleChanged(final BundleEvent event) {
+        switch (event.getType()) {
+            case BundleEvent.RESOLVED:
+            case BundleEvent.UNRESOLVED:
+            case BundleEvent.UNINSTALLED:
+                invalidate();
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void frameworkEvent(final FrameworkEvent event) {
+        if (event.getType() == FrameworkEvent.PACKAGES_REFRESHED) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Forgets the export status of all packages.
+     */
+    void invalidate() {
+        this.exports = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns the number of packages whose export status is known.
+     */
+    int size() {
+        return exports.size();
+    }
+
+    /**
+     * Check that the package containing the class is exported or is a java.*
+     * class.
+     *
+     * @param clazz the class name
+     * @return true if the package is exported
+     */
+    boolean isExported(final String clazz) {
+        final String packageName = AdapterManagerImpl.getPackageName(clazz);
+        if (packageName.startsWith("java.")) {
+            return true;
+        }
+        final ConcurrentMap<String, Boolean> map = this.exports;
+        Boolean exported = map.get(packageName);
+        if (exported == null) {
+            // not computed under the lock of the map to not block on the framework
+            exported = packageAdmin.getExportedPackage(packageName) != null;
+            map.put(packageName, exported);
+        }
+        return exported;
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The <code>PersistentHashMap</code> is an immutable map whose modified
+ * copies share all but the modified path with the original: a hash array
+ * mapped trie consuming five bits of the key hash per level. Adding or
+ * removing a key copies at most one small node per level, i.e. the cost is
+ * logarithmic in the size of the map instead of linear as for copying a
+ * <code>HashMap</code>.
+ * <p>
+ * Lookups do not lock and do not allocate. Iterating the map creates a list
+ * of its entries. Neither <code>null</code> keys nor <code>null</code> values
+ * are supported.
+ *
+ * @param <K> The type of the keys
+ * @param <V> The type of the values
+ */
+final class PersistentHashMap<K, V> extends AbstractMap<K, V> {
+
+    private static final int BITS = 5;
+
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(BitmapNode.EMPTY, 0);
+
+    private final Node root;
+
+    private final int size;
+
+    private PersistentHashMap(final Node root, final int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Returns the empty map.
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    /**
+     * Returns a map with the <code>value</code> mapped to the
+     * <code>key</code>. If the key is already mapped to the same value
+     * instance, this map is returned.
+     */
+    PersistentHashMap<K, V> with(final K key, final V value) {
+        final boolean contained = containsKey(key);
+        final Node newRoot = root.with(hash(key), 0, key, value);
+        return newRoot == root ? this : new PersistentHashMap<>(newRoot, contained ? size : size + 1);
+    }
+
+    /**
+     * Returns a map without the <code>key</code>. If the key is not
+     * contained, this map is returned.
+     */
+    PersistentHashMap<K, V> without(final Object key) {
+        final Node newRoot = root.without(hash(key), 0, key);
+        if (newRoot == root) {
+            return this;
+        }
+        return newRoot == null ? empty() : new PersistentHashMap<>(newRoot, size - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V get(final Object key) {
+        return key == null ? null : (V) root.get(hash(key), 0, key);
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                final List<Map.Entry<K, V>> entries = new ArrayList<>(size);
+                root.collect(entries);
+                return Collections.unmodifiableList(entries).iterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private static int hash(final Object key) {
+        final int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A node of the trie. Nodes are never modified once published.
+     */
+    private abstract static class Node {
+
+        abstract Object get(int hash, int shift, Object key);
+
+        /**
+         * Returns the node with the value mapped to the key, this node if
+         * the key is mapped to the same value already.
+         */
+        abstract Node with(int hash, int shift, Object key, Object value);
+
+        /**
+         * Returns the node without the key, this node if the key is not
+         * contained and <code>null</code> if the node becomes empty.
+         */
+        abstract Node without(int hash, int shift, Object key);
+
+        abstract <K, V> void collect(List<Map.Entry<K, V>> entries);
+    }
+
+    /**
+     * A node holding up to 32 entries or child nodes indexed by five bits of
+     * the key hash. The array holds a key and a value per set bit of the
+     * bitmap, or <code>null</code> and a child node.
+     */
+    private static final class BitmapNode extends Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        private final int bitmap;
+
+        private final Object[] array;
+
+        BitmapNode(final int bitmap, final Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private int index(final int bit) {
+            return 2 * Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object get(final int hash, final int shift, final Object key) {
+            final int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            final int i = index(bit);
+            final Object k = array[i];
+            if (k == null) {
+                return ((Node) array[i + 1]).get(hash, shift + BITS, key);
+            }
+            return key.equals(k) ? array[i + 1] : null;
+        }
+
+        @Override
+        Node with(final int hash, final int shift, final Object key, final Object value) {
+            final int bit = 1 << ((hash >>> shift) & 31);
+            final int i = index(bit);
+            if ((bitmap & bit) == 0) {
+                final Object[] newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, i);
+                newArray[i] = key;
+                newArray[i + 1] = value;
+                System.arraycopy(array, i, newArray, i + 2, array.length - i);
+                return new BitmapNode(bitmap | bit, newArray);
+            }
+
+            final Object k = array[i];
+            final Object v = array[i + 1];
+            if (k == null) {
+                final Node child = ((Node) v).with(hash, shift + BITS, key, value);
+                return child == v ? this : replace(i, null, child);
+            }
+            if (key.equals(k)) {
+                return v == value ? this : replace(i, k, value);
+            }
+            return replace(i, null, create(shift + BITS, k, v, hash, key, value));
+        }
+
+        @Override
+        Node without(final int hash, final int shift, final Object key) {
+            final int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            final int i = index(bit);
+            final Object k = array[i];
+            if (k == null) {
+                final Node child = ((Node) array[i + 1]).without(hash, shift + BITS, key);
+                if (child == array[i + 1]) {
+                    return this;
+                }
+                return child != null ? replace(i, null, child) : remove(i, bit);
+            }
+            return key.equals(k) ? remove(i, bit) : this;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        <K, V> void collect(final List<Map.Entry<K, V>> entries) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) {
+                    ((Node) array[i + 1]).collect(entries);
+                } else {
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>((K) array[i], (V) array[i + 1]));
+                }
+            }
+        }
+
+        private BitmapNode replace(final int i, final Object key, final Object value) {
+            final Object[] newArray = array.clone();
+            newArray[i] = key;
+            newArray[i + 1] = value;
+            return new BitmapNode(bitmap, newArray);
+        }
+
+        private BitmapNode remove(final int i, final int bit) {
+            if (bitmap == bit) {
+                return null;
+            }
+            final Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, i);
+            System.arraycopy(array, i + 2, newArray, i, array.length - i - 2);
+            return new BitmapNode(bitmap & ~bit, newArray);
+        }
+
+        /**
+         * Creates the node holding two entries which share the hash bits
+         * consumed so far.
+         */
+        private static Node create(
+                final int shift,
+                final Object key1,
+                final Object value1,
+                final int hash2,
+                final Object key2,
+                final Object value2) {
+            final int hash1 = hash(key1);
+            if (hash1 == hash2) {
+                return new CollisionNode(hash1, new Object[] {key1, value1, key2, value2});
+            }
+            return EMPTY.with(hash1, shift, key1, value1).with(hash2, shift, key2, value2);
+        }
+    }
+
+    /**
+     * A node holding the entries of keys with the same hash.
+     */
+    private static final class CollisionNode extends Node {
+
+        private final int hash;
+
+        private final Object[] array;
+
+        CollisionNode(final int hash, final Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int indexOf(final Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object get(final int hash, final int shift, final Object key) {
+            if (hash != this.hash) {
+                return null;
+            }
+            final int i = indexOf(key);
+            return i < 0 ? null : array[i + 1];
+        }
+
+        @Override
+        Node with(final int hash, final int shift, final Object key, final Object value) {
+            if (hash != this.hash) {
+                final int bit = 1 << ((this.hash >>> shift) & 31);
+                return new BitmapNode(bit, new Object[] {null, this}).with(hash, shift, key, value);
+            }
+            final int i = indexOf(key);
+            if (i >= 0) {
+                if (array[i + 1] == value) {
+                    return this;
+                }
+                final Object[] newArray = array.clone();
+                newArray[i + 1] = value;
+                return new CollisionNode(hash, newArray);
+            }
+            final Object[] newArray = new Object[array.length + 2];
+            System.arraycopy(array, 0, newArray, 0, array.length);
+            newArray[array.length] = key;
+            newArray[array.length + 1] = value;
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override
+        Node without(final int hash, final int shift, final Object key) {
+            final int i = hash == this.hash ? indexOf(key) : -1;
+            if (i < 0) {
+                return this;
+            }
+            if (array.length == 2) {
+                return null;
+            }
+            final Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, i);
+            System.arraycopy(array, i + 2, newArray, i, array.length - i - 2);
+            return new CollisionNode(hash, newArray);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        <K, V> void collect(final List<Map.Entry<K, V>> entries) {
+            for (int i = 0; i < array.length; i += 2) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>((K) array[i], (V) array[i + 1]));
+            }
+        }
+    }
+}
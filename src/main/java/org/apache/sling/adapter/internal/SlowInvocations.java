@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The <code>SlowInvocations</code> keep the most recent adapter factory
+ * invocations exceeding the slow invocation threshold in a fixed size ring
+ * buffer.
+ */
+final class SlowInvocations {
+
+    /**
+     * A single slow adapter factory invocation.
+     *
+     * @param timestamp The time the invocation returned in milliseconds since
+     *            the epoch
+     * @param nanos The duration of the invocation in nanoseconds
+     * @param serviceId The service id of the adapter factory
+     * @param bundle The bundle providing the adapter factory
+     * @param factory The class name of the adapter factory
+     * @param adaptable The class name of the adaptable
+     * @param target The class name of the requested adapter
+     * @param stack The call stack of the invocation or <code>null</code> if
+     *            it has not been captured
+     */
+    record SlowInvocation(
+            long timestamp,
+            long nanos,
+            long serviceId,
+            String bundle,
+            String factory,
+            String adaptable,
+            String target,
+            String stack) {}
+
+    private final AtomicReferenceArray<SlowInvocation> buffer;
+
+    private final AtomicLong next = new AtomicLong();
+
+    SlowInvocations(final int size) {
+        this.buffer = new AtomicReferenceArray<>(Math.max(1, size));
+    }
+
+    void add(final SlowInvocation invocation) {
+        buffer.set((int) (next.getAndIncrement() % buffer.length()), invocation);
+    }
+
+    /**
+     * Returns the kept invocations, the most recent first.
+     */
+    List<SlowInvocation> getRecent() {
+        final long last = next.get();
+        final List<SlowInvocation> result = new ArrayList<>(buffer.length());
+        for (long i = last - 1; i >= 0 && i >= last - buffer.length(); i--) {
+            final SlowInvocation invocation = buffer.get((int) (i % buffer.length()));
+            if (invocation != null) {
+                result.add(invocation);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * The <code>TargetFactories</code> are the adapter factories to try in order
+ * to adapt instances of one adaptable class to one target type. They count
+ * the adaptions until the hotness threshold is reached and then compile the
+ * factories into an {@link AdapterDispatcher}.
+ * <p>
+ * Instances may be shared by the {@link AdaptableFactories} of several
+ * adaptable classes and are dropped from the factory cache with the last of
+ * them whenever the adapter factories change, such that a dispatcher never
+ * outlives the registry it has been compiled from.
+ */
+final class TargetFactories {
+
+    static final TargetFactories NONE = new TargetFactories(AdaptableFactories.NO_FACTORIES);
+
+    private final AdapterFactoryDescriptor[] factories;
+
+    /**
+     * The number of adaptions counted towards the hotness threshold or
+     * <code>-1</code> once the dispatcher has been compiled or should not be
+     * compiled at all. Updates from concurrent threads may get lost, which
+     * only delays the compilation.
+     */
+    private int adaptions;
+
+    private volatile AdapterDispatcher dispatcher;
+
+    TargetFactories(final AdapterFactoryDescriptor[] factories) {
+        this.factories = factories;
+        this.adaptions = factories.length == 0 ? -1 : 0;
+    }
+
+    /**
+     * Returns target factories trying the adapter factories of
+     * <code>first</code> before the ones of <code>second</code> not already
+     * contained in <code>first</code>. If <code>second</code> does not add
+     * any factory, <code>first</code> itself is returned.
+     */
+    static TargetFactories concat(final TargetFactories first, final TargetFactories second) {
+        AdapterFactoryDescriptor[] factories = null;
+        int length = first.factories.length;
+        for (final AdapterFactoryDescriptor descriptor : second.factories) {
+            if (!contains(first.factories, first.factories.length, descriptor)
+                    && (factories == null || !contains(factories, length, descriptor))) {
+                if (factories == null) {
+                    factories = Arrays.copyOf(first.factories, first.factories.length + second.factories.length);
+                }
+                factories[length++] = descriptor;
+            }
+        }
+        return factories == null ? first : new TargetFactories(Arrays.copyOf(factories, length));
+    }
+
+    private static boolean contains(
+            final AdapterFactoryDescriptor[] factories, final int length, final AdapterFactoryDescriptor descriptor) {
+        for (int i = 0; i < length; i++) {
+            if (factories[i] == descriptor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the estimated number of bytes retained by these target
+     * factories unless they are contained in the <code>seen</code> set, in
+     * which case <code>0</code> is returned.
+     */
+    long estimateSize(final Set<Object> seen) {
+        return seen.add(this) ? 24 + AdaptableFactories.estimateArraySize(factories.length) : 0;
+    }
+
+    /**
+     * Returns the adapter factories in the order to try them. The array must
+     * not be modified.
+     */
+    AdapterFactoryDescriptor[] getFactories() {
+        return factories;
+    }
+
+    /**
+     * Returns the dispatcher of the adapter factories. The dispatcher is
+     * compiled once this method has been called <code>threshold</code>
+     * times, before it <code>null</code> is returned. <code>null</code> is
+     * also returned if the dispatcher cannot be compiled.
+     */
+    AdapterDispatcher getDispatcher(final int threshold) {
+        final AdapterDispatcher current = this.dispatcher;
+        if (current != null || adaptions < 0) {
+            return current;
+        }
+        if (++adaptions < threshold) {
+            return null;
+        }
+        adaptions = -1;
+        final AdapterDispatcher compiled = AdapterDispatchers.compile(factories);
+        this.dispatcher = compiled;
+        return compiled;
+    }
+
+    /**
+     * Returns the compiled dispatcher or <code>null</code> if it has not been
+     * compiled (yet).
+     */
+    AdapterDispatcher getDispatcher() {
+        return dispatcher;
+    }
+}
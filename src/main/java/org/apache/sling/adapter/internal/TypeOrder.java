@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The <code>TypeOrder</code> is the linearized, duplicate free order in
+ * which the adapter factories registered for a class, its interfaces and its
+ * super classes are tried: the class itself followed by the orders of its
+ * direct interfaces in declaration order and finally the order of its super
+ * class, each type only at its first position. Interfaces inherited along
+ * several paths are thus only considered once.
+ * <p>
+ * The order of a class never changes and is computed once per class and
+ * {@link Cache}. It refers to the super types of the class but not to the
+ * class itself.
+ */
+final class TypeOrder {
+
+    private final Class<?>[] parents;
+
+    private final List<String> names;
+
+    private final Set<String> nameSet;
+
+    private TypeOrder(final Class<?> type, final Cache cache) {
+        final Class<?>[] interfaces = type.getInterfaces();
+        final Class<?> superclass = type.getSuperclass();
+        final Class<?>[] typeParents = new Class<?>[interfaces.length + (superclass != null ? 1 : 0)];
+        System.arraycopy(interfaces, 0, typeParents, 0, interfaces.length);
+        if (superclass != null) {
+            typeParents[interfaces.length] = superclass;
+        }
+
+        final Set<String> order = new LinkedHashSet<>();
+        order.add(type.getName());
+        for (final Class<?> parent : typeParents) {
+            order.addAll(cache.get(parent).names);
+        }
+        this.parents = typeParents;
+        this.names = Collections.unmodifiableList(new ArrayList<>(order));
+        this.nameSet = Collections.unmodifiableSet(order);
+    }
+
+    /**
+     * Returns the direct interfaces in declaration order followed by the
+     * super class, if any. The array must not be modified.
+     */
+    Class<?>[] getParents() {
+        return parents;
+    }
+
+    /**
+     * Returns the fully qualified names of the type and all its super types
+     * in the order their adapter factories are tried.
+     */
+    List<String> getNames() {
+        return names;
+    }
+
+    /**
+     * Returns the fully qualified names of the type and all its super types.
+     */
+    Set<String> getNameSet() {
+        return nameSet;
+    }
+
+    /**
+     * Caches the type orders of the classes. The orders are kept by the
+     * classes, which include classes of other bundles and of the JDK, and
+     * refer to the class loader of this bundle. The cache must thus not be
+     * static but owned by the adapter manager, such that the orders are
+     * dropped with it instead of keeping the class loader of this bundle
+     * reachable.
+     */
+    static final class Cache extends ClassValue<TypeOrder> {
+
+        @Override
+        protected TypeOrder computeValue(final Class<?> type) {
+            return new TypeOrder(type, this);
+        }
+    }
+}
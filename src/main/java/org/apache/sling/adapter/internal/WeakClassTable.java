@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * The <code>WeakClassTable</code> maps classes to values by class identity
+ * without keeping the classes, and thus their class loaders, reachable.
+ * Lookups neither hash class names nor lock or allocate.
+ * <p>
+ * The table is a small open addressing table with linear probing, which is
+ * copied on each added class. Entries of garbage collected classes are dropped
+ * when the table is copied. The table is meant for the few classes a single
+ * adaptable class is adapted to.
+ *
+ * @param <V> The type of the values
+ */
+final class WeakClassTable<V> {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private volatile Entry<V>[] entries = newTable(INITIAL_CAPACITY);
+
+    /**
+     * The number of entries, including those whose class has been collected
+     * since the table was last copied. Guarded by the table.
+     */
+    private int size;
+
+    /**
+     * Returns the value of the given <code>type</code> or <code>null</code>
+     * if there is none.
+     */
+    V get(final Class<?> type) {
+        final Entry<V>[] table = this.entries;
+        final int mask = table.length - 1;
+        for (int i = System.identityHashCode(type) & mask; ; i = (i + 1) & mask) {
+            final Entry<V> entry = table[i];
+            if (entry == null) {
+                return null;
+            }
+            if (entry.get() == type) {
+                return entry.value;
+            }
+        }
+    }
+
+    /**
+     * Adds the <code>value</code> for the given <code>type</code> unless
+     * there already is a value for it.
+     *
+     * @return The value of the type in the table
+     */
+    synchronized V putIfAbsent(final Class<?> type, final V value) {
+        final V existing = get(type);
+        if (existing != null) {
+            return existing;
+        }
+
+        final Entry<V>[] table = this.entries;
+        final Entry<V>[] newTable = newTable((size + 1) * 2 > table.length ? table.length * 2 : table.length);
+        int newSize = 0;
+        for (final Entry<V> entry : table) {
+            if (entry != null) {
+                final Class<?> key = entry.get();
+                if (key != null) {
+                    insert(newTable, key, entry);
+                    newSize++;
+                }
+            }
+        }
+        insert(newTable, type, new Entry<>(type, value));
+        this.size = newSize + 1;
+        this.entries = newTable;
+        return value;
+    }
+
+    /**
+     * Returns the number of entries, which may include entries of classes
+     * collected in the meantime.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    private static void insert(final Entry<?>[] table, final Class<?> type, final Entry<?> entry) {
+        final int mask = table.length - 1;
+        int i = System.identityHashCode(type) & mask;
+        while (table[i] != null) {
+            i = (i + 1) & mask;
+        }
+        table[i] = entry;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Entry<V>[] newTable(final int capacity) {
+        return new Entry[capacity];
+    }
+
+    private static final class Entry<V> extends WeakReference<Class<?>> {
+
+        final V value;
+
+        Entry(final Class<?> type, final V value) {
+            super(type);
+            this.value = value;
+        }
+    }
+}
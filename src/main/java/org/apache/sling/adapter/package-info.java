@@ -17,7 +17,7 @@
  * under the License.
  */
 
-@Version("2.1.0")
+@Version("2.2.0")
 package org.apache.sling.adapter;
 
 import org.osgi.annotation.versioning.Version;
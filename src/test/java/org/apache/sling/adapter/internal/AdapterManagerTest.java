@@ -18,26 +18,52 @@
  */
 package org.apache.sling.adapter.internal;
 
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.sling.adapter.AdapterLookup;
+import org.apache.sling.adapter.Adapters;
 import org.apache.sling.adapter.Adaption;
 import org.apache.sling.api.adapter.AdapterFactory;
 import org.apache.sling.api.adapter.SlingAdaptable;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.packageadmin.ExportedPackage;
 import org.osgi.service.packageadmin.PackageAdmin;
+import org.osgi.util.converter.Converters;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 class AdapterManagerTest {
 
@@ -50,7 +76,15 @@ class AdapterManagerTest {
         final ExportedPackage ep = Mockito.mock(ExportedPackage.class);
         Mockito.when(pa.getExportedPackage(Mockito.anyString())).thenReturn(ep);
 
-        this.am = new AdapterManagerImpl(pa);
+        this.am = new AdapterManagerImpl(
+                Mockito.mock(BundleContext.class),
+                new PackageExportIndex(Mockito.mock(BundleContext.class), pa),
+                new AdapterMetrics(),
+                createConfig(Map.of()));
+    }
+
+    private static AdapterManagerImpl.Config createConfig(final Map<String, Object> properties) {
+        return Converters.standardConverter().convert(properties).to(AdapterManagerImpl.Config.class);
     }
 
     /**
@@ -100,19 +134,19 @@ class AdapterManagerTest {
     void testInvalidRegistrations() {
         ServiceReference<AdapterFactory> ref =
                 createServiceReference(0, null, new String[] {TestAdapter.class.getName()});
-        am.bindAdapterFactory(Mockito.mock(AdapterFactory.class), ref);
+        am.bindAdapterFactory(TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), ref);
         assertTrue(am.getFactories().isEmpty(), "AdapterFactoryDescriptors must be empty");
 
         ref = createServiceReference(0, new String[0], new String[] {TestAdapter.class.getName()});
-        am.bindAdapterFactory(Mockito.mock(AdapterFactory.class), ref);
+        am.bindAdapterFactory(TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), ref);
         assertTrue(am.getFactories().isEmpty(), "AdapterFactoryDescriptors must be empty");
 
         ref = createServiceReference(0, new String[] {TestSlingAdaptable.class.getName()}, null);
-        am.bindAdapterFactory(Mockito.mock(AdapterFactory.class), ref);
+        am.bindAdapterFactory(TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), ref);
         assertTrue(am.getFactories().isEmpty(), "AdapterFactoryDescriptors must be empty");
 
         ref = createServiceReference(0, new String[] {TestSlingAdaptable.class.getName()}, new String[0]);
-        am.bindAdapterFactory(Mockito.mock(AdapterFactory.class), ref);
+        am.bindAdapterFactory(TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), ref);
         assertTrue(am.getFactories().isEmpty(), "AdapterFactoryDescriptors must be empty");
     }
 
@@ -125,7 +159,7 @@ class AdapterManagerTest {
                         .getBundleContext()
                         .registerService(Mockito.eq(Adaption.class), Mockito.eq(AdaptionImpl.INSTANCE), Mockito.any()))
                 .thenReturn(registration);
-        am.bindAdapterFactory(Mockito.mock(AdapterFactory.class), ref);
+        am.bindAdapterFactory(TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), ref);
 
         // check that a service is registered
         Mockito.verify(ref.getBundle().getBundleContext())
@@ -158,6 +192,424 @@ class AdapterManagerTest {
         assertTrue(am.getFactoryCache().isEmpty(), "AdapterFactory cache must be empty");
     }
 
+    @Test
+    void testAggregatedAdaptions() {
+        am.modified(createConfig(Map.of("adaption.services", AdapterManagerImpl.ADAPTIONS_BUNDLE)));
+        final ServiceReference<AdapterFactory> ref = createServiceReference();
+        final BundleContext ctx = ref.getBundle().getBundleContext();
+        @SuppressWarnings("unchecked")
+        final ServiceRegistration<Adaption> registration = Mockito.mock(ServiceRegistration.class);
+        Mockito.when(ctx.registerService(Mockito.eq(Adaption.class), Mockito.eq(AdaptionImpl.INSTANCE), Mockito.any()))
+                .thenReturn(registration);
+
+        // further factories of the same bundle update the single service
+        final ServiceReference<AdapterFactory> ref2 = createServiceReference2();
+        final ServiceReference<AdapterFactory> ref3 = createServiceReference(
+                3, new String[] {TestSlingAdaptable.class.getName()}, new String[] {TestAdapter.class.getName()});
+        final Bundle bundle = ref.getBundle();
+        Mockito.when(ref2.getBundle()).thenReturn(bundle);
+        Mockito.when(ref3.getBundle()).thenReturn(bundle);
+        Mockito.when(ref.compareTo(ref2)).thenReturn(-1);
+        Mockito.when(ref2.compareTo(ref)).thenReturn(1);
+        Mockito.when(ref.compareTo(ref3)).thenReturn(-1);
+        Mockito.when(ref3.compareTo(ref)).thenReturn(1);
+        Mockito.when(ref2.compareTo(ref3)).thenReturn(-1);
+        Mockito.when(ref3.compareTo(ref2)).thenReturn(1);
+        am.bindAdapterFactory(TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), ref);
+        am.bindAdapterFactory(TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), ref2);
+        Mockito.verify(ctx)
+                .registerService(Mockito.eq(Adaption.class), Mockito.eq(AdaptionImpl.INSTANCE), Mockito.any());
+        Mockito.verify(registration).setProperties(Mockito.any());
+
+        // no service event if the class names are already listed
+        am.bindAdapterFactory(TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), ref3);
+        am.unbindAdapterFactory(ref3);
+        Mockito.verify(registration).setProperties(Mockito.any());
+
+        am.unbindAdapterFactory(ref2);
+        Mockito.verify(registration, Mockito.times(2)).setProperties(Mockito.any());
+        Mockito.verify(registration, Mockito.never()).unregister();
+        am.unbindAdapterFactory(ref);
+        Mockito.verify(registration).unregister();
+        Mockito.verify(ctx)
+                .registerService(Mockito.eq(Adaption.class), Mockito.eq(AdaptionImpl.INSTANCE), Mockito.any());
+    }
+
+    @Test
+    void testAggregatedAdaptionsRegisteredWithoutLocks() throws Exception {
+        am.modified(createConfig(Map.of("adaption.services", AdapterManagerImpl.ADAPTIONS_BUNDLE)));
+        final ServiceReference<AdapterFactory> ref = createServiceReference();
+        final ServiceReference<AdapterFactory> ref2 = createServiceReference2();
+        final Bundle bundle = ref.getBundle();
+        Mockito.when(ref2.getBundle()).thenReturn(bundle);
+        Mockito.when(ref.compareTo(ref2)).thenReturn(-1);
+        Mockito.when(ref2.compareTo(ref)).thenReturn(1);
+        final BundleContext ctx = bundle.getBundleContext();
+        @SuppressWarnings("unchecked")
+        final ServiceRegistration<Adaption> registration = Mockito.mock(ServiceRegistration.class);
+
+        // a service listener binding another factory of the bundle on another thread
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Mockito.when(ctx.registerService(
+                            Mockito.eq(Adaption.class), Mockito.eq(AdaptionImpl.INSTANCE), Mockito.any()))
+                    .thenAnswer(invocation -> {
+                        executor.submit(() -> am.bindAdapterFactory(
+                                        TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), ref2))
+                                .get(10, TimeUnit.SECONDS);
+                        return registration;
+                    });
+            am.bindAdapterFactory(TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), ref);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // the change of the listener is published by the registering thread
+        Mockito.verify(ctx)
+                .registerService(Mockito.eq(Adaption.class), Mockito.eq(AdaptionImpl.INSTANCE), Mockito.any());
+        Mockito.verify(registration).setProperties(Mockito.any());
+    }
+
+    @Test
+    void testCoalescedRegistrations() {
+        am.modified(createConfig(Map.of("registration.coalescing.ms", 60_000)));
+        final long generation = am.getRegistryGeneration();
+        final TestSlingAdaptable data = new TestSlingAdaptable();
+        final AdapterFactory af = Mockito.mock(AdapterFactory.class);
+        final ITestAdapter adapter = Mockito.mock(ITestAdapter.class);
+        Mockito.when(af.getAdapter(data, ITestAdapter.class)).thenReturn(adapter);
+        final ServiceReference<AdapterFactory> ref = createServiceReference();
+        final ServiceReference<AdapterFactory> ref2 = createServiceReference2();
+        am.bindAdapterFactory(TestServiceObjects.of(af), ref);
+        am.bindAdapterFactory(TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), ref2);
+        am.unbindAdapterFactory(ref2);
+
+        // lookups use the last published registry until the changes are flushed
+        assertNull(am.getAdapter(data, ITestAdapter.class));
+        assertEquals(generation, am.getRegistryGeneration());
+        assertTrue(am.getFactories().isEmpty());
+        Mockito.verify(ref.getBundle().getBundleContext(), Mockito.never())
+                .registerService(Mockito.eq(Adaption.class), Mockito.eq(AdaptionImpl.INSTANCE), Mockito.any());
+
+        am.flushRegistrations();
+        assertTrue(am.getRegistryGeneration() > generation);
+        assertSame(adapter, am.getAdapter(data, ITestAdapter.class));
+        assertTrue(am.getFactories().get(TestSlingAdaptable2.class.getName()).isEmpty());
+        Mockito.verify(ref.getBundle().getBundleContext())
+                .registerService(Mockito.eq(Adaption.class), Mockito.eq(AdaptionImpl.INSTANCE), Mockito.any());
+        Mockito.verify(ref2.getBundle().getBundleContext(), Mockito.never())
+                .registerService(Mockito.eq(Adaption.class), Mockito.eq(AdaptionImpl.INSTANCE), Mockito.any());
+
+        // unregistered factories are released right away and not invoked anymore
+        am.unbindAdapterFactory(ref);
+        assertFalse(am.getFactories().get(TestSlingAdaptable.class.getName()).isEmpty());
+        assertNull(am.getAdapter(data, ITestAdapter.class));
+
+        // disabling coalescing publishes pending changes
+        am.modified(createConfig(Map.of()));
+        assertTrue(am.getFactories().get(TestSlingAdaptable.class.getName()).isEmpty());
+    }
+
+    @Test
+    void testCoalescedUnregistrationWithDispatcher() {
+        am.modified(createConfig(
+                Map.of("registration.coalescing.ms", 60_000, "dispatcher.enabled", true, "dispatcher.threshold", 1)));
+        final TestSlingAdaptable data = new TestSlingAdaptable();
+        final AdapterFactory af = Mockito.mock(AdapterFactory.class);
+        final ITestAdapter adapter = Mockito.mock(ITestAdapter.class);
+        Mockito.when(af.getAdapter(data, ITestAdapter.class)).thenReturn(adapter);
+        final ServiceReference<AdapterFactory> ref = createServiceReference();
+        final TestServiceObjects<AdapterFactory> serviceObjects = TestServiceObjects.of(af);
+        am.bindAdapterFactory(serviceObjects, ref);
+        am.flushRegistrations();
+        for (int i = 0; i < 3; i++) {
+            assertSame(adapter, am.getAdapter(data, ITestAdapter.class));
+        }
+        assertNotNull(am.getFactoryCache()
+                .get(TestSlingAdaptable.class)
+                .getTargetFactories(ITestAdapter.class)
+                .getDispatcher());
+
+        // the released factory is skipped by the dispatcher until the change is flushed
+        am.unbindAdapterFactory(ref);
+        assertEquals(1, serviceObjects.getUngets());
+        assertNull(am.getAdapter(data, ITestAdapter.class));
+        Mockito.verify(af, Mockito.times(3)).getAdapter(data, ITestAdapter.class);
+
+        am.flushRegistrations();
+        assertNull(am.getAdapter(data, ITestAdapter.class));
+    }
+
+    @Test
+    void testCoalescingWindow() throws InterruptedException {
+        am.modified(createConfig(Map.of("registration.coalescing.ms", 10)));
+        am.bindAdapterFactory(TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), createServiceReference());
+        for (int i = 0; i < 500 && am.getFactories().isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(am.getFactories().isEmpty(), "Expect the change to be published after the window");
+        am.deactivate();
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    void testCoalescingUntilFrameworkStarted() throws InterruptedException {
+        final BundleContext ctx = Mockito.mock(BundleContext.class);
+        final Bundle framework = Mockito.mock(Bundle.class);
+        Mockito.when(framework.getState()).thenReturn(Bundle.STARTING);
+        Mockito.when(ctx.getBundle(Constants.SYSTEM_BUNDLE_ID)).thenReturn(framework);
+        final PackageAdmin pa = Mockito.mock(PackageAdmin.class);
+        final AdapterManagerImpl manager = new AdapterManagerImpl(
+                ctx,
+                new PackageExportIndex(Mockito.mock(BundleContext.class), pa),
+                new AdapterMetrics(),
+                createConfig(Map.of("registration.coalescing.ms", 1)));
+        final ArgumentCaptor<FrameworkListener> listener = ArgumentCaptor.forClass(FrameworkListener.class);
+        Mockito.verify(ctx).addFrameworkListener(listener.capture());
+        try {
+            manager.bindAdapterFactory(
+                    TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), createServiceReference());
+            Thread.sleep(50);
+            assertTrue(manager.getFactories().isEmpty(), "Expect changes to be held while the framework starts");
+
+            listener.getValue().frameworkEvent(new FrameworkEvent(FrameworkEvent.STARTED, framework, null));
+            assertFalse(manager.getFactories().isEmpty());
+            Mockito.verify(ctx).removeFrameworkListener(listener.getValue());
+        } finally {
+            manager.deactivate();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    void testFrameworkStartedWhileActivating() throws InterruptedException {
+        final BundleContext ctx = Mockito.mock(BundleContext.class);
+        final Bundle framework = Mockito.mock(Bundle.class);
+        Mockito.when(ctx.getBundle(Constants.SYSTEM_BUNDLE_ID)).thenReturn(framework);
+        final ArgumentCaptor<FrameworkListener> listener = ArgumentCaptor.forClass(FrameworkListener.class);
+        Mockito.doNothing().when(ctx).addFrameworkListener(listener.capture());
+
+        // the framework starts right after its state has been read
+        Mockito.when(framework.getState()).thenAnswer(invocation -> {
+            listener.getValue().frameworkEvent(new FrameworkEvent(FrameworkEvent.STARTED, framework, null));
+            return Bundle.STARTING;
+        });
+        final PackageAdmin pa = Mockito.mock(PackageAdmin.class);
+        final AdapterManagerImpl manager = new AdapterManagerImpl(
+                ctx,
+                new PackageExportIndex(Mockito.mock(BundleContext.class), pa),
+                new AdapterMetrics(),
+                createConfig(Map.of("registration.coalescing.ms", 1)));
+        try {
+            Mockito.verify(ctx).removeFrameworkListener(listener.getValue());
+            manager.bindAdapterFactory(
+                    TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), createServiceReference());
+            for (int i = 0; i < 100 && manager.getFactories().isEmpty(); i++) {
+                Thread.sleep(10);
+            }
+            assertFalse(manager.getFactories().isEmpty(), "Expect changes not to be held once the framework started");
+        } finally {
+            manager.deactivate();
+        }
+    }
+
+    @Test
+    void testRegistrySnapshots() {
+        final Map<String, AdapterFactoryDescriptorMap> initial = am.getFactories();
+        final long generation = am.getRegistryGeneration();
+
+        final ServiceReference<AdapterFactory> ref = createServiceReference();
+        am.bindAdapterFactory(TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), ref);
+        final Map<String, AdapterFactoryDescriptorMap> registered = am.getFactories();
+        assertTrue(initial.isEmpty(), "Published snapshot must not be modified");
+        assertEquals(generation + 1, am.getRegistryGeneration());
+        assertEquals(1, registered.get(TestSlingAdaptable.class.getName()).size());
+
+        am.unbindAdapterFactory(ref);
+        assertEquals(1, registered.get(TestSlingAdaptable.class.getName()).size());
+        assertTrue(am.getFactories().get(TestSlingAdaptable.class.getName()).isEmpty());
+        assertEquals(generation + 2, am.getRegistryGeneration());
+
+        // unbinding an unknown reference does not publish a new snapshot
+        am.unbindAdapterFactory(ref);
+        assertEquals(generation + 2, am.getRegistryGeneration());
+    }
+
+    @Test
+    void testUnregisterOnlyCopiesOwnDescriptorMaps() {
+        final ServiceReference<AdapterFactory> ref = createServiceReference();
+        final ServiceReference<AdapterFactory> ref2 = createServiceReference2();
+        am.bindAdapterFactory(TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), ref);
+        am.bindAdapterFactory(TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), ref2);
+        final Map<String, AdapterFactoryDescriptorMap> registered = am.getFactories();
+
+        am.unbindAdapterFactory(ref2);
+        final Map<String, AdapterFactoryDescriptorMap> unregistered = am.getFactories();
+        assertSame(
+                registered.get(TestSlingAdaptable.class.getName()),
+                unregistered.get(TestSlingAdaptable.class.getName()));
+        assertTrue(unregistered.get(TestSlingAdaptable2.class.getName()).isEmpty());
+        Mockito.verify(ref, Mockito.never()).compareTo(ref2);
+        Mockito.verify(ref2, Mockito.never()).compareTo(ref);
+    }
+
+    @Test
+    void testNoStaleCacheEntriesAfterConcurrentChanges() throws InterruptedException {
+        final TestSlingAdaptable2 data = new TestSlingAdaptable2();
+        final AdapterFactory af = Mockito.mock(AdapterFactory.class);
+        Mockito.when(af.getAdapter(data, ITestAdapter.class)).thenReturn(Mockito.mock(ITestAdapter.class));
+        final ServiceReference<AdapterFactory> ref = createServiceReference();
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(() -> {
+                while (running.get()) {
+                    am.getAdapter(data, ITestAdapter.class);
+                }
+            });
+            readers[i].start();
+        }
+        try {
+            for (int i = 0; i < 500; i++) {
+                am.bindAdapterFactory(TestServiceObjects.of(af), ref);
+                am.unbindAdapterFactory(ref);
+            }
+        } finally {
+            running.set(false);
+            for (final Thread reader : readers) {
+                reader.join();
+            }
+        }
+
+        assertNull(am.getAdapter(data, ITestAdapter.class), "Expect no stale adapter factory");
+        for (final AdaptableFactories entry : am.getFactoryCache().values()) {
+            assertEquals(0, entry.getFactories(ITestAdapter.class).length);
+        }
+    }
+
+    @Test
+    void testConcurrentCacheMissesComputeOnce() throws Exception {
+        final TestSlingAdaptable2 data = new TestSlingAdaptable2();
+        final AdapterFactory af = Mockito.mock(AdapterFactory.class);
+        Mockito.when(af.getAdapter(data, ITestAdapter.class)).thenReturn(Mockito.mock(ITestAdapter.class));
+        am.bindAdapterFactory(TestServiceObjects.of(af), createServiceReference());
+
+        final int threads = 8;
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Object>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(() -> {
+                    barrier.await();
+                    return am.getAdapter(data, ITestAdapter.class);
+                }));
+            }
+            for (final Future<Object> result : results) {
+                assertNotNull(result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // each class of the hierarchy has been computed exactly once
+        assertEquals(am.getFactoryCache().size(), am.getCacheFills());
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    void testRegistrationDuringParentFill() throws Exception {
+        final CountDownLatch computed = new CountDownLatch(1);
+        final CountDownLatch registered = new CountDownLatch(1);
+        final AtomicBoolean pause = new AtomicBoolean(true);
+        final AdapterManagerImpl manager =
+                new AdapterManagerImpl(
+                        Mockito.mock(BundleContext.class),
+                        new PackageExportIndex(Mockito.mock(BundleContext.class), Mockito.mock(PackageAdmin.class)),
+                        new AdapterMetrics(),
+                        createConfig(Map.of())) {
+                    @Override
+                    AdaptableFactories createAdapterFactories(final Class<?> clazz, final AdapterTypeIndex index) {
+                        final AdaptableFactories entry = super.createAdapterFactories(clazz, index);
+                        if (clazz == TestSlingAdaptable.class && pause.compareAndSet(true, false)) {
+                            computed.countDown();
+                            try {
+                                registered.await();
+                            } catch (final InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        return entry;
+                    }
+                };
+        final TestSlingAdaptable2 data = new TestSlingAdaptable2();
+        final AdapterFactory af = Mockito.mock(AdapterFactory.class);
+        Mockito.when(af.getAdapter(data, ITestAdapter.class)).thenReturn(Mockito.mock(ITestAdapter.class));
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // the child fill computes the parent entry, which is paused until the factory has been registered
+            final Future<Object> result = executor.submit(() -> manager.getAdapter(data, ITestAdapter.class));
+            assertTrue(computed.await(10, TimeUnit.SECONDS));
+            manager.bindAdapterFactory(TestServiceObjects.of(af), createServiceReference());
+            registered.countDown();
+
+            assertNotNull(result.get(10, TimeUnit.SECONDS), "Expect the child fill not to use the stale parent");
+            assertTrue(manager.getRejectedCacheFills() > 0);
+            for (final Class<?> clazz : List.of(TestSlingAdaptable.class, TestSlingAdaptable2.class)) {
+                assertEquals(
+                        1,
+                        manager.getFactoryCache().get(clazz).getFactories(ITestAdapter.class).length,
+                        "Expect no stale entry for " + clazz);
+            }
+        } finally {
+            executor.shutdownNow();
+            manager.deactivate();
+        }
+    }
+
+    @Test
+    void testWarmGetAdapterDoesNotAllocate() {
+        final java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(
+                threadBean instanceof com.sun.management.ThreadMXBean, "Thread allocation measurement not supported");
+        final com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        assumeTrue(allocationBean.isThreadAllocatedMemorySupported(), "Thread allocation measurement not supported");
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        // a factory returning a preallocated adapter, mocks record invocations
+        final ITestAdapter adapter = new ITestAdapter() {};
+        final AdapterFactory af = new AdapterFactory() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public <AdapterType> AdapterType getAdapter(final Object adaptable, final Class<AdapterType> type) {
+                return (AdapterType) adapter;
+            }
+        };
+        am.bindAdapterFactory(TestServiceObjects.of(af), createServiceReference());
+        final TestSlingAdaptable data = new TestSlingAdaptable();
+
+        // warm the cache and the measurement itself
+        for (int i = 0; i < 10_000; i++) {
+            assertSame(adapter, am.getAdapter(data, ITestAdapter.class));
+            assertNull(am.getAdapter(data, TestAdapter.class));
+        }
+        final long threadId = Thread.currentThread().getId();
+        allocationBean.getThreadAllocatedBytes(threadId);
+
+        final int calls = 100_000;
+        final long before = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < calls; i++) {
+            am.getAdapter(data, ITestAdapter.class);
+            am.getAdapter(data, TestAdapter.class);
+        }
+        final long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        // allow for some noise of the measurement but not for one allocation per call
+        assertTrue(allocated < calls, "Warm getAdapter allocated " + allocated + " bytes in " + calls + " calls");
+    }
+
     @Test
     void testBindModifiedUnbind() {
         ServiceReference<AdapterFactory> ref = createServiceReference();
@@ -167,7 +619,7 @@ class AdapterManagerTest {
                         .getBundleContext()
                         .registerService(Mockito.eq(Adaption.class), Mockito.eq(AdaptionImpl.INSTANCE), Mockito.any()))
                 .thenReturn(registration);
-        am.bindAdapterFactory(Mockito.mock(AdapterFactory.class), ref);
+        am.bindAdapterFactory(TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), ref);
 
         assertEquals(1, am.getFactories().size(), "AdapterFactoryDescriptors must contain one entry");
         assertEquals(
@@ -175,7 +627,7 @@ class AdapterManagerTest {
 
         Mockito.when(ref.getProperty(AdapterFactory.ADAPTABLE_CLASSES))
                 .thenReturn(new String[] {TestSlingAdaptable2.class.getName()});
-        am.updatedAdapterFactory(Mockito.mock(AdapterFactory.class), ref);
+        am.updatedAdapterFactory(TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), ref);
         assertEquals(2, am.getFactories().size(), "AdapterFactoryDescriptors must contain two entries");
         assertEquals(
                 0, am.getFactories().get(TestSlingAdaptable.class.getName()).size());
@@ -183,6 +635,127 @@ class AdapterManagerTest {
                 1, am.getFactories().get(TestSlingAdaptable2.class.getName()).size());
     }
 
+    @Test
+    void testUpdatedAdapterFactoryInPlace() {
+        final TestSlingAdaptable data = new TestSlingAdaptable();
+        final AdapterFactory af = Mockito.mock(AdapterFactory.class);
+        final ITestAdapter adapter = Mockito.mock(ITestAdapter.class);
+        Mockito.when(af.getAdapter(data, ITestAdapter.class)).thenReturn(adapter);
+        final ServiceReference<AdapterFactory> ref = createServiceReference();
+        @SuppressWarnings("unchecked")
+        final ServiceRegistration<Adaption> registration = Mockito.mock(ServiceRegistration.class);
+        Mockito.when(ref.getBundle()
+                        .getBundleContext()
+                        .registerService(Mockito.eq(Adaption.class), Mockito.eq(AdaptionImpl.INSTANCE), Mockito.any()))
+                .thenReturn(registration);
+        final TestServiceObjects<AdapterFactory> so = TestServiceObjects.of(af);
+        am.bindAdapterFactory(so, ref);
+        assertSame(adapter, am.getAdapter(data, ITestAdapter.class));
+        final long generation = am.getRegistryGeneration();
+
+        // unchanged properties do not publish a new snapshot
+        am.updatedAdapterFactory(so, ref);
+        assertEquals(generation, am.getRegistryGeneration());
+
+        // changed adapters are published at once without releasing the factory
+        Mockito.when(ref.getProperty(AdapterFactory.ADAPTER_CLASSES))
+                .thenReturn(new String[] {ITestAdapter.class.getName(), TestAdapter.class.getName()});
+        am.updatedAdapterFactory(so, ref);
+        assertEquals(generation + 1, am.getRegistryGeneration());
+        assertSame(adapter, am.getAdapter(data, ITestAdapter.class));
+        final AdapterFactoryDescriptor desc =
+                am.getFactories().get(TestSlingAdaptable.class.getName()).get(ref);
+        assertEquals(2, desc.getAdapters().length);
+        assertSame(registration, desc.getAdaption());
+        assertEquals(1, so.getGets());
+        assertEquals(0, so.getUngets());
+        Mockito.verify(registration).setProperties(Mockito.any());
+        Mockito.verify(registration, Mockito.never()).unregister();
+        Mockito.verify(ref.getBundle().getBundleContext())
+                .registerService(Mockito.eq(Adaption.class), Mockito.eq(AdaptionImpl.INSTANCE), Mockito.any());
+
+        am.unbindAdapterFactory(ref);
+        assertEquals(1, so.getUngets());
+        Mockito.verify(registration).unregister();
+    }
+
+    @Test
+    void testUpdatedLazyAdapterFactoryInPlace() {
+        am.modified(createConfig(Map.of("factories.lazy", true)));
+        final TestSlingAdaptable data = new TestSlingAdaptable();
+        final AdapterFactory af = Mockito.mock(AdapterFactory.class);
+        final ITestAdapter adapter = Mockito.mock(ITestAdapter.class);
+        Mockito.when(af.getAdapter(data, ITestAdapter.class)).thenReturn(adapter);
+        final ServiceReference<AdapterFactory> ref = createServiceReference();
+        final TestServiceObjects<AdapterFactory> so = TestServiceObjects.of(af);
+        am.bindAdapterFactory(so, ref);
+        final AdapterFactoryDescriptor oldDesc =
+                am.getFactories().get(TestSlingAdaptable.class.getName()).get(ref);
+
+        Mockito.when(ref.getProperty(AdapterFactory.ADAPTER_CLASSES))
+                .thenReturn(new String[] {ITestAdapter.class.getName(), TestAdapter.class.getName()});
+        am.updatedAdapterFactory(so, ref);
+        assertEquals(0, so.getGets(), "Expect the update not to acquire the factory");
+
+        // adaptions still holding the old descriptor acquire the shared factory
+        assertSame(af, oldDesc.getFactory());
+        assertSame(adapter, am.getAdapter(data, ITestAdapter.class));
+        final AdapterFactoryDescriptor desc =
+                am.getFactories().get(TestSlingAdaptable.class.getName()).get(ref);
+        assertNotSame(oldDesc, desc);
+        assertTrue(desc.isAcquired());
+        assertEquals(1, so.getGets());
+        assertEquals(0, so.getUngets());
+
+        am.unbindAdapterFactory(ref);
+        assertEquals(1, so.getUngets());
+        assertNull(oldDesc.getFactory());
+    }
+
+    @Test
+    void testCoalescedUpdatedAdapterFactoryInPlace() {
+        am.modified(createConfig(Map.of("factories.lazy", true)));
+        final TestSlingAdaptable data = new TestSlingAdaptable();
+        final AdapterFactory af = Mockito.mock(AdapterFactory.class);
+        final ITestAdapter adapter = Mockito.mock(ITestAdapter.class);
+        Mockito.when(af.getAdapter(data, ITestAdapter.class)).thenReturn(adapter);
+        final ServiceReference<AdapterFactory> ref = createServiceReference();
+        final TestServiceObjects<AdapterFactory> so = TestServiceObjects.of(af);
+        am.bindAdapterFactory(so, ref);
+        am.modified(createConfig(Map.of("factories.lazy", true, "registration.coalescing.ms", 60_000)));
+        final long generation = am.getRegistryGeneration();
+
+        Mockito.when(ref.getProperty(AdapterFactory.ADAPTER_CLASSES))
+                .thenReturn(new String[] {ITestAdapter.class.getName(), TestAdapter.class.getName()});
+        am.updatedAdapterFactory(so, ref);
+
+        // lookups use the old descriptor until the update is flushed
+        assertEquals(generation, am.getRegistryGeneration());
+        assertEquals(
+                1,
+                am.getFactories()
+                        .get(TestSlingAdaptable.class.getName())
+                        .get(ref)
+                        .getAdapters()
+                        .length);
+        assertSame(adapter, am.getAdapter(data, ITestAdapter.class));
+        assertEquals(1, so.getGets());
+
+        am.flushRegistrations();
+        assertTrue(am.getRegistryGeneration() > generation);
+        final AdapterFactoryDescriptor desc =
+                am.getFactories().get(TestSlingAdaptable.class.getName()).get(ref);
+        assertEquals(2, desc.getAdapters().length);
+        assertTrue(desc.isAcquired());
+        assertSame(adapter, am.getAdapter(data, ITestAdapter.class));
+        assertEquals(1, so.getGets());
+        assertEquals(0, so.getUngets());
+
+        am.unbindAdapterFactory(ref);
+        assertEquals(1, so.getUngets());
+        assertNull(am.getAdapter(data, ITestAdapter.class));
+    }
+
     @Test
     void testAdaptBase() {
         TestSlingAdaptable data = new TestSlingAdaptable();
@@ -191,7 +764,7 @@ class AdapterManagerTest {
         final ServiceReference<AdapterFactory> ref = createServiceReference();
         final AdapterFactory af = Mockito.mock(AdapterFactory.class);
         Mockito.when(af.getAdapter(data, ITestAdapter.class)).thenReturn(Mockito.mock(ITestAdapter.class));
-        am.bindAdapterFactory(af, ref);
+        am.bindAdapterFactory(TestServiceObjects.of(af), ref);
 
         Object adapter = am.getAdapter(data, ITestAdapter.class);
         assertNotNull(adapter);
@@ -206,7 +779,7 @@ class AdapterManagerTest {
         final ServiceReference<AdapterFactory> ref = createServiceReference();
         final AdapterFactory af = Mockito.mock(AdapterFactory.class);
         Mockito.when(af.getAdapter(data, ITestAdapter.class)).thenReturn(Mockito.mock(ITestAdapter.class));
-        am.bindAdapterFactory(af, ref);
+        am.bindAdapterFactory(TestServiceObjects.of(af), ref);
 
         Object adapter = am.getAdapter(data, ITestAdapter.class);
         assertNotNull(adapter);
@@ -221,10 +794,10 @@ class AdapterManagerTest {
         final ServiceReference<AdapterFactory> ref = createServiceReference();
         final AdapterFactory af = Mockito.mock(AdapterFactory.class);
         Mockito.when(af.getAdapter(data, ITestAdapter.class)).thenReturn(Mockito.mock(ITestAdapter.class));
-        am.bindAdapterFactory(af, ref);
+        am.bindAdapterFactory(TestServiceObjects.of(af), ref);
 
         final ServiceReference<AdapterFactory> ref2 = createServiceReference2();
-        am.bindAdapterFactory(af, ref2);
+        am.bindAdapterFactory(TestServiceObjects.of(af), ref2);
 
         Object adapter = am.getAdapter(data, ITestAdapter.class);
         assertNotNull(adapter);
@@ -245,8 +818,8 @@ class AdapterManagerTest {
         final ServiceReference<AdapterFactory> ref2 = createServiceReference2();
         Mockito.when(ref1.compareTo(ref2)).thenReturn(-1);
         Mockito.when(ref2.compareTo(ref1)).thenReturn(1);
-        am.bindAdapterFactory(af1, ref1);
-        am.bindAdapterFactory(af2, ref2);
+        am.bindAdapterFactory(TestServiceObjects.of(af1), ref1);
+        am.bindAdapterFactory(TestServiceObjects.of(af2), ref2);
 
         Object adapter = am.getAdapter(data, ITestAdapter.class);
         assertNotNull(adapter);
@@ -262,6 +835,603 @@ class AdapterManagerTest {
         assertTrue(adapter instanceof TestAdapter);
     }
 
+    @Test
+    void testGetAdapters() {
+        final TestSlingAdaptable data1 = new TestSlingAdaptable();
+        final TestSlingAdaptable2 data2 = new TestSlingAdaptable2();
+        final ITestAdapter adapter1 = Mockito.mock(ITestAdapter.class);
+        final ITestAdapter adapter2 = Mockito.mock(ITestAdapter.class);
+        final AdapterFactory af = Mockito.mock(AdapterFactory.class);
+        Mockito.when(af.getAdapter(data1, ITestAdapter.class)).thenReturn(adapter1);
+        Mockito.when(af.getAdapter(data2, ITestAdapter.class)).thenReturn(adapter2);
+        am.bindAdapterFactory(TestServiceObjects.of(af), createServiceReference());
+
+        final List<ITestAdapter> adapters =
+                am.getAdapters(Arrays.asList(data1, data2, null, new TestSlingAdaptable(), data1), ITestAdapter.class);
+        assertEquals(Arrays.asList(adapter1, adapter2, null, null, adapter1), adapters);
+
+        Mockito.verify(af, Mockito.times(2)).getAdapter(data1, ITestAdapter.class);
+        assertTrue(am.getAdapters(List.of(), ITestAdapter.class).isEmpty());
+    }
+
+    @Test
+    void testGetAdaptersParallel() {
+        final TestSlingAdaptable data1 = new TestSlingAdaptable();
+        final TestSlingAdaptable2 data2 = new TestSlingAdaptable2();
+        final TestSlingAdaptable failing = new TestSlingAdaptable();
+        final ITestAdapter adapter1 = Mockito.mock(ITestAdapter.class);
+        final ITestAdapter adapter2 = Mockito.mock(ITestAdapter.class);
+        final AdapterFactory af = Mockito.mock(AdapterFactory.class);
+        Mockito.when(af.getAdapter(data1, ITestAdapter.class)).thenReturn(adapter1);
+        Mockito.when(af.getAdapter(data2, ITestAdapter.class)).thenReturn(adapter2);
+        Mockito.when(af.getAdapter(failing, ITestAdapter.class)).thenThrow(new IllegalStateException("failing"));
+        am.bindAdapterFactory(TestServiceObjects.of(af), createServiceReference());
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final List<ITestAdapter> adapters =
+                    am.getAdapters(Arrays.asList(data1, null, data2, data1), ITestAdapter.class, executor);
+            assertEquals(Arrays.asList(adapter1, null, adapter2, adapter1), adapters);
+
+            assertThrows(
+                    IllegalStateException.class,
+                    () -> am.getAdapters(Arrays.asList(data1, failing, data2), ITestAdapter.class, executor));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testResolveAdapters() {
+        final TestSlingAdaptable data = new TestSlingAdaptable();
+        final ITestAdapter adapter = Mockito.mock(ITestAdapter.class);
+        final AdapterFactory af = Mockito.mock(AdapterFactory.class);
+        Mockito.when(af.getAdapter(data, ITestAdapter.class)).thenReturn(adapter);
+        am.bindAdapterFactory(TestServiceObjects.of(af), createServiceReference());
+
+        final long fills = am.getCacheFills();
+        final Adapters adapters = am.resolveAdapters(data, ITestAdapter.class, TestAdapter.class);
+        assertSame(adapter, adapters.get(ITestAdapter.class));
+        assertNull(adapters.get(TestAdapter.class));
+        assertThrows(IllegalArgumentException.class, () -> adapters.get(Runnable.class));
+
+        // the adapter factories of the class hierarchy are looked up once
+        assertEquals(am.getFactoryCache().size(), am.getCacheFills() - fills);
+    }
+
+    @Test
+    void testAdapterLookup() {
+        final TestSlingAdaptable data = new TestSlingAdaptable();
+        final TestSlingAdaptable2 data2 = new TestSlingAdaptable2();
+        final ITestAdapter adapter = Mockito.mock(ITestAdapter.class);
+        final AdapterFactory af = Mockito.mock(AdapterFactory.class);
+        Mockito.when(af.getAdapter(Mockito.any(), Mockito.eq(ITestAdapter.class)))
+                .thenReturn(adapter);
+
+        final AdapterLookup<ITestAdapter> lookup = am.getAdapterLookup(TestSlingAdaptable.class, ITestAdapter.class);
+        assertEquals(TestSlingAdaptable.class, lookup.getAdaptableType());
+        assertEquals(ITestAdapter.class, lookup.getAdapterType());
+        assertNull(lookup.adapt(data), "Expect no adapter");
+
+        final ServiceReference<AdapterFactory> ref = createServiceReference();
+        am.bindAdapterFactory(TestServiceObjects.of(af), ref);
+        assertSame(adapter, lookup.adapt(data), "Expect the lookup to be rebound after a registration");
+
+        // a bound lookup does not use the factory cache
+        am.getFactoryCache().clear();
+        assertSame(adapter, lookup.adapt(data));
+        assertTrue(am.getFactoryCache().isEmpty());
+
+        // instances of other classes are adapted as usual
+        assertSame(adapter, lookup.adapt(data2));
+        assertTrue(am.getFactoryCache().containsKey(TestSlingAdaptable2.class));
+
+        am.unbindAdapterFactory(ref);
+        assertNull(lookup.adapt(data), "Expect the lookup to be rebound after an unregistration");
+    }
+
+    @Test
+    void testDispatcher() {
+        am.modified(createConfig(Map.of("dispatcher.enabled", true, "dispatcher.threshold", 3)));
+
+        final TestSlingAdaptable data = new TestSlingAdaptable();
+        final ITestAdapter adapter = Mockito.mock(ITestAdapter.class);
+        final AdapterFactory first = Mockito.mock(AdapterFactory.class);
+        final AdapterFactory second = Mockito.mock(AdapterFactory.class);
+        Mockito.when(second.getAdapter(data, ITestAdapter.class)).thenReturn(adapter);
+        final ServiceReference<AdapterFactory> firstRef = createServiceReference();
+        final ServiceReference<AdapterFactory> secondRef = createServiceReference();
+        Mockito.when(firstRef.compareTo(secondRef)).thenReturn(-1);
+        Mockito.when(secondRef.compareTo(firstRef)).thenReturn(1);
+        am.bindAdapterFactory(TestServiceObjects.of(first), firstRef);
+        am.bindAdapterFactory(TestServiceObjects.of(second), secondRef);
+
+        for (int i = 0; i < 2; i++) {
+            assertSame(adapter, am.getAdapter(data, ITestAdapter.class));
+        }
+        final TargetFactories target =
+                am.getFactoryCache().get(TestSlingAdaptable.class).getTargetFactories(ITestAdapter.class);
+        assertNull(target.getDispatcher(), "Expect no dispatcher below the threshold");
+
+        // the dispatcher tries the factories in the same order
+        for (int i = 0; i < 3; i++) {
+            assertSame(adapter, am.getAdapter(data, ITestAdapter.class));
+        }
+        assertNotNull(target.getDispatcher(), "Expect a dispatcher once the threshold is reached");
+        Mockito.verify(first, Mockito.times(5)).getAdapter(data, ITestAdapter.class);
+        Mockito.verify(second, Mockito.times(5)).getAdapter(data, ITestAdapter.class);
+
+        // exceptions of the factories are passed through
+        final IllegalStateException failure = new IllegalStateException();
+        Mockito.when(first.getAdapter(data, ITestAdapter.class)).thenThrow(failure);
+        assertSame(failure, assertThrows(IllegalStateException.class, () -> am.getAdapter(data, ITestAdapter.class)));
+
+        // a registration change drops the dispatcher with the cache entry
+        am.unbindAdapterFactory(secondRef);
+        am.unbindAdapterFactory(firstRef);
+        assertNull(am.getAdapter(data, ITestAdapter.class));
+        assertNull(am.getFactoryCache()
+                .get(TestSlingAdaptable.class)
+                .getTargetFactories(ITestAdapter.class)
+                .getDispatcher());
+    }
+
+    @Test
+    void testDispatcherLazyFactories() {
+        am.modified(
+                createConfig(Map.of("dispatcher.enabled", true, "dispatcher.threshold", 1, "factories.lazy", true)));
+
+        final TestSlingAdaptable data = new TestSlingAdaptable();
+        final ITestAdapter adapter = Mockito.mock(ITestAdapter.class);
+        final ITestAdapter fallback = Mockito.mock(ITestAdapter.class);
+        final AdapterFactory first = Mockito.mock(AdapterFactory.class);
+        final AdapterFactory second = Mockito.mock(AdapterFactory.class);
+        Mockito.when(first.getAdapter(data, ITestAdapter.class)).thenReturn(adapter);
+        Mockito.when(second.getAdapter(data, ITestAdapter.class)).thenReturn(fallback);
+        final ServiceReference<AdapterFactory> firstRef = createServiceReference();
+        final ServiceReference<AdapterFactory> secondRef = createServiceReference();
+        Mockito.when(firstRef.compareTo(secondRef)).thenReturn(-1);
+        Mockito.when(secondRef.compareTo(firstRef)).thenReturn(1);
+        final TestServiceObjects<AdapterFactory> firstObjects = TestServiceObjects.of(first);
+        final TestServiceObjects<AdapterFactory> secondObjects = TestServiceObjects.of(second);
+        am.bindAdapterFactory(firstObjects, firstRef);
+        am.bindAdapterFactory(secondObjects, secondRef);
+
+        for (int i = 0; i < 3; i++) {
+            assertSame(adapter, am.getAdapter(data, ITestAdapter.class));
+        }
+        assertNotNull(am.getFactoryCache()
+                .get(TestSlingAdaptable.class)
+                .getTargetFactories(ITestAdapter.class)
+                .getDispatcher());
+        assertEquals(1, firstObjects.getGets());
+        assertEquals(0, secondObjects.getGets(), "Expect compiling not to acquire unused factories");
+
+        // the dispatcher acquires the factory once it reaches it
+        Mockito.when(first.getAdapter(data, ITestAdapter.class)).thenReturn(null);
+        assertSame(fallback, am.getAdapter(data, ITestAdapter.class));
+        assertSame(fallback, am.getAdapter(data, ITestAdapter.class));
+        assertEquals(1, secondObjects.getGets());
+    }
+
+    @Test
+    void testDispatcherDisabled() {
+        final TestSlingAdaptable data = new TestSlingAdaptable();
+        final AdapterFactory af = Mockito.mock(AdapterFactory.class);
+        Mockito.when(af.getAdapter(data, ITestAdapter.class)).thenReturn(Mockito.mock(ITestAdapter.class));
+        am.bindAdapterFactory(TestServiceObjects.of(af), createServiceReference());
+
+        for (int i = 0; i < AdapterManagerImpl.DEFAULT_DISPATCHER_THRESHOLD; i++) {
+            assertNotNull(am.getAdapter(data, ITestAdapter.class));
+        }
+        assertNull(am.getFactoryCache()
+                .get(TestSlingAdaptable.class)
+                .getTargetFactories(ITestAdapter.class)
+                .getDispatcher());
+    }
+
+    @Test
+    void testIndexedEngine() {
+        final TestSlingAdaptable2 data = new TestSlingAdaptable2();
+        final AdapterFactory af = Mockito.mock(AdapterFactory.class);
+        Mockito.when(af.getAdapter(data, ITestAdapter.class)).thenReturn(Mockito.mock(ITestAdapter.class));
+        final ServiceReference<AdapterFactory> ref = createServiceReference();
+        am.bindAdapterFactory(TestServiceObjects.of(af), ref);
+        assertNotNull(am.getAdapter(data, ITestAdapter.class));
+        assertNull(am.getTypeIndex());
+
+        am.modified(createConfig(Map.of("engine", AdapterManagerImpl.ENGINE_INDEXED)));
+        final AdapterTypeIndex index = am.getTypeIndex();
+        assertNotNull(index);
+        assertTrue(am.getFactoryCache().isEmpty(), "Expect the cache to be cleared when switching engines");
+
+        // factories of the super class are found through the target id
+        assertNotNull(am.getAdapter(data, ITestAdapter.class));
+        assertNull(am.getAdapter(data, TestAdapter.class));
+        final AdaptableFactories entry = am.getFactoryCache().get(TestSlingAdaptable2.class);
+        assertTrue(entry instanceof IndexedAdaptableFactories);
+        assertTrue(am.getFactoryCache().get(TestSlingAdaptable.class) instanceof IndexedAdaptableFactories);
+        assertEquals(1, entry.getFactories(ITestAdapter.class).length);
+        assertEquals(0, entry.getFactories(TestAdapter.class).length);
+        assertEquals(0, entry.getFactories(Runnable.class).length);
+        assertEquals(ITestAdapter.class.getName(), index.getTargetName(index.getTargetId(ITestAdapter.class)));
+        // targets without adapter factories share the NONE id instead of getting ids of their own
+        assertEquals(AdapterTypeIndex.NONE, index.getTargetId(Runnable.class));
+        assertEquals(1, index.getTargetCount());
+        final List<String> targets = new ArrayList<>();
+        entry.forEachTarget((target, factories) -> targets.add(target));
+        assertEquals(List.of(ITestAdapter.class.getName()), targets);
+
+        // the entry tables are sized to the targets present, whatever their ids
+        final Map<String, TargetFactories> factoriesByName = new HashMap<>();
+        for (final Class<?> target : List.of(Runnable.class, String.class, Integer.class, Long.class, Object.class)) {
+            factoriesByName.put(target.getName(), new TargetFactories(new AdapterFactoryDescriptor[0]));
+        }
+        final IndexedAdaptableFactories created = index.createEntry(factoriesByName, Set.of());
+        for (final Class<?> target : List.of(Runnable.class, String.class, Integer.class, Long.class, Object.class)) {
+            assertSame(factoriesByName.get(target.getName()), created.getTargetFactories(target));
+        }
+        assertEquals(6, index.getTargetCount());
+        assertSame(TargetFactories.NONE, created.getTargetFactories(TestAdapter.class));
+
+        // registration changes evict the entries
+        final AdapterFactory af2 = Mockito.mock(AdapterFactory.class);
+        final TestAdapter adapter = new TestAdapter();
+        Mockito.when(af2.getAdapter(data, TestAdapter.class)).thenReturn(adapter);
+        final ServiceReference<AdapterFactory> ref2 = createServiceReference2();
+        Mockito.when(ref.compareTo(ref2)).thenReturn(-1);
+        Mockito.when(ref2.compareTo(ref)).thenReturn(1);
+        am.bindAdapterFactory(TestServiceObjects.of(af2), ref2);
+        assertNull(am.getFactoryCache().get(TestSlingAdaptable2.class));
+        assertNotNull(am.getFactoryCache().get(TestSlingAdaptable.class));
+        assertSame(adapter, am.getAdapter(data, TestAdapter.class));
+        assertNotNull(am.getAdapter(data, ITestAdapter.class));
+
+        am.unbindAdapterFactory(ref2);
+        assertNull(am.getFactoryCache().get(TestSlingAdaptable2.class));
+        assertNull(am.getAdapter(data, TestAdapter.class));
+
+        am.clearFactoryCache();
+        assertNull(am.getFactoryCache().get(TestSlingAdaptable.class));
+        assertNotNull(am.getAdapter(data, ITestAdapter.class));
+
+        am.modified(createConfig(Map.of("engine", AdapterManagerImpl.ENGINE_MAP)));
+        assertNull(am.getTypeIndex());
+        assertNotNull(am.getAdapter(data, ITestAdapter.class));
+        assertTrue(am.getFactoryCache().get(TestSlingAdaptable2.class) instanceof MappedAdaptableFactories);
+    }
+
+    @Test
+    void testStructuralSharing() {
+        final ServiceReference<AdapterFactory> ref1 = createServiceReference();
+        final ServiceReference<AdapterFactory> ref2 = createServiceReference();
+        Mockito.when(ref1.compareTo(ref2)).thenReturn(-1);
+        Mockito.when(ref2.compareTo(ref1)).thenReturn(1);
+        am.bindAdapterFactory(TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), ref1);
+        am.bindAdapterFactory(TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), ref2);
+        assertEquals(0, am.getCacheSize());
+        final long emptySize = am.getEstimatedCacheBytes();
+
+        assertNull(am.getAdapter(new TestSlingAdaptable2(), ITestAdapter.class));
+        final AdaptableFactories entry = am.getFactoryCache().get(TestSlingAdaptable.class);
+        final AdaptableFactories subEntry = am.getFactoryCache().get(TestSlingAdaptable2.class);
+        assertSame(
+                entry.getTargetFactories(ITestAdapter.class),
+                subEntry.getTargetFactories(ITestAdapter.class),
+                "Expect the sub class to share the factories of the super class");
+        assertTrue(subEntry.getAdaptableNames().contains(TestSlingAdaptable2.class.getName()));
+
+        // equal registration properties are interned
+        final AdapterFactoryDescriptor[] factories = entry.getFactories(ITestAdapter.class);
+        assertEquals(2, factories.length);
+        assertSame(factories[0].getAdapters(), factories[1].getAdapters());
+        assertSame(factories[0].getAdaptables(), factories[1].getAdaptables());
+
+        final long size = am.getEstimatedCacheBytes();
+        assertTrue(size > emptySize, "Expect the estimate to grow with the cache entries");
+        am.modified(createConfig(Map.of("engine", AdapterManagerImpl.ENGINE_INDEXED)));
+        assertNull(am.getAdapter(new TestSlingAdaptable2(), ITestAdapter.class));
+        assertSame(
+                am.getFactoryCache().get(TestSlingAdaptable.class).getTargetFactories(ITestAdapter.class),
+                am.getFactoryCache().get(TestSlingAdaptable2.class).getTargetFactories(ITestAdapter.class));
+        assertTrue(am.getEstimatedCacheBytes() > emptySize);
+    }
+
+    @Test
+    void testBoundedCache() {
+        final AdapterFactory af = Mockito.mock(AdapterFactory.class);
+        Mockito.when(af.getAdapter(Mockito.any(), Mockito.eq(ITestAdapter.class)))
+                .thenReturn(Mockito.mock(ITestAdapter.class));
+        final ServiceReference<AdapterFactory> ref = createServiceReference();
+        am.bindAdapterFactory(TestServiceObjects.of(af), ref);
+        assertEquals(0, am.getCacheMaxSize());
+
+        for (final String engine : new String[] {AdapterManagerImpl.ENGINE_MAP, AdapterManagerImpl.ENGINE_INDEXED}) {
+            am.modified(createConfig(Map.of("engine", engine, "cache.max.size", 2)));
+            assertEquals(2, am.getCacheMaxSize());
+            assertTrue(am.getFactoryCache() instanceof BoundedFactoryCache);
+
+            // the sub class entry and its super class entries exceed the maximum
+            assertNotNull(am.getAdapter(new TestSlingAdaptable2(), ITestAdapter.class));
+            assertNotNull(am.getAdapter(new TestSlingAdaptable(), ITestAdapter.class));
+            assertNotNull(am.getAdapter(new TestSlingAdaptable2(), ITestAdapter.class));
+            assertTrue(am.getCacheSize() <= 2);
+            assertTrue(am.getCacheCapacityEvictions() > 0);
+
+            // registration changes still evict the affected entries
+            final ServiceReference<AdapterFactory> ref2 = createServiceReference2();
+            Mockito.when(ref.compareTo(ref2)).thenReturn(-1);
+            Mockito.when(ref2.compareTo(ref)).thenReturn(1);
+            am.bindAdapterFactory(TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), ref2);
+            assertFalse(am.getFactoryCache().containsKey(TestSlingAdaptable2.class));
+            am.unbindAdapterFactory(ref2);
+        }
+
+        am.modified(createConfig(Map.of()));
+        assertEquals(0, am.getCacheMaxSize());
+        assertTrue(
+                am.getFactoryCache() instanceof BoundedFactoryCache,
+                "Expect the unbounded cache not to keep the adaptable classes either");
+        assertNotNull(am.getAdapter(new TestSlingAdaptable2(), ITestAdapter.class));
+        assertEquals(0, am.getCacheCapacityEvictions());
+    }
+
+    @Test
+    void testGeneratedClassesShareEntries() {
+        final Runnable first = () -> {};
+        final Runnable second = () -> {};
+        final Runnable proxy = (Runnable) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] {Runnable.class}, (p, method, args) -> null);
+        assertTrue(first.getClass() != second.getClass());
+
+        final ITestAdapter adapter = Mockito.mock(ITestAdapter.class);
+        final AdapterFactory af = Mockito.mock(AdapterFactory.class);
+        Mockito.when(af.getAdapter(Mockito.any(), Mockito.eq(ITestAdapter.class)))
+                .thenReturn(adapter);
+        final ServiceReference<AdapterFactory> ref = createServiceReference(
+                1, new String[] {Runnable.class.getName()}, new String[] {ITestAdapter.class.getName()});
+        am.bindAdapterFactory(TestServiceObjects.of(af), ref);
+
+        // generated classes are not shared by default
+        assertSame(adapter, am.getAdapter(first, ITestAdapter.class));
+        assertEquals(0, am.getSharedCacheSize());
+
+        am.modified(createConfig(Map.of("generated.classes.shared", true)));
+        assertSame(adapter, am.getAdapter(first, ITestAdapter.class));
+        assertSame(adapter, am.getAdapter(second, ITestAdapter.class));
+        assertSame(adapter, am.getAdapter(proxy, ITestAdapter.class));
+        assertSame(
+                am.getFactoryCache().get(first.getClass()), am.getFactoryCache().get(second.getClass()));
+        assertEquals(2, am.getSharedCacheSize(), "Expect one shared entry for lambdas and one for proxies");
+
+        // registration changes evict the shared entries
+        am.unbindAdapterFactory(ref);
+        assertEquals(0, am.getSharedCacheSize());
+        assertNull(am.getAdapter(first, ITestAdapter.class));
+        assertNull(am.getAdapter(proxy, ITestAdapter.class));
+
+        // without sharing every class has its own entry
+        am.modified(createConfig(Map.of("generated.classes.shared", false)));
+        am.bindAdapterFactory(TestServiceObjects.of(af), ref);
+        assertSame(adapter, am.getAdapter(first, ITestAdapter.class));
+        assertSame(adapter, am.getAdapter(second, ITestAdapter.class));
+        assertTrue(am.getFactoryCache().get(first.getClass())
+                != am.getFactoryCache().get(second.getClass()));
+        assertEquals(0, am.getSharedCacheSize());
+    }
+
+    @Test
+    void testGeneratedClassesWithOwnRegistrations() {
+        final Runnable first = () -> {};
+        final Runnable second = () -> {};
+        final ITestAdapter adapter = Mockito.mock(ITestAdapter.class);
+        final AdapterFactory af = Mockito.mock(AdapterFactory.class);
+        Mockito.when(af.getAdapter(Mockito.any(), Mockito.eq(ITestAdapter.class)))
+                .thenReturn(adapter);
+        am.bindAdapterFactory(
+                TestServiceObjects.of(af),
+                createServiceReference(
+                        1, new String[] {Runnable.class.getName()}, new String[] {ITestAdapter.class.getName()}));
+        am.modified(createConfig(Map.of("generated.classes.shared", true)));
+
+        final TestAdapter own = new TestAdapter();
+        final AdapterFactory ownFactory = Mockito.mock(AdapterFactory.class);
+        Mockito.when(ownFactory.getAdapter(first, TestAdapter.class)).thenReturn(own);
+        final ServiceReference<AdapterFactory> ownRef = createServiceReference(
+                2, new String[] {first.getClass().getName()}, new String[] {TestAdapter.class.getName()});
+
+        // registered after the shared entry has been cached
+        assertNull(am.getAdapter(first, TestAdapter.class));
+        assertNull(am.getAdapter(second, TestAdapter.class));
+        assertSame(
+                am.getFactoryCache().get(first.getClass()), am.getFactoryCache().get(second.getClass()));
+        am.bindAdapterFactory(TestServiceObjects.of(ownFactory), ownRef);
+        assertSame(own, am.getAdapter(first, TestAdapter.class));
+        assertSame(adapter, am.getAdapter(first, ITestAdapter.class));
+        assertNull(am.getAdapter(second, TestAdapter.class));
+        assertTrue(am.getFactoryCache().get(first.getClass())
+                != am.getFactoryCache().get(second.getClass()));
+
+        // unregistered, the class shares the entry of its shape again
+        am.unbindAdapterFactory(ownRef);
+        assertNull(am.getAdapter(first, TestAdapter.class));
+        assertSame(
+                am.getFactoryCache().get(first.getClass()), am.getFactoryCache().get(second.getClass()));
+
+        // registered before the class is resolved
+        am.getFactoryCache().clear();
+        am.bindAdapterFactory(TestServiceObjects.of(ownFactory), ownRef);
+        assertSame(own, am.getAdapter(first, TestAdapter.class));
+        assertNull(am.getAdapter(second, TestAdapter.class));
+    }
+
+    @Test
+    void testAdaptableShape() {
+        final String[] markers = {"$$"};
+        assertNull(AdaptableShape.of(TestSlingAdaptable2.class, markers));
+
+        final Runnable lambda = () -> {};
+        assertEquals(
+                new AdaptableShape(Object.class, List.of(Runnable.class)),
+                AdaptableShape.of(lambda.getClass(), markers));
+
+        final Object proxy = Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] {ITestAdapter.class, Runnable.class},
+                (p, method, args) -> null);
+        assertEquals(
+                new AdaptableShape(Proxy.class, List.of(ITestAdapter.class, Runnable.class)),
+                AdaptableShape.of(proxy.getClass(), markers));
+
+        // the keys of equal shapes are equal
+        final AdaptableShape shape = AdaptableShape.of(lambda.getClass(), markers);
+        assertEquals(shape.key(), new AdaptableShape(Object.class, List.of(Runnable.class)).key());
+        assertEquals(
+                shape.key().hashCode(),
+                new AdaptableShape(Object.class, List.of(Runnable.class)).key().hashCode());
+        assertNotEquals(shape.key(), new AdaptableShape(null, List.of(Runnable.class)).key());
+        assertNotEquals(
+                shape.key(), AdaptableShape.of(proxy.getClass(), markers).key());
+        assertFalse(shape.key().isCleared());
+    }
+
+    @Test
+    void testLazyFactories() {
+        final TestSlingAdaptable data = new TestSlingAdaptable();
+        final AdapterFactory af = Mockito.mock(AdapterFactory.class);
+        final ITestAdapter adapter = Mockito.mock(ITestAdapter.class);
+        Mockito.when(af.getAdapter(data, ITestAdapter.class)).thenReturn(adapter);
+
+        // eagerly acquired on registration
+        final ServiceReference<AdapterFactory> ref = createServiceReference();
+        final TestServiceObjects<AdapterFactory> eager = TestServiceObjects.of(af);
+        am.bindAdapterFactory(eager, ref);
+        assertEquals(1, eager.getGets());
+        assertTrue(am.getFactories()
+                .get(TestSlingAdaptable.class.getName())
+                .get(ref)
+                .isAcquired());
+        am.unbindAdapterFactory(ref);
+        assertEquals(1, eager.getUngets());
+
+        // lazily acquired on first use and released on unregistration
+        am.modified(createConfig(Map.of("factories.lazy", true)));
+        final TestServiceObjects<AdapterFactory> lazy = TestServiceObjects.of(af);
+        am.bindAdapterFactory(lazy, ref);
+        assertEquals(0, lazy.getGets());
+        assertNull(am.getAdapter(data, TestAdapter.class));
+        assertEquals(0, lazy.getGets(), "Expect factories not used not to be acquired");
+        assertSame(adapter, am.getAdapter(data, ITestAdapter.class));
+        assertSame(adapter, am.getAdapter(data, ITestAdapter.class));
+        assertEquals(1, lazy.getGets());
+        am.unbindAdapterFactory(ref);
+        assertEquals(1, lazy.getUngets());
+        assertNull(am.getAdapter(data, ITestAdapter.class));
+
+        // unavailable service objects are not acquired again
+        final TestServiceObjects<AdapterFactory> unavailable = TestServiceObjects.of(null);
+        am.bindAdapterFactory(unavailable, ref);
+        assertNull(am.getAdapter(data, ITestAdapter.class));
+        assertNull(am.getAdapter(data, ITestAdapter.class));
+        assertEquals(1, unavailable.getGets());
+    }
+
+    @Test
+    void testDiamondTriesFactoryOnce() {
+        final DiamondAdaptable data = new DiamondAdaptable();
+        final AdapterFactory af = Mockito.mock(AdapterFactory.class);
+        am.bindAdapterFactory(
+                TestServiceObjects.of(af),
+                createServiceReference(
+                        1, new String[] {DiamondBase.class.getName()}, new String[] {ITestAdapter.class.getName()}));
+
+        // the base interface is reached through both branches of the diamond
+        assertNull(am.getAdapter(data, ITestAdapter.class));
+        Mockito.verify(af, Mockito.times(1)).getAdapter(data, ITestAdapter.class);
+        assertEquals(1, am.getFactoryCache().get(DiamondAdaptable.class).getFactories(ITestAdapter.class).length);
+    }
+
+    @Test
+    void testTypeOrder() {
+        final TypeOrder.Cache orders = new TypeOrder.Cache();
+        final TypeOrder order = orders.get(DiamondAdaptable.class);
+        assertSame(order, orders.get(DiamondAdaptable.class));
+        assertEquals(
+                List.of(
+                        DiamondAdaptable.class.getName(),
+                        DiamondLeft.class.getName(),
+                        DiamondBase.class.getName(),
+                        DiamondRight.class.getName(),
+                        Object.class.getName()),
+                order.getNames());
+        assertEquals(
+                Arrays.asList(DiamondLeft.class, DiamondRight.class, Object.class), Arrays.asList(order.getParents()));
+        assertEquals(
+                List.of(DiamondBase.class.getName()),
+                orders.get(DiamondBase.class).getNames());
+    }
+
+    @Test
+    void testFactoryCacheKeyedByClass() {
+        final TestSlingAdaptable2 data = new TestSlingAdaptable2();
+        final AdapterFactory af = Mockito.mock(AdapterFactory.class);
+        Mockito.when(af.getAdapter(data, ITestAdapter.class)).thenReturn(Mockito.mock(ITestAdapter.class));
+        am.bindAdapterFactory(TestServiceObjects.of(af), createServiceReference());
+
+        assertNotNull(am.getAdapter(data, ITestAdapter.class));
+        assertNull(am.getAdapter(data, TestAdapter.class));
+
+        final AdaptableFactories entry = am.getFactoryCache().get(TestSlingAdaptable2.class);
+        assertNotNull(entry, "Expect cache entry for the adaptable class");
+        assertTrue(am.getFactoryCache().containsKey(TestSlingAdaptable.class), "Expect cache entry for super class");
+        assertEquals(1, entry.getFactories(ITestAdapter.class).length);
+        assertEquals(0, entry.getFactories(TestAdapter.class).length);
+        assertTrue(
+                entry.getFactories(ITestAdapter.class) == entry.getFactories(ITestAdapter.class),
+                "Expect resolved factories to be cached by target class");
+    }
+
+    @Test
+    void testTargetedCacheInvalidation() {
+        final TestSlingAdaptable2 data = new TestSlingAdaptable2();
+        final AdapterObject other = new AdapterObject(Want.INDIFFERENT);
+        assertNull(am.getAdapter(data, ITestAdapter.class));
+        assertNull(am.getAdapter(other, ParentInterface.class));
+        assertTrue(am.getFactoryCache().containsKey(TestSlingAdaptable.class));
+        assertTrue(am.getFactoryCache().containsKey(TestSlingAdaptable2.class));
+        assertTrue(am.getFactoryCache().containsKey(AdapterObject.class));
+
+        // registering for the sub class only evicts the sub class
+        final ServiceReference<AdapterFactory> ref2 = createServiceReference2();
+        am.bindAdapterFactory(TestServiceObjects.of(Mockito.mock(AdapterFactory.class)), ref2);
+        assertEquals(1, am.getCacheInvalidations());
+        assertEquals(1, am.getLastCacheEvictions());
+        assertTrue(am.getFactoryCache().containsKey(TestSlingAdaptable.class));
+        assertTrue(am.getFactoryCache().containsKey(AdapterObject.class));
+        assertNull(am.getFactoryCache().get(TestSlingAdaptable2.class));
+
+        // registering for the base class evicts base and sub class
+        assertNull(am.getAdapter(data, ITestAdapter.class));
+        final ServiceReference<AdapterFactory> ref = createServiceReference();
+        Mockito.when(ref.compareTo(ref2)).thenReturn(-1);
+        Mockito.when(ref2.compareTo(ref)).thenReturn(1);
+        final AdapterFactory af = Mockito.mock(AdapterFactory.class);
+        Mockito.when(af.getAdapter(data, ITestAdapter.class)).thenReturn(Mockito.mock(ITestAdapter.class));
+        am.bindAdapterFactory(TestServiceObjects.of(af), ref);
+        assertEquals(2, am.getCacheInvalidations());
+        assertEquals(2, am.getLastCacheEvictions());
+        assertEquals(3, am.getCacheEvictions());
+        assertTrue(am.getFactoryCache().containsKey(AdapterObject.class));
+        assertNotNull(am.getAdapter(data, ITestAdapter.class));
+
+        // unregistering evicts the dependent entries again
+        am.unbindAdapterFactory(ref);
+        assertEquals(3, am.getCacheInvalidations());
+        assertEquals(2, am.getLastCacheEvictions());
+        assertTrue(am.getFactoryCache().containsKey(AdapterObject.class));
+        assertNull(am.getAdapter(data, ITestAdapter.class));
+    }
+
     @Test
     void testAdaptMultipleAdapterFactories() {
         final ServiceReference<AdapterFactory> firstAdaptable =
@@ -281,8 +1451,8 @@ class AdapterManagerTest {
         AdapterObject second = new AdapterObject(Want.SECOND_IMPL);
         assertNull(am.getAdapter(second, ParentInterface.class), "Expect no adapter");
 
-        am.bindAdapterFactory(new FirstImplementationAdapterFactory(), firstAdaptable);
-        am.bindAdapterFactory(new SecondImplementationAdapterFactory(), secondAdaptable);
+        am.bindAdapterFactory(TestServiceObjects.of(new FirstImplementationAdapterFactory()), firstAdaptable);
+        am.bindAdapterFactory(TestServiceObjects.of(new SecondImplementationAdapterFactory()), secondAdaptable);
 
         Object adapter = am.getAdapter(first, ParentInterface.class);
         assertNotNull(adapter, "Did not get an adapter back for first implementation, service ranking 1");
@@ -324,8 +1494,8 @@ class AdapterManagerTest {
         AdapterObject second = new AdapterObject(Want.SECOND_IMPL);
         assertNull(am.getAdapter(second, ParentInterface.class), "Expect no adapter");
 
-        am.bindAdapterFactory(new FirstImplementationAdapterFactory(), firstAdaptable);
-        am.bindAdapterFactory(new SecondImplementationAdapterFactory(), secondAdaptable);
+        am.bindAdapterFactory(TestServiceObjects.of(new FirstImplementationAdapterFactory()), firstAdaptable);
+        am.bindAdapterFactory(TestServiceObjects.of(new SecondImplementationAdapterFactory()), secondAdaptable);
 
         Object adapter = am.getAdapter(first, ParentInterface.class);
         assertNotNull(adapter, "Did not get an adapter back for first implementation, service ranking 2");
@@ -353,8 +1523,8 @@ class AdapterManagerTest {
         AdapterObject second = new AdapterObject(Want.INDIFFERENT);
         assertNull(am.getAdapter(second, ParentInterface.class), "Expect no adapter");
 
-        am.bindAdapterFactory(new FirstImplementationAdapterFactory(), firstAdaptable);
-        am.bindAdapterFactory(new SecondImplementationAdapterFactory(), secondAdaptable);
+        am.bindAdapterFactory(TestServiceObjects.of(new FirstImplementationAdapterFactory()), firstAdaptable);
+        am.bindAdapterFactory(TestServiceObjects.of(new SecondImplementationAdapterFactory()), secondAdaptable);
 
         Object adapter = am.getAdapter(first, ParentInterface.class);
         assertNotNull(
@@ -396,8 +1566,8 @@ class AdapterManagerTest {
         AdapterObject second = new AdapterObject(Want.INDIFFERENT);
         assertNull(am.getAdapter(second, ParentInterface.class), "Expect no adapter");
 
-        am.bindAdapterFactory(new FirstImplementationAdapterFactory(), firstAdaptable);
-        am.bindAdapterFactory(new SecondImplementationAdapterFactory(), secondAdaptable);
+        am.bindAdapterFactory(TestServiceObjects.of(new FirstImplementationAdapterFactory()), firstAdaptable);
+        am.bindAdapterFactory(TestServiceObjects.of(new SecondImplementationAdapterFactory()), secondAdaptable);
 
         Object adapter = am.getAdapter(first, ParentInterface.class);
         assertNotNull(
@@ -440,8 +1610,8 @@ class AdapterManagerTest {
         assertNull(am.getAdapter(second, ParentInterface.class), "Expect no adapter");
 
         // bind these in reverse order from the non-reverse test
-        am.bindAdapterFactory(new SecondImplementationAdapterFactory(), secondAdaptable);
-        am.bindAdapterFactory(new FirstImplementationAdapterFactory(), firstAdaptable);
+        am.bindAdapterFactory(TestServiceObjects.of(new SecondImplementationAdapterFactory()), secondAdaptable);
+        am.bindAdapterFactory(TestServiceObjects.of(new FirstImplementationAdapterFactory()), firstAdaptable);
 
         Object adapter = am.getAdapter(first, ParentInterface.class);
         assertNotNull(
@@ -472,6 +1642,14 @@ class AdapterManagerTest {
 
     public static interface ITestAdapter {}
 
+    public static interface DiamondBase {}
+
+    public static interface DiamondLeft extends DiamondBase {}
+
+    public static interface DiamondRight extends DiamondBase {}
+
+    public static class DiamondAdaptable implements DiamondLeft, DiamondRight {}
+
     public static class TestAdapter {}
 
     public class FirstImplementationAdapterFactory implements AdapterFactory {
@@ -0,0 +1,370 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.sling.api.adapter.AdapterFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.packageadmin.ExportedPackage;
+import org.osgi.service.packageadmin.PackageAdmin;
+import org.osgi.util.converter.Converters;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdapterMetricsTest {
+
+    private AdapterMetrics metrics;
+
+    private AdapterManagerImpl am;
+
+    private long serviceId;
+
+    @SuppressWarnings("deprecation")
+    @BeforeEach
+    void setUp() {
+        final PackageAdmin pa = Mockito.mock(PackageAdmin.class);
+        final ExportedPackage ep = Mockito.mock(ExportedPackage.class);
+        Mockito.when(pa.getExportedPackage(Mockito.anyString())).thenReturn(ep);
+
+        this.metrics = new AdapterMetrics();
+        configure(Map.of("latency.sample.rate", 1));
+        this.am = new AdapterManagerImpl(
+                Mockito.mock(BundleContext.class),
+                new PackageExportIndex(Mockito.mock(BundleContext.class), pa),
+                metrics,
+                Converters.standardConverter().convert(Map.of()).to(AdapterManagerImpl.Config.class));
+    }
+
+    @AfterEach
+    void tearDown() {
+        metrics.stopWatchdog();
+    }
+
+    private void configure(final Map<String, Object> properties) {
+        metrics.configure(Converters.standardConverter().convert(properties).to(AdapterMetrics.Config.class));
+    }
+
+    private FactoryMetrics bind(final AdapterFactory factory, final Class<?> adaptable, final Class<?> adapter) {
+        @SuppressWarnings("unchecked")
+        final ServiceReference<AdapterFactory> ref = Mockito.mock(ServiceReference.class);
+        Mockito.when(ref.getProperty(Constants.SERVICE_ID)).thenReturn(++serviceId);
+        Mockito.when(ref.getProperty(AdapterFactory.ADAPTABLE_CLASSES)).thenReturn(new String[] {adaptable.getName()});
+        Mockito.when(ref.getProperty(AdapterFactory.ADAPTER_CLASSES)).thenReturn(new String[] {adapter.getName()});
+        final Bundle bundle = Mockito.mock(Bundle.class);
+        Mockito.when(bundle.getSymbolicName()).thenReturn("test.bundle");
+        Mockito.when(bundle.getBundleContext()).thenReturn(Mockito.mock(BundleContext.class));
+        Mockito.when(ref.getBundle()).thenReturn(bundle);
+
+        am.bindAdapterFactory(TestServiceObjects.of(factory), ref);
+        return am.getFactories().get(adaptable.getName()).get(ref).getMetrics();
+    }
+
+    private InvocationMetrics getPair(final String adaptable, final String target) {
+        for (final AdapterMetrics.Pair pair : metrics.getPairs()) {
+            if (pair.adaptable().equals(adaptable) && pair.target().equals(target)) {
+                return pair.metrics();
+            }
+        }
+        return null;
+    }
+
+    @Test
+    void testOutcomesPerFactoryAndPair() {
+        final Adapter adapter = new Adapter() {};
+        final FactoryMetrics success = bind(new ConstantAdapterFactory(adapter), Adaptable1.class, Adapter.class);
+        final FactoryMetrics empty = bind(new ConstantAdapterFactory(null), Adaptable2.class, Adapter.class);
+        final FactoryMetrics failing = bind(new FailingAdapterFactory(), Adaptable3.class, Adapter.class);
+
+        assertNotNull(am.getAdapter(new Adaptable1(), Adapter.class));
+        assertNotNull(am.getAdapter(new Adaptable1(), Adapter.class));
+        assertNull(am.getAdapter(new Adaptable2(), Adapter.class));
+        assertThrows(IllegalStateException.class, () -> am.getAdapter(new Adaptable3(), Adapter.class));
+        assertNull(am.getAdapter(new Adaptable1(), Runnable.class));
+
+        assertEquals(2, success.getSuccessCount());
+        assertEquals(1, empty.getNullCount());
+        assertEquals(1, failing.getExceptionCount());
+        assertEquals(1L, success.getServiceId());
+        assertEquals("test.bundle (0)", success.getBundle());
+        assertEquals(2, sum(success.getLatency().getCounts()), "Every invocation is timed");
+
+        final InvocationMetrics pair = getPair(Adaptable1.class.getName(), Adapter.class.getName());
+        assertNotNull(pair);
+        assertEquals(2, pair.getSuccessCount());
+        assertEquals(
+                1,
+                getPair(Adaptable1.class.getName(), Runnable.class.getName()).getNullCount(),
+                "Adaptions without factories are counted");
+        assertEquals(3, metrics.getSuccessCount() + metrics.getExceptionCount());
+        assertEquals(2, metrics.getNullCount());
+    }
+
+    @Test
+    void testDisabled() {
+        configure(Map.of("enabled", false));
+        final FactoryMetrics success =
+                bind(new ConstantAdapterFactory(new Adapter() {}), Adaptable1.class, Adapter.class);
+
+        assertNotNull(am.getAdapter(new Adaptable1(), Adapter.class));
+        assertEquals(0, success.getSuccessCount());
+        assertEquals(0, metrics.getSuccessCount());
+    }
+
+    @Test
+    void testBoundedPairs() {
+        configure(Map.of("max.pairs", 1));
+        bind(new ConstantAdapterFactory(new Adapter() {}), Adaptable1.class, Adapter.class);
+
+        am.getAdapter(new Adaptable1(), Adapter.class);
+        am.getAdapter(new Adaptable2(), Adapter.class);
+        am.getAdapter(new Adaptable3(), Adapter.class);
+
+        final List<AdapterMetrics.Pair> pairs = metrics.getPairs();
+        assertEquals(2, pairs.size());
+        assertEquals(
+                2,
+                getPair(AdapterMetrics.OTHER_PAIRS, AdapterMetrics.OTHER_PAIRS).getNullCount());
+    }
+
+    @Test
+    void testPairMetricsByClassIdentity() {
+        final Class<?>[] targets = {
+            String.class,
+            Integer.class,
+            Long.class,
+            Short.class,
+            Byte.class,
+            Double.class,
+            Float.class,
+            Character.class,
+            Boolean.class,
+            Object.class,
+            Number.class
+        };
+        final InvocationMetrics[] pairs = new InvocationMetrics[targets.length];
+        for (int i = 0; i < targets.length; i++) {
+            pairs[i] = metrics.getPairMetrics(Adaptable1.class, targets[i]);
+        }
+        // the same metrics are found again after growing the index
+        for (int i = 0; i < targets.length; i++) {
+            assertSame(pairs[i], metrics.getPairMetrics(Adaptable1.class, targets[i]));
+            assertSame(pairs[i], getPair(Adaptable1.class.getName(), targets[i].getName()));
+        }
+        assertEquals(targets.length + 1, metrics.getPairs().size());
+
+        metrics.reset();
+        final InvocationMetrics pair = metrics.getPairMetrics(Adaptable1.class, String.class);
+        assertNotSame(pairs[0], pair, "Expect new pair metrics after reset");
+        assertSame(pair, getPair(Adaptable1.class.getName(), String.class.getName()));
+    }
+
+    @Test
+    void testUnbindDropsFactoryMetrics() throws Exception {
+        bind(new ConstantAdapterFactory(new Adapter() {}), Adaptable1.class, Adapter.class);
+        assertEquals(1, metrics.getFactories().size());
+        assertEquals(1, metrics.getFactoryStatistics().size());
+
+        metrics.reset();
+        am.unbindAdapterFactory(am.getFactories()
+                .get(Adaptable1.class.getName())
+                .keySet()
+                .iterator()
+                .next());
+        assertTrue(metrics.getFactories().isEmpty());
+    }
+
+    @Test
+    void testPrometheusFormat() throws Exception {
+        bind(new ConstantAdapterFactory(new Adapter() {}), Adaptable1.class, Adapter.class);
+        am.getAdapter(new Adaptable1(), Adapter.class);
+
+        final StringWriter out = new StringWriter();
+        metrics.writePrometheus(new PrintWriter(out));
+        final String text = out.toString();
+
+        final String factoryLabels = "service_id=\"1\",bundle=\"test.bundle (0)\",factory=\""
+                + ConstantAdapterFactory.class.getName() + "\"";
+        assertTrue(text.contains(
+                "sling_adapter_factory_invocations_total{" + factoryLabels + ",outcome=\"success\"} 1\n"));
+        assertTrue(
+                text.contains("sling_adapter_factory_latency_seconds_bucket{" + factoryLabels + ",le=\"+Inf\"} 1\n"));
+        assertTrue(text.contains("sling_adapter_adaptions_total{adaptable=\"" + Adaptable1.class.getName()
+                + "\",target=\"" + Adapter.class.getName() + "\",outcome=\"success\"} 1\n"));
+        assertTrue(text.contains("le=\"0.000001\""));
+        // the adapted pair and the pairs not counted individually
+        assertEquals(2, metrics.getAdaptionStatistics().size());
+    }
+
+    @Test
+    void testSlowInvocations() {
+        configure(Map.of("slow.threshold.ms", 1L, "slow.recent.size", 2));
+        final AdapterFactory sleeping = new AdapterFactory() {
+            @Override
+            public <AdapterType> AdapterType getAdapter(final Object adaptable, final Class<AdapterType> type) {
+                try {
+                    Thread.sleep(5);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+        };
+        final FactoryMetrics slow = bind(sleeping, Adaptable1.class, Adapter.class);
+        final FactoryMetrics fast = bind(new ConstantAdapterFactory(null), Adaptable2.class, Adapter.class);
+
+        for (int i = 0; i < 3; i++) {
+            am.getAdapter(new Adaptable1(), Adapter.class);
+            am.getAdapter(new Adaptable2(), Adapter.class);
+        }
+
+        assertEquals(3, slow.getSlowInvocationCount());
+        assertEquals(0, fast.getSlowInvocationCount());
+        final List<SlowInvocations.SlowInvocation> recent = metrics.getSlowInvocations();
+        assertEquals(2, recent.size(), "Only the configured number of invocations is kept");
+        for (final SlowInvocations.SlowInvocation invocation : recent) {
+            assertEquals(slow.getServiceId(), invocation.serviceId());
+            assertEquals("test.bundle (0)", invocation.bundle());
+            assertEquals(Adaptable1.class.getName(), invocation.adaptable());
+            assertEquals(Adapter.class.getName(), invocation.target());
+            assertTrue(invocation.nanos() >= 1_000_000L);
+            assertNull(invocation.stack(), "The stack is only captured for the first invocation");
+        }
+    }
+
+    @Test
+    void testSlowInvocationStackSampledWhileRunning() {
+        configure(Map.of("slow.threshold.ms", 10L));
+        final AdapterFactory sleeping = new AdapterFactory() {
+            @Override
+            public <AdapterType> AdapterType getAdapter(final Object adaptable, final Class<AdapterType> type) {
+                try {
+                    Thread.sleep(500);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+        };
+        final FactoryMetrics slow = bind(sleeping, Adaptable1.class, Adapter.class);
+
+        am.getAdapter(new Adaptable1(), Adapter.class);
+
+        assertEquals(1, slow.getSlowInvocationCount());
+        final String stack = metrics.getSlowInvocations().get(0).stack();
+        assertNotNull(stack, "Expect the stack to be sampled while the factory sleeps");
+        assertTrue(
+                stack.contains(sleeping.getClass().getName() + ".getAdapter"),
+                "Expect the stack to show the running factory: " + stack);
+    }
+
+    @Test
+    void testSlowInvocationDetectionOptIn() {
+        configure(Map.of());
+        assertEquals(0, metrics.getSlowThresholdNanos());
+    }
+
+    @Test
+    void testSlowInvocationDetectionDisabled() {
+        configure(Map.of("slow.threshold.ms", 0L, "enabled", false));
+        final FactoryMetrics slow = bind(new ConstantAdapterFactory(null), Adaptable1.class, Adapter.class);
+        am.getAdapter(new Adaptable1(), Adapter.class);
+        assertEquals(0, slow.getSlowInvocationCount());
+        assertTrue(metrics.getSlowInvocations().isEmpty());
+    }
+
+    @Test
+    void testSlowInvocationsRingBuffer() {
+        final SlowInvocations invocations = new SlowInvocations(2);
+        for (int i = 0; i < 3; i++) {
+            invocations.add(new SlowInvocations.SlowInvocation(i, 0, i, null, "f", "a", "t", null));
+        }
+        final List<SlowInvocations.SlowInvocation> recent = invocations.getRecent();
+        assertEquals(2, recent.size());
+        assertEquals(2, recent.get(0).serviceId());
+        assertEquals(1, recent.get(1).serviceId());
+    }
+
+    @Test
+    void testQuantile() {
+        final long[] counts = new long[LatencyHistogram.BOUNDS.length + 1];
+        assertEquals(-1, LatencyHistogram.getQuantile(counts, 0.5));
+        counts[0] = 98;
+        counts[3] = 2;
+        assertEquals(LatencyHistogram.BOUNDS[0], LatencyHistogram.getQuantile(counts, 0.5));
+        assertEquals(LatencyHistogram.BOUNDS[3], LatencyHistogram.getQuantile(counts, 0.99));
+        counts[LatencyHistogram.BOUNDS.length] = 100;
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.getQuantile(counts, 0.99));
+    }
+
+    private static long sum(final long[] counts) {
+        long sum = 0;
+        for (final long count : counts) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    public static class Adaptable1 {}
+
+    public static class Adaptable2 {}
+
+    public static class Adaptable3 {}
+
+    public interface Adapter {}
+
+    private static final class ConstantAdapterFactory implements AdapterFactory {
+
+        private final Object adapter;
+
+        ConstantAdapterFactory(final Object adapter) {
+            this.adapter = adapter;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <AdapterType> AdapterType getAdapter(final Object adaptable, final Class<AdapterType> type) {
+            return (AdapterType) adapter;
+        }
+    }
+
+    private static final class FailingAdapterFactory implements AdapterFactory {
+
+        @Override
+        public <AdapterType> AdapterType getAdapter(final Object adaptable, final Class<AdapterType> type) {
+            throw new IllegalStateException("failing");
+        }
+    }
+}
@@ -39,11 +39,13 @@ import org.mockito.Mockito;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
+import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
 
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  */
@@ -54,15 +56,21 @@ class AdapterWebConsolePluginTest {
 
     private AdapterWebConsolePlugin plugin;
 
+    private AdapterMetrics metrics;
+
+    private PackageExportIndex packageExports;
+
     @SuppressWarnings("deprecation")
     private org.osgi.service.packageadmin.PackageAdmin mockPackageAdmin;
 
     @SuppressWarnings("deprecation")
     @BeforeEach
-    void beforeEach() {
+    void beforeEach() throws InvalidSyntaxException {
         mockPackageAdmin = context.registerService(
                 org.osgi.service.packageadmin.PackageAdmin.class,
                 Mockito.mock(org.osgi.service.packageadmin.PackageAdmin.class));
+        metrics = context.registerInjectActivateService(AdapterMetrics.class);
+        packageExports = context.registerInjectActivateService(PackageExportIndex.class);
 
         plugin = context.registerInjectActivateService(AdapterWebConsolePlugin.class);
     }
@@ -208,7 +216,7 @@ class AdapterWebConsolePluginTest {
         final Bundle[] mockBundles = new Bundle[] {bundle1, bundle2};
         Mockito.doReturn(mockBundles).when(bundleContext).getBundles();
 
-        assertDoesNotThrow(() -> new AdapterWebConsolePlugin(bundleContext));
+        assertDoesNotThrow(() -> new AdapterWebConsolePlugin(bundleContext, packageExports, metrics));
     }
 
     /**
@@ -232,6 +240,7 @@ class AdapterWebConsolePluginTest {
 
         final String outputAsString = doGet("");
         assertNotNull(outputAsString);
+        assertTrue(outputAsString.contains("${Recent Slow Adapter Factory Invocations}"));
     }
 
     @Test
@@ -240,6 +249,22 @@ class AdapterWebConsolePluginTest {
         assertNotNull(outputAsString);
     }
 
+    @Test
+    void testDoGetWithMetricsOutput() throws ServletException, IOException {
+        final InvocationMetrics pair = metrics.getPairMetrics(String.class, Integer.class);
+        pair.recordSuccess(-1);
+        pair.recordSuccess(-1);
+        pair.recordNull(-1);
+
+        final String outputAsString = doGet("/metrics.txt");
+        assertTrue(outputAsString.contains("# TYPE sling_adapter_factory_invocations_total counter"));
+        assertTrue(outputAsString.contains("# TYPE sling_adapter_adaption_latency_seconds histogram"));
+        final String labels = "adaptable=\"java.lang.String\",target=\"java.lang.Integer\"";
+        assertTrue(outputAsString.contains("sling_adapter_adaptions_total{" + labels + ",outcome=\"success\"} 2\n"));
+        assertTrue(outputAsString.contains("sling_adapter_adaptions_total{" + labels + ",outcome=\"null\"} 1\n"));
+        assertTrue(outputAsString.contains("sling_adapter_adaptions_total{" + labels + ",outcome=\"exception\"} 0\n"));
+    }
+
     private String doGet(String pathInfo) throws ServletException, IOException {
         mockAdapters();
 
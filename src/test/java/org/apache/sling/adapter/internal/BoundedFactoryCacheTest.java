@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class BoundedFactoryCacheTest {
+
+    private static AdaptableFactories entry() {
+        return new MappedAdaptableFactories(Map.of(), Set.of());
+    }
+
+    @Test
+    void testPutGetRemove() {
+        final BoundedFactoryCache cache = new BoundedFactoryCache(10);
+        final AdaptableFactories entry = entry();
+        assertNull(cache.get(String.class));
+        assertNull(cache.put(String.class, entry));
+        assertSame(entry, cache.get(String.class));
+        assertTrue(cache.containsKey(String.class));
+        assertEquals(1, cache.size());
+
+        assertFalse(cache.remove(String.class, entry()));
+        assertTrue(cache.remove(String.class, entry));
+        assertNull(cache.get(String.class));
+        assertEquals(0, cache.size());
+
+        cache.put(String.class, entry);
+        cache.put(Integer.class, entry());
+        cache.clear();
+        assertTrue(cache.isEmpty());
+        assertNull(cache.get(Integer.class));
+    }
+
+    @Test
+    void testClockEviction() {
+        final BoundedFactoryCache cache = new BoundedFactoryCache(2);
+        cache.put(String.class, entry());
+        cache.put(Integer.class, entry());
+
+        // the used entry gets a second chance, the unused one is evicted
+        cache.get(String.class);
+        cache.put(Long.class, entry());
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getCapacityEvictions());
+        assertTrue(cache.containsKey(String.class));
+        assertFalse(cache.containsKey(Integer.class));
+        assertTrue(cache.containsKey(Long.class));
+
+        // the hand continues after the entry given a second chance
+        cache.put(Short.class, entry());
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getCapacityEvictions());
+        assertTrue(cache.containsKey(String.class));
+        assertFalse(cache.containsKey(Long.class));
+        assertTrue(cache.containsKey(Short.class));
+    }
+
+    @Test
+    void testEntrySetRemove() {
+        final BoundedFactoryCache cache = new BoundedFactoryCache(10);
+        cache.put(String.class, entry());
+        cache.put(Integer.class, entry());
+
+        final Iterator<Map.Entry<Class<?>, AdaptableFactories>> entries =
+                cache.entrySet().iterator();
+        while (entries.hasNext()) {
+            if (entries.next().getKey() == String.class) {
+                entries.remove();
+            }
+        }
+        assertEquals(1, cache.size());
+        assertFalse(cache.containsKey(String.class));
+        assertTrue(cache.containsKey(Integer.class));
+    }
+
+    @Test
+    void testUnbounded() {
+        final BoundedFactoryCache cache = new BoundedFactoryCache(0);
+        final Class<?>[] types = {String.class, Integer.class, Long.class, Short.class, Byte.class};
+        for (final Class<?> type : types) {
+            cache.put(type, entry());
+        }
+        assertEquals(types.length, cache.size());
+        assertEquals(0, cache.getCapacityEvictions());
+        for (final Class<?> type : types) {
+            assertTrue(cache.containsKey(type));
+        }
+    }
+
+    @Test
+    void testCollectedClassesAreExpunged() throws Exception {
+        assertCollectedClassesAreExpunged(new BoundedFactoryCache(10));
+    }
+
+    @Test
+    void testCollectedClassesAreExpungedFromUnboundedCache() throws Exception {
+        assertCollectedClassesAreExpunged(new BoundedFactoryCache(0));
+    }
+
+    @Test
+    void testTargetClassesAreNotKept() throws Exception {
+        final AdaptableFactories entry = entry();
+        final WeakReference<Class<?>> generated = new WeakReference<>(defineHiddenClass());
+        assertSame(TargetFactories.NONE, entry.getTargetFactories(generated.get()));
+        assertSame(TargetFactories.NONE, entry.getTargetFactories(generated.get()));
+
+        awaitCollected(generated);
+        assertSame(TargetFactories.NONE, entry.getTargetFactories(String.class));
+    }
+
+    private static void assertCollectedClassesAreExpunged(final BoundedFactoryCache cache) throws Exception {
+        final WeakReference<Class<?>> generated = new WeakReference<>(defineHiddenClass());
+        cache.put(generated.get(), entry());
+        assertEquals(1, cache.size());
+
+        awaitCollected(generated);
+
+        // collected entries are expunged on the next modification
+        cache.put(String.class, entry());
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getCollectedEntries());
+        assertEquals(0, cache.getCapacityEvictions());
+    }
+
+    private static void awaitCollected(final WeakReference<Class<?>> generated) throws InterruptedException {
+        for (int i = 0; i < 50 && generated.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assumeTrue(generated.get() == null, "Hidden class has not been collected");
+    }
+
+    private static Class<?> defineHiddenClass() throws IOException, IllegalAccessException {
+        try (InputStream in =
+                BoundedFactoryCacheTest.class.getResourceAsStream("BoundedFactoryCacheTest$Generated.class")) {
+            return MethodHandles.lookup()
+                    .defineHiddenClass(in.readAllBytes(), false)
+                    .lookupClass();
+        }
+    }
+
+    static final class Generated {}
+}
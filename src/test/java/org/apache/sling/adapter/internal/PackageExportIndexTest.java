@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.service.packageadmin.ExportedPackage;
+import org.osgi.service.packageadmin.PackageAdmin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SuppressWarnings("deprecation")
+class PackageExportIndexTest {
+
+    private PackageAdmin packageAdmin;
+
+    private BundleContext bundleContext;
+
+    private PackageExportIndex index;
+
+    @BeforeEach
+    void setUp() {
+        packageAdmin = Mockito.mock(PackageAdmin.class);
+        Mockito.when(packageAdmin.getExportedPackage("org.apache.sling.exported"))
+                .thenReturn(Mockito.mock(ExportedPackage.class));
+        bundleContext = Mockito.mock(BundleContext.class);
+        index = new PackageExportIndex(bundleContext, packageAdmin);
+    }
+
+    @Test
+    void testExportStatusIsCached() {
+        assertTrue(index.isExported("org.apache.sling.exported.Adapter"));
+        assertTrue(index.isExported("org.apache.sling.exported.Adaptable"));
+        assertFalse(index.isExported("org.apache.sling.internal.Adapter"));
+        assertFalse(index.isExported("org.apache.sling.internal.Adaptable"));
+        assertTrue(index.isExported("java.lang.Runnable"));
+
+        Mockito.verify(packageAdmin, Mockito.times(1)).getExportedPackage("org.apache.sling.exported");
+        Mockito.verify(packageAdmin, Mockito.times(1)).getExportedPackage("org.apache.sling.internal");
+        Mockito.verify(packageAdmin, Mockito.never()).getExportedPackage("java.lang");
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    void testResolveAndRefreshInvalidate() {
+        Mockito.verify(bundleContext).addBundleListener(index);
+        Mockito.verify(bundleContext).addFrameworkListener(index);
+        assertFalse(index.isExported("org.apache.sling.internal.Adapter"));
+
+        // starting a bundle does not change the exported packages
+        index.bundleChanged(new BundleEvent(BundleEvent.STARTED, Mockito.mock(Bundle.class)));
+        assertEquals(1, index.size());
+
+        Mockito.when(packageAdmin.getExportedPackage("org.apache.sling.internal"))
+                .thenReturn(Mockito.mock(ExportedPackage.class));
+        index.bundleChanged(new BundleEvent(BundleEvent.RESOLVED, Mockito.mock(Bundle.class)));
+        assertEquals(0, index.size());
+        assertTrue(index.isExported("org.apache.sling.internal.Adapter"));
+
+        Mockito.when(packageAdmin.getExportedPackage("org.apache.sling.internal"))
+                .thenReturn(null);
+        index.frameworkEvent(new FrameworkEvent(FrameworkEvent.PACKAGES_REFRESHED, Mockito.mock(Bundle.class), null));
+        assertFalse(index.isExported("org.apache.sling.internal.Adapter"));
+
+        index.deactivate();
+        Mockito.verify(bundleContext).removeBundleListener(index);
+        Mockito.verify(bundleContext).removeFrameworkListener(index);
+    }
+}
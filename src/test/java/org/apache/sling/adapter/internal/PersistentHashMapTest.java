@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PersistentHashMapTest {
+
+    /**
+     * A key with a configurable hash code to provoke collisions.
+     */
+    private record Key(int hash, String name) {
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    @Test
+    void testWithWithout() {
+        final PersistentHashMap<String, String> empty = PersistentHashMap.empty();
+        final PersistentHashMap<String, String> one = empty.with("a", "1");
+        assertTrue(empty.isEmpty());
+        assertEquals(1, one.size());
+        assertEquals("1", one.get("a"));
+        assertNull(one.get("b"));
+        assertNull(one.get(null));
+
+        final String value = "2";
+        final PersistentHashMap<String, String> two = one.with("a", value);
+        assertEquals("1", one.get("a"), "Expect the original map to be unchanged");
+        assertSame(value, two.get("a"));
+        assertEquals(1, two.size());
+        assertSame(two, two.with("a", value));
+
+        assertSame(two, two.without("b"));
+        assertTrue(two.without("a").isEmpty());
+        assertEquals(Map.of("a", "2"), two);
+        assertThrows(UnsupportedOperationException.class, () -> two.put("b", "3"));
+    }
+
+    @Test
+    void testCollisions() {
+        PersistentHashMap<Key, String> map = PersistentHashMap.empty();
+        final Key a = new Key(42, "a");
+        final Key b = new Key(42, "b");
+        final Key c = new Key(42 + (1 << 20), "c");
+        map = map.with(a, "a").with(b, "b").with(c, "c");
+        assertEquals(3, map.size());
+        assertEquals("a", map.get(a));
+        assertEquals("b", map.get(b));
+        assertEquals("c", map.get(c));
+        assertNull(map.get(new Key(42, "d")));
+
+        map = map.without(a);
+        assertNull(map.get(a));
+        assertEquals("b", map.get(b));
+        map = map.without(b).without(c);
+        assertTrue(map.isEmpty());
+        assertFalse(map.containsKey(c));
+    }
+
+    @Test
+    void testRandomOperations() {
+        final Random random = new Random(7);
+        final Map<Key, Integer> expected = new HashMap<>();
+        PersistentHashMap<Key, Integer> map = PersistentHashMap.empty();
+        for (int i = 0; i < 20_000; i++) {
+            // few distinct hashes, such that collisions and deep tries occur
+            final int n = random.nextInt(2_000);
+            final Key key = new Key(random.nextBoolean() ? n : n * 0x9E3779B9, "k" + n);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.without(key);
+            } else {
+                expected.put(key, i);
+                map = map.with(key, i);
+            }
+            assertEquals(expected.get(key), map.get(key));
+            assertEquals(expected.size(), map.size());
+        }
+        assertEquals(expected, map);
+        assertEquals(expected.hashCode(), map.hashCode());
+    }
+}
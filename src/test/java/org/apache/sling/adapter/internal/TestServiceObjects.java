@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.adapter.internal;
+
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.component.ComponentServiceObjects;
+
+/**
+ * Simple {@link ComponentServiceObjects} always returning the same service
+ * object and counting how often it has been got and ungot.
+ */
+public class TestServiceObjects<S> implements ComponentServiceObjects<S> {
+
+    private final S service;
+
+    private int gets;
+
+    private int ungets;
+
+    public TestServiceObjects(final S service) {
+        this.service = service;
+    }
+
+    public static <S> TestServiceObjects<S> of(final S service) {
+        return new TestServiceObjects<>(service);
+    }
+
+    @Override
+    public S getService() {
+        gets++;
+        return service;
+    }
+
+    @Override
+    public void ungetService(final S service) {
+        ungets++;
+    }
+
+    @Override
+    public ServiceReference<S> getServiceReference() {
+        return null;
+    }
+
+    public int getGets() {
+        return gets;
+    }
+
+    public int getUngets() {
+        return ungets;
+    }
+}